@@ -10,6 +10,9 @@ import java.util.UUID;
  * HeatSensor generates temperature measures at non-fixed rates and publishes them to subscribers to the sensor.updates
  * destination. Each verticle has a unique sensor identifier.
  *
+ * When the configuration has a load entry with a positive rate, it publishes the updates of many sensors at that rate
+ * instead (see SensorLoad).
+ *
  * @author sm@creativefusion.net
  */
 public class HeatSensor extends AbstractVerticle {
@@ -20,6 +23,12 @@ public class HeatSensor extends AbstractVerticle {
 
     @Override
     public void start() {
+        JsonObject load = config().getJsonObject("load");
+        if (SensorLoad.isEnabled(load)) {
+            // Load-generator mode: this verticle simulates many sensors publishing at a fixed rate
+            new SensorLoad(vertx, "sensor.updates", load).start();
+            return;
+        }
         scheduleNextUpdate();
     }
 
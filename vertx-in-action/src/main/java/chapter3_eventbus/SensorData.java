@@ -5,9 +5,6 @@ import io.vertx.core.eventbus.EventBus;
 import io.vertx.core.eventbus.Message;
 import io.vertx.core.json.JsonObject;
 
-import java.util.HashMap;
-import java.util.stream.Collectors;
-
 /**
  * SensorData keeps a record of the latest observed values for each sensor. It also supports request-response
  * communications: sending a message to sensor.average triggers a computation of the average based on the latest data,
@@ -17,11 +14,14 @@ import java.util.stream.Collectors;
  * requests. In one case, it updates entries in a Hash- Map, and in the other case, it computes the average and responds
  * to the message sender.
  *
+ * The values are kept in a SensorValueStore rather than a HashMap of boxed doubles, so that the average is maintained
+ * as updates arrive instead of being computed over all the sensors on each request.
+ *
  * @author sm@creativefusion.net
  */
 public class SensorData extends AbstractVerticle {
 
-    private final HashMap<String, Double> lastValues = new HashMap<>();
+    private final SensorValueStore lastValues = new SensorValueStore();
 
     @Override
     public void start() {
@@ -34,13 +34,16 @@ public class SensorData extends AbstractVerticle {
     private void update(Message<JsonObject> message) {
         // When a new measurement is being received, we extract the data from the JSON body
         JsonObject json = message.body();
-        lastValues.put(json.getString("id"), json.getDouble("temp"));
+        String id = json.getString("id");
+        Double temp = json.getDouble("temp");
+        // Updates without a sensor identifier or a temperature are ignored, like NaN or infinite temperatures
+        if (id != null && temp != null) {
+            lastValues.update(id, temp);
+        }
     }
 
     private void average(Message<JsonObject> message) {
-        double avg = lastValues.values().stream()
-                .collect(Collectors.averagingDouble(Double::doubleValue));
-        JsonObject json = new JsonObject().put("average", avg);
+        JsonObject json = new JsonObject().put("average", lastValues.average());
         message.reply(json); // The reply method is used to reply to a message
     }
 }
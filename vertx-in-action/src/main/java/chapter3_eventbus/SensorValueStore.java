@@ -0,0 +1,137 @@
+package chapter3_eventbus;
+
+import java.util.Arrays;
+
+/**
+ * SensorValueStore keeps the latest value of each sensor, and the average of these values, for SensorData.
+ *
+ * It replaces a HashMap<String, Double>, which takes a map entry and a boxed Double per sensor, and whose average
+ * streams over all the values on every request. Here each sensor identifier is interned to an int slot in an
+ * open-addressing table (an array of identifiers and an array of slots, with linear probing), the values are kept in
+ * a double array indexed by slot, and a running sum is updated with each value, so that average is O(1). The sum uses
+ * Kahan compensated summation, so that the rounding errors of millions of updates do not accumulate.
+ *
+ * NaN and infinite values are rejected by update: once added to the running sum, they could never be subtracted from
+ * it again (infinity minus infinity is NaN), and the average would stay NaN for good.
+ *
+ * A store is confined to the event loop of the verticle that owns it.
+ *
+ * @author sm@creativefusion.net
+ */
+public class SensorValueStore {
+
+    private String[] keys;
+    private int[] slots;
+    private int mask;
+    private double[] values;
+    private int size;
+    private double sum;
+    private double compensation;
+
+    public SensorValueStore() {
+        this(16);
+    }
+
+    public SensorValueStore(int expectedSensors) {
+        int tableSize = Integer.highestOneBit(Math.max(2, expectedSensors) * 2 - 1) << 1;
+        keys = new String[tableSize];
+        slots = new int[tableSize];
+        mask = tableSize - 1;
+        values = new double[Math.max(2, expectedSensors)];
+    }
+
+    /*
+     * Returns false, and leaves the store unchanged, when the value is NaN or infinite.
+     */
+    public boolean update(String sensorId, double value) {
+        if (!Double.isFinite(value)) {
+            return false;
+        }
+        int index = indexOf(sensorId);
+        if (keys[index] != null) {
+            int slot = slots[index];
+            add(value - values[slot]);
+            values[slot] = value;
+            return true;
+        }
+        if (size == values.length) {
+            values = Arrays.copyOf(values, size * 2);
+        }
+        keys[index] = sensorId;
+        slots[index] = size;
+        values[size] = value;
+        size++;
+        add(value);
+        if (size * 2 > keys.length) {
+            grow();
+        }
+        return true;
+    }
+
+    public boolean contains(String sensorId) {
+        return keys[indexOf(sensorId)] != null;
+    }
+
+    /*
+     * Returns NaN when no value has been observed for the sensor.
+     */
+    public double valueOf(String sensorId) {
+        int index = indexOf(sensorId);
+        return keys[index] != null ? values[slots[index]] : Double.NaN;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /*
+     * Returns 0 when no value has been observed, like averagingDouble on an empty stream.
+     */
+    public double average() {
+        return size == 0 ? 0.0d : sum / size;
+    }
+
+    public long memoryBytes() {
+        // Arrays only: the identifier strings are shared with the messages they came from
+        return keys.length * 4L + slots.length * 4L + values.length * 8L;
+    }
+
+    private void add(double delta) {
+        double y = delta - compensation;
+        double t = sum + y;
+        compensation = (t - sum) - y;
+        sum = t;
+    }
+
+    /*
+     * The index of the sensor in the table, or of the free entry where it would be added.
+     */
+    private int indexOf(String sensorId) {
+        int index = mix(sensorId.hashCode()) & mask;
+        while (keys[index] != null && !keys[index].equals(sensorId)) {
+            index = (index + 1) & mask;
+        }
+        return index;
+    }
+
+    private static int mix(int hash) {
+        // Spreads the String hash codes, whose low bits are not uniform enough for linear probing
+        hash *= 0x9e3779b9;
+        return hash ^ (hash >>> 16);
+    }
+
+    private void grow() {
+        String[] oldKeys = keys;
+        int[] oldSlots = slots;
+        keys = new String[oldKeys.length * 2];
+        slots = new int[oldKeys.length * 2];
+        mask = keys.length - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != null) {
+                int index = indexOf(oldKeys[i]);
+                keys[index] = oldKeys[i];
+                slots[index] = oldSlots[i];
+            }
+        }
+    }
+}
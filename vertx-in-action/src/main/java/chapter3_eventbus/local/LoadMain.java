@@ -0,0 +1,42 @@
+package chapter3_eventbus.local;
+
+import io.vertx.core.DeploymentOptions;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+
+/**
+ * Same deployment as Main, with the heat sensors in load-generator mode (see SensorLoad), to load-test SensorData and
+ * HttpServer (e.g., with a few clients on localhost:8080/sse). Listener logs every update, so it is only deployed when
+ * asked for.
+ *
+ * Arguments: [updates per second per sensor] [sensors per verticle] [verticle instances] [burst factor] [listener]
+ *
+ * @author sm@creativefusion.net
+ */
+public class LoadMain {
+
+    public static void main(String[] args) {
+        double rate = args.length > 0 ? Double.parseDouble(args[0]) : 10.0d;
+        int sensors = args.length > 1 ? Integer.parseInt(args[1]) : 2500;
+        int instances = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+        double burstFactor = args.length > 3 ? Double.parseDouble(args[3]) : 1.0d;
+        boolean listener = args.length > 4 && Boolean.parseBoolean(args[4]);
+
+        JsonObject load = new JsonObject()
+                .put("rate", rate)
+                .put("sensors", sensors)
+                .put("burst", new JsonObject()
+                        .put("factor", burstFactor)
+                        .put("periodMs", 10_000L)
+                        .put("durationMs", 1000L));
+        Vertx vertx = Vertx.vertx();
+        vertx.deployVerticle("chapter3_eventbus.HeatSensor", new DeploymentOptions()
+                .setInstances(instances)
+                .setConfig(new JsonObject().put("load", load)));
+        if (listener) {
+            vertx.deployVerticle("chapter3_eventbus.Listener");
+        }
+        vertx.deployVerticle("chapter3_eventbus.SensorData");
+        vertx.deployVerticle("chapter3_eventbus.HttpServer");
+    }
+}
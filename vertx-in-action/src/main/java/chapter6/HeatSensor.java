@@ -17,6 +17,12 @@ public class HeatSensor extends AbstractVerticle {
 
     @Override
     public void start() {
+        JsonObject load = config().getJsonObject("load");
+        if (SensorLoad.isEnabled(load)) {
+            // Load-generator mode: this verticle simulates many sensors publishing at a fixed rate
+            new SensorLoad(vertx, "sensor.updates", load).start();
+            return;
+        }
         scheduleNextUpdate();
     }
 
@@ -6,32 +6,36 @@ import io.vertx.core.Handler;
 import io.vertx.core.Vertx;
 import io.vertx.core.json.JsonObject;
 
-import java.util.HashMap;
-import java.util.stream.Collectors;
-
 /**
  * Revises the heat sensor example (chapter 3) replacing event-bus interactions with a SensorDataService typed Java
  * interface.
  *
+ * The values are kept in a SensorValueStore, so that average requests are O(1).
+ *
  * @author sm@creativefusion.net
  */
 public class SensorDataServiceImpl implements SensorDataService {
 
-    private final HashMap<String, Double> lastValues = new HashMap<>();
+    private final SensorValueStore lastValues = new SensorValueStore();
 
     SensorDataServiceImpl(Vertx vertx) {
         vertx.eventBus().<JsonObject>consumer("sensor.updates", message -> {
             JsonObject json = message.body();
-            lastValues.put(json.getString("id"), json.getDouble("temp"));
+            String id = json.getString("id");
+            Double temp = json.getDouble("temp");
+            // Updates without a sensor identifier or a temperature are ignored, like NaN or infinite temperatures
+            if (id != null && temp != null) {
+                lastValues.update(id, temp);
+            }
         });
     }
 
     @Override
     public void valueFor(String sensorId, Handler<AsyncResult<JsonObject>> handler) {
-        if (lastValues.containsKey(sensorId)) {
+        if (lastValues.contains(sensorId)) {
             JsonObject data = new JsonObject()
                     .put("sensorId", sensorId)
-                    .put("value", lastValues.get(sensorId));
+                    .put("value", lastValues.valueOf(sensorId));
             handler.handle(Future.succeededFuture(data));
         } else {
             handler.handle(Future.failedFuture("No value has been observed for " + sensorId));
@@ -40,9 +44,7 @@ public class SensorDataServiceImpl implements SensorDataService {
 
     @Override
     public void average(Handler<AsyncResult<JsonObject>> handler) {
-        double avg = lastValues.values().stream()
-                .collect(Collectors.averagingDouble(Double::doubleValue));
-        JsonObject data = new JsonObject().put("average", avg);
+        JsonObject data = new JsonObject().put("average", lastValues.average());
         handler.handle(Future.succeededFuture(data));
     }
 }
\ No newline at end of file
@@ -0,0 +1,154 @@
+package chapter6;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.eventbus.EventBus;
+import io.vertx.core.json.JsonObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * SensorLoad is the load-generator mode of HeatSensor: instead of one sensor publishing an update every few seconds,
+ * a verticle simulates many sensors publishing at a fixed rate, to load-test the SensorDataService. This is a copy of
+ * the chapter 3 SensorLoad, so that each chapter stays self-contained.
+ *
+ * The configuration is the load entry of the HeatSensor configuration:
+ * - rate: the target number of updates per second of each sensor (the load mode is only enabled when it is positive)
+ * - sensors: the number of simulated sensors (default 1, must be positive)
+ * - tickMs: the period of the single timer that publishes the updates of all the sensors (default 10, must be
+ * positive)
+ * - burst: an optional burst pattern, where the rate is multiplied by factor during the first durationMs of every
+ * periodMs
+ * - reportMs: how often the achieved and the target rates are logged (default 5000)
+ *
+ * There is one periodic timer for all the sensors, rather than one timer per sensor: at each tick the updates that are
+ * due since the previous tick are published, round-robin over the sensors. The number of updates that are due is
+ * computed from the elapsed time, so the rate does not depend on the timer accuracy. When the event loop falls behind,
+ * the late updates are kept as a backlog of at most one second of updates (at the burst rate), and a tick publishes at
+ * most twice its share of that rate: the backlog is spread over the next ticks rather than published in one go, which
+ * would block the event loop again. Beyond that backlog the achieved rate drops below the target.
+ *
+ * @author sm@creativefusion.net
+ */
+public class SensorLoad {
+
+    private static final Logger logger = LoggerFactory.getLogger(SensorLoad.class);
+    private static final double CATCH_UP_FACTOR = 2.0d;
+
+    private final Vertx vertx;
+    private final String address;
+    private final double rate;
+    private final long tickMillis;
+    private final long reportMillis;
+    private final double burstFactor;
+    private final long burstPeriodMillis;
+    private final long burstDurationMillis;
+    private final double maxBacklog;
+    private final int maxPerTick;
+    private final String[] ids;
+    private final double[] temperatures;
+    private final Random random = new Random();
+    private long startedAt;
+    private long lastTick;
+    private double due;
+    private int nextSensor;
+
+    // Metrics
+    private long intervalStart;
+    private long intervalPublished;
+    private double intervalTargeted;
+
+    public SensorLoad(Vertx vertx, String address, JsonObject config) {
+        this.vertx = vertx;
+        this.address = address;
+        this.rate = config.getDouble("rate", 0.0d);
+        this.tickMillis = config.getLong("tickMs", 10L);
+        this.reportMillis = config.getLong("reportMs", 5000L);
+        JsonObject burst = config.getJsonObject("burst", new JsonObject());
+        this.burstFactor = burst.getDouble("factor", 1.0d);
+        this.burstPeriodMillis = burst.getLong("periodMs", 0L);
+        this.burstDurationMillis = burst.getLong("durationMs", 0L);
+        int sensors = config.getInteger("sensors", 1);
+        if (tickMillis <= 0L || reportMillis <= 0L) {
+            throw new IllegalArgumentException("tickMs and reportMs must be positive");
+        }
+        if (sensors <= 0) {
+            throw new IllegalArgumentException("sensors must be positive: " + sensors);
+        }
+        this.maxBacklog = rate * sensors * Math.max(1.0d, burstFactor);
+        this.maxPerTick = (int) Math.max(1.0d, Math.ceil(maxBacklog * tickMillis / 1000.0d * CATCH_UP_FACTOR));
+        this.ids = new String[sensors];
+        this.temperatures = new double[sensors];
+        for (int i = 0; i < sensors; i++) {
+            ids[i] = UUID.randomUUID().toString();
+            temperatures[i] = 21.0;
+        }
+    }
+
+    public static boolean isEnabled(JsonObject config) {
+        return config != null && config.getDouble("rate", 0.0d) > 0.0d;
+    }
+
+    public void start() {
+        startAt(System.nanoTime());
+        vertx.setPeriodic(tickMillis, id -> tick());
+        vertx.setPeriodic(reportMillis, id -> report());
+    }
+
+    void startAt(long now) {
+        startedAt = now;
+        lastTick = now;
+        intervalStart = now;
+    }
+
+    /*
+     * How many updates to publish at a tick happening at the given time: those due since the previous tick, plus part
+     * of the backlog. The fraction of an update that is not due yet is carried over to the next tick.
+     */
+    int dueAt(long now) {
+        double expected = rate * ids.length * burstFactorAt(now) * (now - lastTick) / 1e9;
+        lastTick = now;
+        intervalTargeted += expected;
+        due = Math.min(due + expected, maxBacklog);
+        int count = (int) Math.min(due, maxPerTick);
+        due -= count;
+        return count;
+    }
+
+    private void tick() {
+        int count = dueAt(System.nanoTime());
+        EventBus bus = vertx.eventBus();
+        for (int i = 0; i < count; i++) {
+            int sensor = nextSensor;
+            nextSensor = (sensor + 1) % ids.length;
+            temperatures[sensor] += random.nextGaussian() / 10;
+            bus.publish(address, new JsonObject()
+                    .put("id", ids[sensor])
+                    .put("temp", temperatures[sensor]));
+        }
+        intervalPublished += count;
+    }
+
+    private double burstFactorAt(long now) {
+        if (burstPeriodMillis <= 0L) {
+            return 1.0d;
+        }
+        long inPeriod = ((now - startedAt) / 1_000_000L) % burstPeriodMillis;
+        return inPeriod < burstDurationMillis ? burstFactor : 1.0d;
+    }
+
+    private void report() {
+        long now = System.nanoTime();
+        double seconds = (now - intervalStart) / 1e9;
+        double achievedRate = intervalPublished / seconds;
+        double targetRate = intervalTargeted / seconds;
+        logger.info("{} sensors published {} updates/s for a target of {} updates/s ({}%)", ids.length,
+                Math.round(achievedRate), Math.round(targetRate),
+                targetRate > 0.0d ? Math.round(100.0d * achievedRate / targetRate) : 100L);
+        intervalStart = now;
+        intervalPublished = 0L;
+        intervalTargeted = 0.0d;
+    }
+}
@@ -0,0 +1,206 @@
+package tenksteps.congrats;
+
+import io.reactivex.Completable;
+import io.reactivex.Flowable;
+import io.vertx.core.json.JsonObject;
+import io.vertx.kafka.client.common.TopicPartition;
+import io.vertx.reactivex.core.Vertx;
+import io.vertx.reactivex.kafka.client.consumer.KafkaConsumer;
+import io.vertx.reactivex.kafka.client.consumer.KafkaConsumerRecord;
+import io.vertx.reactivex.kafka.client.consumer.KafkaConsumerRecords;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * BatchConsumer reads a Kafka topic batch by batch, and commits the offsets of a batch only once the batch handler has
+ * completed, so that a crash does not lose the records being handled. The partitions are paused while a batch is
+ * handled, and the consumer keeps polling so that a slow batch does not make the group rebalance. A failed batch is
+ * read again after retryDelayMs.
+ *
+ * A batch consumer is confined to the event loop of the verticle that owns it.
+ *
+ * @author sm@creativefusion.net
+ */
+class BatchConsumer<V> {
+
+    private static final Logger logger = LoggerFactory.getLogger(BatchConsumer.class);
+
+    private final Vertx vertx;
+    private final KafkaConsumer<String, V> consumer;
+    private final Function<Flowable<KafkaConsumerRecord<String, V>>, Completable> handler;
+    private final Duration pollTimeout;
+    private final long keepAlivePollMillis;
+    private final long retryDelayMillis;
+    private final long lagIntervalMillis;
+    private final Map<TopicPartition, Long> committed = new HashMap<>();
+    private long keepAliveTimerId = -1L;
+
+    // Metrics
+    private final StageMetrics batches = new StageMetrics();
+    private long records;
+    private long commitFailures;
+    private long rewinds;
+    private JsonObject partitions = new JsonObject();
+    private long lag;
+
+    BatchConsumer(Vertx vertx, KafkaConsumer<String, V> consumer, JsonObject config,
+                  Function<Flowable<KafkaConsumerRecord<String, V>>, Completable> handler) {
+        this.vertx = vertx;
+        this.consumer = consumer;
+        this.handler = handler;
+        this.pollTimeout = Duration.ofMillis(config.getLong("pollTimeoutMs", 1000L));
+        this.keepAlivePollMillis = config.getLong("keepAlivePollMs", 5000L);
+        this.retryDelayMillis = config.getLong("retryDelayMs", 10_000L);
+        this.lagIntervalMillis = config.getLong("lagIntervalMs", 5000L);
+    }
+
+    Completable start(String topic) {
+        return consumer.rxSubscribe(topic)
+                .doOnComplete(() -> {
+                    vertx.setPeriodic(lagIntervalMillis, id -> refreshLag());
+                    poll();
+                });
+    }
+
+    JsonObject metrics() {
+        return new JsonObject()
+                .put("batches", batches.toJson())
+                .put("records", records)
+                .put("commitFailures", commitFailures)
+                .put("rewinds", rewinds)
+                .put("paused", keepAliveTimerId >= 0L)
+                .put("lag", lag)
+                .put("partitions", partitions);
+    }
+
+    private void poll() {
+        consumer.rxPoll(pollTimeout)
+                .flatMapCompletable(this::handle)
+                .subscribe(this::poll, err -> {
+                    logger.error("Batch failed, polling again in {} ms", retryDelayMillis, err);
+                    vertx.setTimer(retryDelayMillis, id -> poll());
+                });
+    }
+
+    private Completable handle(KafkaConsumerRecords<String, V> batch) {
+        if (batch.isEmpty()) {
+            return Completable.complete();
+        }
+        Map<TopicPartition, long[]> ranges = offsetRanges(batch);
+        long startedAt = System.nanoTime();
+        return pause()
+                .andThen(Completable.defer(() -> handler.apply(Flowable.range(0, batch.size()).map(batch::recordAt))))
+                .andThen(commit(ranges))
+                .andThen(resume())
+                .doOnComplete(() -> {
+                    records += batch.size();
+                    batches.success(System.nanoTime() - startedAt);
+                })
+                .onErrorResumeNext(err -> {
+                    batches.failure(System.nanoTime() - startedAt);
+                    return rewind(ranges)
+                            .andThen(resume())
+                            .onErrorComplete()
+                            .andThen(Completable.error(err));
+                });
+    }
+
+    /*
+     * For each partition of the batch, the first and the last offsets.
+     */
+    private static <V> Map<TopicPartition, long[]> offsetRanges(KafkaConsumerRecords<String, V> batch) {
+        Map<TopicPartition, long[]> ranges = new HashMap<>();
+        for (int i = 0; i < batch.size(); i++) {
+            KafkaConsumerRecord<String, V> record = batch.recordAt(i);
+            long offset = record.offset();
+            long[] range = ranges.computeIfAbsent(new TopicPartition(record.topic(), record.partition()),
+                    key -> new long[]{offset, offset});
+            range[0] = Math.min(range[0], offset);
+            range[1] = Math.max(range[1], offset);
+        }
+        return ranges;
+    }
+
+    /*
+     * The consumer is not polled for records during a batch, so its positions are the ends of the batch (or the
+     * offsets sought back to by a keep-alive poll), and this commits exactly what has been handled.
+     */
+    private Completable commit(Map<TopicPartition, long[]> ranges) {
+        return consumer.rxCommit()
+                .doOnComplete(() -> ranges.forEach((partition, range) -> committed.put(partition, range[1] + 1)))
+                .doOnError(err -> commitFailures++);
+    }
+
+    private Completable rewind(Map<TopicPartition, long[]> ranges) {
+        rewinds++;
+        // A partition may have been revoked in the meantime: its new owner reads it from the last commit
+        return Flowable.fromIterable(ranges.entrySet())
+                .flatMapCompletable(entry -> consumer.rxSeek(entry.getKey(), entry.getValue()[0]).onErrorComplete());
+    }
+
+    private Completable pause() {
+        return consumer.rxAssignment()
+                .flatMapCompletable(consumer::rxPause)
+                .doOnComplete(() -> {
+                    if (keepAliveTimerId < 0L) {
+                        keepAliveTimerId = vertx.setPeriodic(keepAlivePollMillis, id -> keepAlivePoll());
+                    }
+                });
+    }
+
+    private Completable resume() {
+        return Completable.defer(() -> {
+            if (keepAliveTimerId >= 0L) {
+                vertx.cancelTimer(keepAliveTimerId);
+                keepAliveTimerId = -1L;
+            }
+            return consumer.rxAssignment().flatMapCompletable(consumer::rxResume);
+        });
+    }
+
+    /*
+     * Only partitions assigned since the batch was polled can have records here: they are sought back and paused.
+     */
+    private void keepAlivePoll() {
+        consumer.rxPoll(Duration.ZERO)
+                .flatMapCompletable(batch -> batch.isEmpty() ? Completable.complete()
+                        : rewind(offsetRanges(batch)).andThen(consumer.rxAssignment()
+                                .flatMapCompletable(consumer::rxPause)))
+                .subscribe(() -> {
+                }, err -> logger.error("Keep-alive poll failed", err));
+    }
+
+    private void refreshLag() {
+        consumer.rxAssignment()
+                .flatMap(assigned -> Flowable.fromIterable(assigned)
+                        .flatMapSingle(partition -> consumer.rxEndOffsets(partition)
+                                .flatMap(end -> consumer.rxPosition(partition)
+                                        .map(position -> partitionLag(partition, position, end))))
+                        .toList())
+                .subscribe(lags -> {
+                    JsonObject snapshot = new JsonObject();
+                    long total = 0L;
+                    for (JsonObject partitionLag : lags) {
+                        snapshot.put(partitionLag.getString("partition"), partitionLag);
+                        total += partitionLag.getLong("lag");
+                    }
+                    partitions = snapshot;
+                    lag = total;
+                }, err -> logger.warn("Could not refresh the consumer lag", err));
+    }
+
+    private JsonObject partitionLag(TopicPartition partition, long position, long end) {
+        Long lastCommit = committed.get(partition);
+        return new JsonObject()
+                .put("partition", partition.getTopic() + "-" + partition.getPartition())
+                .put("end", end)
+                .put("position", position)
+                .put("committed", lastCommit)
+                .put("lag", Math.max(0L, end - (lastCommit != null ? lastCommit : position)));
+    }
+}
@@ -1,74 +1,188 @@
 package tenksteps.congrats;
 
 import io.reactivex.Completable;
-import io.reactivex.Flowable;
-import io.reactivex.Single;
+import io.reactivex.Maybe;
 import io.vertx.core.json.JsonObject;
+import io.vertx.ext.mail.MailConfig;
 import io.vertx.ext.mail.MailMessage;
-import io.vertx.ext.mail.MailResult;
 import io.vertx.reactivex.core.AbstractVerticle;
-import io.vertx.reactivex.core.RxHelper;
 import io.vertx.reactivex.core.Vertx;
 import io.vertx.reactivex.ext.mail.MailClient;
-import io.vertx.reactivex.ext.web.client.HttpResponse;
-import io.vertx.reactivex.ext.web.client.WebClient;
-import io.vertx.reactivex.ext.web.codec.BodyCodec;
 import io.vertx.reactivex.kafka.client.consumer.KafkaConsumer;
 import io.vertx.reactivex.kafka.client.consumer.KafkaConsumerRecord;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import tenksteps.upstream.Upstreams;
 
-import java.util.concurrent.TimeUnit;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
 
+/**
+ * Sends a congratulation email to the users who reach 10k steps in a day, as reported by the daily.step.updates
+ * Kafka topic.
+ *
+ * Records are consumed in batches by a BatchConsumer, their recipients are looked up by a RecipientLookup and their
+ * emails are sent by a MailDispatcher, each stage with bounded concurrency. A DailyDedup makes sure that a user is
+ * congratulated at most once a day. See the README for the configuration entries.
+ *
+ * @author sm@creativefusion.net
+ */
 public class CongratsVerticle extends AbstractVerticle {
 
     private static final Logger logger = LoggerFactory.getLogger(CongratsVerticle.class);
 
-    private MailClient mailClient;
-    private WebClient webClient;
+    private Upstreams upstreams;
+    private RecipientLookup recipients;
+    private MailDispatcher dispatcher;
+    private DailyDedup dedup;
+    private BatchConsumer<StepUpdateView> batches;
+    private ZoneId zone;
+    private final StageMetrics lookups = new StageMetrics();
 
     @Override
     public Completable rxStart() {
-        mailClient = MailClient.createShared(vertx, MailerConfig.config());
-        webClient = WebClient.create(vertx);
-
-        KafkaConsumer.<String, JsonObject>create(vertx, KafkaConfig.consumerConfig("congrats-service"))
-                .subscribe("daily.step.updates")
-                .toFlowable()
-                .filter(this::above10k)
-                .distinct(KafkaConsumerRecord::key)
-                .flatMapSingle(this::sendmail)
-                .doOnError(err -> logger.error("Woops", err))
-                .retryWhen(this::retryLater)
-                .subscribe(mailResult -> logger.info("Congratulated {}", mailResult.getRecipients()));
-
-        return Completable.complete();
+        JsonObject lookupConfig = config().getJsonObject("lookup", new JsonObject());
+        MailConfig mailConfig = MailerConfig.config(config().getJsonObject("smtp", new JsonObject()));
+        upstreams = new Upstreams(vertx, config().getJsonObject("upstreams", new JsonObject()));
+        recipients = new RecipientLookup(vertx, upstreams.get("user-profiles", "localhost", 3000), lookupConfig);
+        dispatcher = new MailDispatcher(MailClient.createShared(vertx, mailConfig), mailConfig.getMaxPoolSize());
+        vertx.eventBus().<JsonObject>consumer("congrats.metrics", msg -> msg.reply(metrics()));
+        KafkaConsumer.<String, JsonObject>create(vertx, KafkaConfig.profileUpdatesConfig())
+                .handler(record -> recipients.invalidate(record.key()))
+                .subscribe("user.profile.updates");
+
+        JsonObject dedupConfig = config().getJsonObject("dedup", new JsonObject());
+        zone = ZoneId.of(dedupConfig.getString("zone", ZoneId.systemDefault().getId()));
+        int initialCapacity = dedupConfig.getInteger("initialCapacity", 1024);
+        String dir = dedupConfig.getString("dir");
+        if (dir == null) {
+            dedup = new DailyDedup(initialCapacity);
+            return startPipeline(lookupConfig);
+        }
+        Path dedupDir = Paths.get(dir);
+        return vertx.<DailyDedup>rxExecuteBlocking(promise -> {
+            try {
+                promise.complete(DailyDedup.load(dedupDir, LocalDate.now(zone), initialCapacity));
+            } catch (IOException e) {
+                promise.fail(e);
+            }
+        })
+                .flatMapCompletable(loaded -> {
+                    dedup = loaded;
+                    logger.info("Loaded {} congratulated devices from {}", loaded.size(), dedupDir);
+                    vertx.setPeriodic(dedupConfig.getLong("flushMs", 1000L), id -> saveDedup(dedupDir));
+                    return startPipeline(lookupConfig);
+                });
+    }
+
+    private Completable startPipeline(JsonObject lookupConfig) {
+        int maxConcurrency = lookupConfig.getInteger("maxConcurrency", 16);
+        JsonObject consumerConfig = config().getJsonObject("consumer", new JsonObject());
+        KafkaConsumer<String, StepUpdateView> consumer = KafkaConsumer.create(vertx,
+                KafkaConfig.consumerConfig("congrats-service", consumerConfig));
+        batches = new BatchConsumer<>(vertx, consumer, consumerConfig, records -> {
+            // A device may have several records in a batch, and is only added to the dedup once its email is sent
+            Set<String> inBatch = new HashSet<>();
+            return records
+                    .filter(this::above10k)
+                    .filter(this::hasDeviceId)
+                    .filter(record -> notCongratulatedYet(record, inBatch))
+                    .flatMapMaybe(this::makeEmail, false, maxConcurrency)
+                    .compose(congratulations -> dispatcher.dispatch(congratulations, Congratulation::message))
+                    .doOnNext(congratulation -> {
+                        dedup.add(congratulation.deviceId, congratulation.day);
+                        logger.info("Congratulated {}", congratulation.message.getTo());
+                    })
+                    .ignoreElements();
+        });
+        return batches.start("daily.step.updates");
+    }
+
+    /*
+     * A record that cannot be handled is skipped rather than failing the batch, since it would fail it again each time
+     * the batch is consumed.
+     */
+    private boolean hasDeviceId(KafkaConsumerRecord<String, StepUpdateView> record) {
+        if (record.value().deviceId() == null) {
+            logger.error("Invalid step update at offset {} of partition {} (skipped)", record.offset(),
+                    record.partition());
+            return false;
+        }
+        return true;
+    }
+
+    private boolean notCongratulatedYet(KafkaConsumerRecord<String, StepUpdateView> record, Set<String> inBatch) {
+        String deviceId = record.value().deviceId();
+        LocalDate day = day(record);
+        return !dedup.contains(deviceId, day) && inBatch.add(deviceId + '/' + day);
     }
 
-    private Single<MailResult> sendmail(KafkaConsumerRecord<String, JsonObject> record) {
-        String deviceId = record.value().getString("deviceId");
-        Integer stepsCount = record.value().getInteger("stepsCount");
-        return webClient
-                .get(3000, "localhost", "/owns/" + deviceId)
-                .as(BodyCodec.jsonObject())
-                .rxSend()
-                .map(HttpResponse::body)
-                .map(json -> json.getString("username"))
-                .flatMap(this::getEmail)
-                .map(email -> makeEmail(stepsCount, email))
-                .flatMap(mailClient::rxSendMail);
+    private LocalDate day(KafkaConsumerRecord<String, StepUpdateView> record) {
+        return Instant.ofEpochMilli(record.timestamp()).atZone(zone).toLocalDate();
     }
 
-    private Single<String> getEmail(String username) {
-        return webClient
-                .get(3000, "localhost", "/" + username)
-                .as(BodyCodec.jsonObject())
-                .rxSend()
-                .map(HttpResponse::body)
-                .map(json -> json.getString("email"));
+    /*
+     * The batch is taken on the event loop, and written on a worker (ordered, so the files are appended in order). A
+     * batch that could not be written is put back, to be written again with the next one.
+     */
+    private void saveDedup(Path dir) {
+        Map<LocalDate, DailyDedup.LongList> batch = dedup.takeUnsaved();
+        if (batch.isEmpty()) {
+            return;
+        }
+        vertx.rxExecuteBlocking(promise -> {
+            try {
+                DailyDedup.flush(dir, batch);
+                promise.complete();
+            } catch (IOException e) {
+                promise.fail(e);
+            }
+        }, true).subscribe(ok -> {
+        }, err -> {
+            logger.error("Could not save the dedup in {}", dir, err);
+            dedup.restoreUnsaved(batch);
+        });
     }
 
-    private MailMessage makeEmail(Integer stepsCount, String email) {
+    private JsonObject metrics() {
+        return new JsonObject()
+                .put("lookup", lookups.toJson().put("recipients", recipients.metrics()))
+                .put("consumer", batches != null ? batches.metrics() : new JsonObject())
+                .put("dedup", dedup != null ? dedup.metrics() : new JsonObject())
+                .put("send", dispatcher.metrics())
+                .put("upstreams", upstreams.metrics());
+    }
+
+    /*
+     * A record whose recipient does not exist is skipped. Any other lookup failure fails the batch, so that it is
+     * consumed again later (see BatchConsumer).
+     */
+    private Maybe<Congratulation> makeEmail(KafkaConsumerRecord<String, StepUpdateView> record) {
+        String deviceId = record.value().deviceId();
+        int stepsCount = record.value().stepsCount();
+        LocalDate day = day(record);
+        return Maybe.defer(() -> {
+            long startedAt = System.nanoTime();
+            return recipients.email(deviceId)
+                    .map(email -> new Congratulation(deviceId, day, makeEmail(stepsCount, email)))
+                    .doOnSuccess(email -> lookups.success(System.nanoTime() - startedAt))
+                    .doOnError(err -> {
+                        lookups.failure(System.nanoTime() - startedAt);
+                        logger.error("Could not find the recipient for device {}", deviceId, err);
+                    })
+                    .toMaybe()
+                    .onErrorComplete(err -> err instanceof UnknownRecipientException);
+        });
+    }
+
+    private MailMessage makeEmail(int stepsCount, String email) {
         return new MailMessage()
                 .setFrom("noreply@tenksteps.tld")
                 .setTo(email)
@@ -76,12 +190,28 @@ public class CongratsVerticle extends AbstractVerticle {
                 .setText("Congratulations on reaching " + stepsCount + " steps today!\n\n- The 10k Steps Team\n");
     }
 
-    private boolean above10k(KafkaConsumerRecord<String, JsonObject> record) {
-        return record.value().getInteger("stepsCount") >= 10_000;
+    /*
+     * Runs before the JSON document of the record is decoded (see StepUpdateView).
+     */
+    private boolean above10k(KafkaConsumerRecord<String, StepUpdateView> record) {
+        return record.value().stepsCount() >= 10_000;
     }
 
-    private Flowable<Throwable> retryLater(Flowable<Throwable> errs) {
-        return errs.delay(10, TimeUnit.SECONDS, RxHelper.scheduler(vertx));
+    private static class Congratulation {
+
+        final String deviceId;
+        final LocalDate day;
+        final MailMessage message;
+
+        Congratulation(String deviceId, LocalDate day, MailMessage message) {
+            this.deviceId = deviceId;
+            this.day = day;
+            this.message = message;
+        }
+
+        MailMessage message() {
+            return message;
+        }
     }
 
     public static void main(String[] args) {
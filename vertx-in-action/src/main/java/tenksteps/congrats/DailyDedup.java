@@ -0,0 +1,280 @@
+package tenksteps.congrats;
+
+import io.vertx.core.json.JsonObject;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * DailyDedup remembers which devices have already been congratulated on the current day and the previous one, as
+ * 64-bit fingerprints in open-addressing tables of longs. Records for older days are considered as already handled.
+ *
+ * With a directory, the fingerprints of each day are appended to a yyyy-mm-dd.dedup file by flush and loaded again by
+ * load. A batch handed over by takeUnsaved stays unsaved until a flush succeeds (see restoreUnsaved).
+ *
+ * A dedup is confined to the event loop of the verticle that owns it, except for the static file operations.
+ *
+ * @author sm@creativefusion.net
+ */
+class DailyDedup {
+
+    private static final String SUFFIX = ".dedup";
+
+    private final int initialCapacity;
+    private LocalDate currentDay;
+    private LongSet current;
+    private LongSet previous;
+    private Map<LocalDate, LongList> unsaved = new LinkedHashMap<>();
+
+    // Metrics
+    private long added;
+    private long duplicates;
+    private long tooOld;
+
+    DailyDedup(int initialCapacity) {
+        this.initialCapacity = initialCapacity;
+        this.current = new LongSet(initialCapacity);
+        this.previous = new LongSet(initialCapacity);
+    }
+
+    /*
+     * True when the device has been added for that day, or when the day is older than the previous one (counted in the
+     * tooOld metric). Unlike add, it does not change the days or the devices that are kept.
+     */
+    boolean contains(String deviceId, LocalDate day) {
+        if (currentDay == null || day.isAfter(currentDay)) {
+            return false;
+        }
+        if (day.equals(currentDay)) {
+            return current.contains(fingerprint(deviceId));
+        }
+        if (day.equals(currentDay.minusDays(1))) {
+            return previous.contains(fingerprint(deviceId));
+        }
+        tooOld++;
+        return true;
+    }
+
+    /*
+     * Returns true when the device had not been added yet for that day.
+     */
+    boolean add(String deviceId, LocalDate day) {
+        LongSet set = setFor(day);
+        if (set == null) {
+            tooOld++;
+            return false;
+        }
+        long key = fingerprint(deviceId);
+        if (!set.add(key)) {
+            duplicates++;
+            return false;
+        }
+        added++;
+        unsaved.computeIfAbsent(day, d -> new LongList()).add(key);
+        return true;
+    }
+
+    Map<LocalDate, LongList> takeUnsaved() {
+        Map<LocalDate, LongList> batch = unsaved;
+        unsaved = new LinkedHashMap<>();
+        return batch;
+    }
+
+    /*
+     * Puts back a batch from takeUnsaved that could not be flushed, ahead of the devices added since.
+     */
+    void restoreUnsaved(Map<LocalDate, LongList> batch) {
+        unsaved.forEach((day, keys) -> batch.merge(day, keys, LongList::addAll));
+        unsaved = batch;
+    }
+
+    int size() {
+        return current.size + previous.size;
+    }
+
+    JsonObject metrics() {
+        return new JsonObject()
+                .put("day", currentDay != null ? currentDay.toString() : null)
+                .put("today", current.size)
+                .put("yesterday", previous.size)
+                .put("memoryBytes", current.memoryBytes() + previous.memoryBytes())
+                .put("added", added)
+                .put("duplicates", duplicates)
+                .put("tooOld", tooOld);
+    }
+
+    private LongSet setFor(LocalDate day) {
+        if (currentDay == null || day.isAfter(currentDay)) {
+            previous = day.minusDays(1).equals(currentDay) ? current : new LongSet(initialCapacity);
+            current = new LongSet(initialCapacity);
+            currentDay = day;
+        }
+        if (day.equals(currentDay)) {
+            return current;
+        }
+        return day.equals(currentDay.minusDays(1)) ? previous : null;
+    }
+
+    /*
+     * Blocking: loads the files of the given day and of the day before from the directory, and deletes the older ones.
+     */
+    static DailyDedup load(Path dir, LocalDate today, int initialCapacity) throws IOException {
+        Files.createDirectories(dir);
+        DailyDedup dedup = new DailyDedup(initialCapacity);
+        dedup.setFor(today);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*" + SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                LocalDate day;
+                try {
+                    day = LocalDate.parse(name.substring(0, name.length() - SUFFIX.length()));
+                } catch (DateTimeParseException e) {
+                    continue;
+                }
+                LongSet set = day.isAfter(today) ? null : dedup.setFor(day);
+                if (set == null) {
+                    Files.delete(file);
+                } else {
+                    readInto(file, set);
+                }
+            }
+        }
+        return dedup;
+    }
+
+    /*
+     * Blocking: appends a batch from takeUnsaved to the files of the directory.
+     */
+    static void flush(Path dir, Map<LocalDate, LongList> batch) throws IOException {
+        for (Map.Entry<LocalDate, LongList> entry : batch.entrySet()) {
+            Path file = dir.resolve(entry.getKey() + SUFFIX);
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND, StandardOpenOption.WRITE)))) {
+                LongList keys = entry.getValue();
+                for (int i = 0; i < keys.size; i++) {
+                    out.writeLong(keys.values[i]);
+                }
+            }
+        }
+    }
+
+    private static void readInto(Path file, LongSet set) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            while (true) {
+                set.add(in.readLong());
+            }
+        } catch (EOFException | NoSuchFileException e) {
+            // End of the file (a torn last write is ignored too)
+        }
+    }
+
+    static long fingerprint(String deviceId) {
+        // FNV-1a over the identifier, finished with the MurmurHash3 mixer
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < deviceId.length(); i++) {
+            hash ^= deviceId.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash == LongSet.EMPTY ? 1L : hash;
+    }
+
+    /*
+     * Open-addressing set of longs with linear probing, grown when half full.
+     */
+    static class LongSet {
+
+        static final long EMPTY = 0L;
+
+        private long[] keys;
+        private int mask;
+        private int size;
+
+        LongSet(int initialCapacity) {
+            int tableSize = Integer.highestOneBit(Math.max(2, initialCapacity) * 2 - 1) << 1;
+            keys = new long[tableSize];
+            mask = tableSize - 1;
+        }
+
+        boolean contains(long key) {
+            int slot = (int) (key ^ (key >>> 32)) & mask;
+            while (keys[slot] != EMPTY) {
+                if (keys[slot] == key) {
+                    return true;
+                }
+                slot = (slot + 1) & mask;
+            }
+            return false;
+        }
+
+        boolean add(long key) {
+            int slot = (int) (key ^ (key >>> 32)) & mask;
+            while (keys[slot] != EMPTY) {
+                if (keys[slot] == key) {
+                    return false;
+                }
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = key;
+            size++;
+            if (size * 2 > keys.length) {
+                grow();
+            }
+            return true;
+        }
+
+        long memoryBytes() {
+            return keys.length * 8L;
+        }
+
+        private void grow() {
+            long[] old = keys;
+            keys = new long[old.length * 2];
+            mask = keys.length - 1;
+            size = 0;
+            for (long key : old) {
+                if (key != EMPTY) {
+                    add(key);
+                }
+            }
+        }
+    }
+
+    static class LongList {
+
+        long[] values = new long[16];
+        int size;
+
+        void add(long value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        LongList addAll(LongList other) {
+            for (int i = 0; i < other.size; i++) {
+                add(other.values[i]);
+            }
+            return this;
+        }
+    }
+}
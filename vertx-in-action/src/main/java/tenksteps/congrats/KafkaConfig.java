@@ -0,0 +1,46 @@
+package tenksteps.congrats;
+
+import io.vertx.core.json.JsonObject;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Kafka consumer configuration of the congratulation service. Offsets are not committed automatically but by
+ * BatchConsumer, once the records of a batch have been handled.
+ *
+ * @author sm@creativefusion.net
+ */
+class KafkaConfig {
+
+    static Map<String, String> consumerConfig(String group, JsonObject consumer) {
+        Map<String, String> config = new HashMap<>();
+        config.put("bootstrap.servers", "localhost:9092");
+        config.put("key.deserializer", "org.apache.kafka.common.serialization.StringDeserializer");
+        config.put("value.deserializer", "tenksteps.congrats.StepUpdateDeserializer");
+        config.put("auto.offset.reset", "earliest");
+        config.put("enable.auto.commit", "false");
+        config.put("max.poll.records", String.valueOf(consumer.getInteger("maxPollRecords", 500)));
+        config.put("fetch.min.bytes", String.valueOf(consumer.getInteger("fetchMinBytes", 1)));
+        config.put("fetch.max.wait.ms", String.valueOf(consumer.getInteger("fetchMaxWaitMs", 500)));
+        config.put("max.poll.interval.ms", String.valueOf(consumer.getInteger("maxPollIntervalMs", 300_000)));
+        config.put("group.id", group);
+        return config;
+    }
+
+    /*
+     * Every instance must see every profile update, hence a consumer group of its own, which starts from the latest
+     * records (older updates are covered by the cache expiration).
+     */
+    static Map<String, String> profileUpdatesConfig() {
+        Map<String, String> config = new HashMap<>();
+        config.put("bootstrap.servers", "localhost:9092");
+        config.put("key.deserializer", "org.apache.kafka.common.serialization.StringDeserializer");
+        config.put("value.deserializer", "io.vertx.kafka.client.serialization.JsonObjectDeserializer");
+        config.put("auto.offset.reset", "latest");
+        config.put("enable.auto.commit", "true");
+        config.put("group.id", "congrats-profile-updates-" + UUID.randomUUID());
+        return config;
+    }
+}
@@ -0,0 +1,81 @@
+package tenksteps.congrats;
+
+import io.reactivex.Flowable;
+import io.reactivex.Maybe;
+import io.reactivex.functions.Function;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.mail.MailMessage;
+import io.vertx.ext.mail.MailResult;
+import io.vertx.reactivex.ext.mail.MailClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.concurrent.TimeoutException;
+import java.util.regex.Pattern;
+
+/**
+ * MailDispatcher is the last stage of the congratulation pipeline: it sends emails with at most maxConcurrentSends
+ * of them in flight, which should match the SMTP connection pool size of the mail client (see MailerConfig), so that
+ * emails do not pile up in the mail client but stay upstream, where back-pressure pauses the Kafka consumer.
+ *
+ * An email that the SMTP server definitively refuses (a 5xx reply, such as an unknown mailbox) is logged, counted in
+ * the metrics and skipped. Any other failure (a 4xx reply, a connection failure or a timeout) is propagated, so that
+ * the records of the batch are consumed again later instead of being committed without their emails.
+ *
+ * @author sm@creativefusion.net
+ */
+class MailDispatcher {
+
+    private static final Logger logger = LoggerFactory.getLogger(MailDispatcher.class);
+
+    // The server reply, either alone or after the prefix the mail client gives to the failure of each SMTP command
+    private static final Pattern PERMANENT_REPLY = Pattern.compile("^(?:(?:sender address not accepted"
+            + "|recipient address not accepted|DATA command not accepted|sending data failed): )?5\\d\\d[ -]");
+
+    private final MailClient mailClient;
+    private final int maxConcurrentSends;
+    private final StageMetrics sends = new StageMetrics();
+
+    MailDispatcher(MailClient mailClient, int maxConcurrentSends) {
+        this.mailClient = mailClient;
+        this.maxConcurrentSends = maxConcurrentSends;
+    }
+
+    /*
+     * Sends the email of each item, and emits the items whose email has been sent.
+     */
+    <T> Flowable<T> dispatch(Flowable<T> items, Function<T, MailMessage> message) {
+        return items.flatMapMaybe(item -> send(message.apply(item)).map(result -> item), false, maxConcurrentSends);
+    }
+
+    JsonObject metrics() {
+        return sends.toJson().put("maxConcurrentSends", maxConcurrentSends);
+    }
+
+    /*
+     * The mail client reports SMTP errors as messages that contain the server reply, e.g. "recipient address not
+     * accepted: 550 No such user". Only such replies are permanent: I/O errors and timeouts never are, whatever
+     * numbers their messages contain.
+     */
+    static boolean isPermanentFailure(Throwable err) {
+        if (err instanceof IOException || err instanceof TimeoutException || err.getMessage() == null) {
+            return false;
+        }
+        return PERMANENT_REPLY.matcher(err.getMessage()).find();
+    }
+
+    private Maybe<MailResult> send(MailMessage message) {
+        return Maybe.defer(() -> {
+            long startedAt = System.nanoTime();
+            return mailClient.rxSendMail(message)
+                    .doOnSuccess(result -> sends.success(System.nanoTime() - startedAt))
+                    .doOnError(err -> {
+                        sends.failure(System.nanoTime() - startedAt);
+                        logger.error("Could not send an email to {}", message.getTo(), err);
+                    })
+                    .toMaybe()
+                    .onErrorComplete(MailDispatcher::isPermanentFailure);
+        });
+    }
+}
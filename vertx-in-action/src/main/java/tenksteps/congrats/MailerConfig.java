@@ -0,0 +1,20 @@
+package tenksteps.congrats;
+
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.mail.MailConfig;
+
+/**
+ * SMTP configuration of the congratulation service, from the smtp entry of the verticle configuration.
+ *
+ * @author sm@creativefusion.net
+ */
+class MailerConfig {
+
+    static MailConfig config(JsonObject smtp) {
+        return new MailConfig()
+                .setHostname(smtp.getString("host", "localhost"))
+                .setPort(smtp.getInteger("port", 1025))
+                .setKeepAlive(true)
+                .setMaxPoolSize(smtp.getInteger("poolSize", 8));
+    }
+}
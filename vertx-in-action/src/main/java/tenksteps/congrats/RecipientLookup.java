@@ -0,0 +1,161 @@
+package tenksteps.congrats;
+
+import io.reactivex.Flowable;
+import io.reactivex.Single;
+import io.reactivex.subjects.SingleSubject;
+import io.vertx.core.json.JsonObject;
+import io.vertx.reactivex.core.Vertx;
+import io.vertx.reactivex.ext.web.codec.BodyCodec;
+import tenksteps.upstream.Upstream;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * RecipientLookup finds the email address of the owner of a device, which takes two requests to the user profile
+ * service (/owns/:deviceId for the username, then /:username for the profile).
+ *
+ * Lookups are batched and deduplicated, both steps are cached (see TtlCache), and invalidate drops the address of a
+ * user whose profile has been updated. A lookup fails with an UnknownRecipientException when the device or the user
+ * does not exist, and with the upstream error otherwise.
+ *
+ * A lookup is confined to the event loop of the verticle that owns it.
+ *
+ * @author sm@creativefusion.net
+ */
+class RecipientLookup {
+
+    private final Vertx vertx;
+    private final Upstream userProfiles;
+    private final long batchWindowMillis;
+    private final int batchSize;
+    private final int maxConcurrency;
+    private final TtlCache<String> owners;
+    private final TtlCache<String> emails;
+    private Map<String, SingleSubject<String>> pending = new LinkedHashMap<>();
+    private final Map<String, SingleSubject<String>> inFlight = new LinkedHashMap<>();
+    private long flushTimerId = -1L;
+
+    // Metrics
+    private final StageMetrics fetches = new StageMetrics();
+    private long batches;
+    private long batchedDevices;
+    private long invalidations;
+
+    RecipientLookup(Vertx vertx, Upstream userProfiles, JsonObject config) {
+        this.vertx = vertx;
+        this.userProfiles = userProfiles;
+        this.batchWindowMillis = config.getLong("batchWindowMs", 20L);
+        this.batchSize = config.getInteger("batchSize", 100);
+        this.maxConcurrency = config.getInteger("maxConcurrency", 16);
+        int maxEntries = config.getInteger("maxEntries", 10_000);
+        this.owners = new TtlCache<>(config.getLong("ownersTtlMs", 86_400_000L), maxEntries);
+        this.emails = new TtlCache<>(config.getLong("ttlMs", 600_000L), maxEntries);
+    }
+
+    Single<String> email(String deviceId) {
+        return Single.defer(() -> {
+            String username = owners.get(deviceId);
+            String email = username != null ? emails.get(username) : null;
+            if (email != null) {
+                return Single.just(email);
+            }
+            SingleSubject<String> lookup = inFlight.get(deviceId);
+            if (lookup != null) {
+                return lookup;
+            }
+            lookup = pending.computeIfAbsent(deviceId, key -> SingleSubject.create());
+            if (pending.size() >= batchSize) {
+                flush();
+            } else if (flushTimerId < 0L) {
+                flushTimerId = vertx.setTimer(batchWindowMillis, id -> flush());
+            }
+            return lookup;
+        });
+    }
+
+    void invalidate(String username) {
+        invalidations++;
+        emails.invalidate(username);
+    }
+
+    JsonObject metrics() {
+        return new JsonObject()
+                .put("owners", owners.metrics())
+                .put("emails", emails.metrics())
+                .put("batches", batches)
+                .put("meanBatchSize", batches == 0 ? 0.0d : (double) batchedDevices / batches)
+                .put("inFlight", inFlight.size())
+                .put("fetches", fetches.toJson());
+    }
+
+    private void flush() {
+        if (flushTimerId >= 0L) {
+            vertx.cancelTimer(flushTimerId);
+            flushTimerId = -1L;
+        }
+        Map<String, SingleSubject<String>> batch = pending;
+        pending = new LinkedHashMap<>();
+        inFlight.putAll(batch);
+        batches++;
+        batchedDevices += batch.size();
+
+        Flowable.fromIterable(batch.entrySet())
+                .flatMapSingle(entry -> fetch(entry.getKey())
+                        .doOnEvent((email, err) -> {
+                            inFlight.remove(entry.getKey());
+                            if (err != null) {
+                                entry.getValue().onError(err);
+                            } else {
+                                entry.getValue().onSuccess(email);
+                            }
+                        })
+                        .onErrorReturnItem(""), false, maxConcurrency)
+                .subscribe();
+    }
+
+    private Single<String> fetch(String deviceId) {
+        return Single.defer(() -> {
+            long startedAt = System.nanoTime();
+            long invalidationsAtStart = invalidations;
+            String owner = owners.peek(deviceId);
+            Single<String> username = owner != null ? Single.just(owner) : get("/owns/" + deviceId)
+                    .map(json -> field(json, "username", "/owns/" + deviceId))
+                    .doOnSuccess(name -> owners.put(deviceId, name));
+            return username
+                    .flatMap(name -> get("/" + name)
+                            .map(json -> field(json, "email", "/" + name))
+                            .doOnSuccess(email -> {
+                                if (invalidations == invalidationsAtStart) {
+                                    emails.put(name, email);
+                                }
+                            }))
+                    .doOnSuccess(email -> fetches.success(System.nanoTime() - startedAt))
+                    .doOnError(err -> fetches.failure(System.nanoTime() - startedAt));
+        });
+    }
+
+    private static String field(JsonObject json, String name, String uri) {
+        String value = json != null ? json.getString(name) : null;
+        if (value == null) {
+            throw new UnknownRecipientException("No " + name + " in " + uri);
+        }
+        return value;
+    }
+
+    private Single<JsonObject> get(String uri) {
+        return userProfiles.guarded(() -> userProfiles.rxWebClient()
+                        .get(uri)
+                        .as(BodyCodec.jsonObject())
+                        .rxSend(), resp -> resp.statusCode() >= 500)
+                .map(resp -> {
+                    if (resp.statusCode() == 404) {
+                        throw new UnknownRecipientException("No such user or device: " + uri);
+                    }
+                    if (resp.statusCode() != 200) {
+                        throw new IllegalStateException("Unexpected status code " + resp.statusCode() + " for " + uri);
+                    }
+                    return resp.body();
+                });
+    }
+}
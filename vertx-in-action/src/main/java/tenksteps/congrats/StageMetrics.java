@@ -0,0 +1,68 @@
+package tenksteps.congrats;
+
+import io.vertx.core.json.JsonObject;
+import tenksteps.upstream.LatencyHistogram;
+
+import java.util.function.LongSupplier;
+
+/**
+ * StageMetrics records the outcome and latency of each operation of a pipeline stage, and its throughput: how many
+ * operations completed during the last full second.
+ *
+ * Metrics are confined to the event loop of the verticle that owns them.
+ *
+ * @author sm@creativefusion.net
+ */
+class StageMetrics {
+
+    private final LongSupplier clock;
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private long succeeded;
+    private long failed;
+    private long currentSecond;
+    private long currentSecondCount;
+    private long lastSecondCount;
+
+    StageMetrics() {
+        this(System::currentTimeMillis);
+    }
+
+    StageMetrics(LongSupplier clock) {
+        this.clock = clock;
+    }
+
+    void success(long elapsedNanos) {
+        succeeded++;
+        latency.record(elapsedNanos);
+        tick();
+    }
+
+    void failure(long elapsedNanos) {
+        failed++;
+        latency.record(elapsedNanos);
+        tick();
+    }
+
+    JsonObject toJson() {
+        roll();
+        return new JsonObject()
+                .put("succeeded", succeeded)
+                .put("failed", failed)
+                .put("perSecond", lastSecondCount)
+                .put("latency", latency.toJson());
+    }
+
+    private void tick() {
+        roll();
+        currentSecondCount++;
+    }
+
+    private void roll() {
+        long second = clock.getAsLong() / 1000L;
+        if (second != currentSecond) {
+            lastSecondCount = second == currentSecond + 1 ? currentSecondCount : 0L;
+            currentSecond = second;
+            currentSecondCount = 0L;
+        }
+    }
+}
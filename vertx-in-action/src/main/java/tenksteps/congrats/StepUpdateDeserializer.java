@@ -0,0 +1,37 @@
+package tenksteps.congrats;
+
+import org.apache.kafka.common.header.Header;
+import org.apache.kafka.common.header.Headers;
+import org.apache.kafka.common.serialization.Deserializer;
+
+/**
+ * Kafka deserializer for the daily.step.updates values, which reads the steps count without decoding the JSON document
+ * (see StepUpdateView). When the record has a stepsCount header, the value bytes are not even scanned.
+ *
+ * @author sm@creativefusion.net
+ */
+public class StepUpdateDeserializer implements Deserializer<StepUpdateView> {
+
+    static final String STEPS_COUNT_HEADER = "stepsCount";
+
+    @Override
+    public StepUpdateView deserialize(String topic, byte[] data) {
+        return data == null ? null : StepUpdateView.of(data);
+    }
+
+    @Override
+    public StepUpdateView deserialize(String topic, Headers headers, byte[] data) {
+        if (data == null) {
+            return null;
+        }
+        Header header = headers != null ? headers.lastHeader(STEPS_COUNT_HEADER) : null;
+        if (header != null && header.value() != null) {
+            byte[] value = header.value();
+            int stepsCount = StepUpdateView.parseInt(value, 0, value.length);
+            if (stepsCount != StepUpdateView.MISSING) {
+                return StepUpdateView.of(data, stepsCount);
+            }
+        }
+        return StepUpdateView.of(data);
+    }
+}
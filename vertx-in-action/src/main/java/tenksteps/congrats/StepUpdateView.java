@@ -0,0 +1,172 @@
+package tenksteps.congrats;
+
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.JsonObject;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * StepUpdateView is the value of a daily.step.updates record as seen by the congratulation service: the steps count is
+ * known as soon as the record has been read, from the stepsCount header or a scan of the raw bytes, but the JSON
+ * document is only decoded when it is first needed. The result is always the same as with a JsonObject.
+ *
+ * @author sm@creativefusion.net
+ */
+final class StepUpdateView {
+
+    static final int MISSING = Integer.MIN_VALUE;
+
+    private static final byte[] STEPS_COUNT = "\"stepsCount\"".getBytes(StandardCharsets.US_ASCII);
+
+    private final byte[] bytes;
+    private final int stepsCount;
+    private JsonObject json;
+    private boolean invalid;
+
+    private StepUpdateView(byte[] bytes, int stepsCount) {
+        this.bytes = bytes;
+        this.stepsCount = stepsCount;
+    }
+
+    static StepUpdateView of(byte[] bytes) {
+        int stepsCount = scanStepsCount(bytes);
+        if (stepsCount != MISSING) {
+            return new StepUpdateView(bytes, stepsCount);
+        }
+        JsonObject json;
+        try {
+            json = new JsonObject(Buffer.buffer(bytes));
+        } catch (RuntimeException e) {
+            // Not a JSON object: the record is dropped by the steps count filter rather than failing the poll
+            return new StepUpdateView(bytes, MISSING);
+        }
+        Object value = json.getValue("stepsCount");
+        boolean isInteger = value instanceof Integer || value instanceof Long;
+        StepUpdateView view = new StepUpdateView(bytes, isInteger ? ((Number) value).intValue() : MISSING);
+        view.json = json;
+        return view;
+    }
+
+    static StepUpdateView of(byte[] bytes, int stepsCount) {
+        return new StepUpdateView(bytes, stepsCount);
+    }
+
+    /*
+     * MISSING when the document has no integer stepsCount member (or is not a JSON object).
+     */
+    int stepsCount() {
+        return stepsCount;
+    }
+
+    /*
+     * Null when the document has no string deviceId member (or is not a JSON object).
+     */
+    String deviceId() {
+        JsonObject document = json();
+        Object deviceId = document != null ? document.getValue("deviceId") : null;
+        return deviceId instanceof String ? (String) deviceId : null;
+    }
+
+    /*
+     * Null when the value is not a JSON object, which the steps count alone (from the header or the scan) does not
+     * rule out.
+     */
+    JsonObject json() {
+        if (json == null && !invalid) {
+            try {
+                json = new JsonObject(Buffer.buffer(bytes));
+            } catch (RuntimeException e) {
+                invalid = true;
+            }
+        }
+        return json;
+    }
+
+    /*
+     * Returns MISSING when the top-level member is not found in its plain form, when its value is not a small integer,
+     * or when a top-level string has an escape sequence (it could be the member name, spelled differently).
+     */
+    static int scanStepsCount(byte[] bytes) {
+        int stepsCount = MISSING;
+        int depth = 0;
+        int pos = 0;
+        while (pos < bytes.length) {
+            byte b = bytes[pos];
+            if (b != '"') {
+                if (b == '{' || b == '[') {
+                    depth++;
+                } else if (b == '}' || b == ']') {
+                    depth--;
+                }
+                pos++;
+                continue;
+            }
+            int start = pos++;
+            boolean escaped = false;
+            while (pos < bytes.length && bytes[pos] != '"') {
+                if (bytes[pos] == '\\') {
+                    escaped = true;
+                    pos++;
+                }
+                pos++;
+            }
+            pos++;
+            if (depth != 1) {
+                continue;
+            }
+            if (escaped) {
+                return MISSING;
+            }
+            if (pos <= bytes.length && pos - start == STEPS_COUNT.length && startsWith(bytes, start, STEPS_COUNT)) {
+                int colon = skipWhitespace(bytes, pos);
+                if (colon < bytes.length && bytes[colon] == ':') {
+                    // Parsed in place: the scan then goes on over the value
+                    stepsCount = parseInt(bytes, skipWhitespace(bytes, colon + 1), bytes.length);
+                }
+            }
+        }
+        return stepsCount;
+    }
+
+    /*
+     * Parses an optionally negative integer of at most 9 digits, which must be followed by a delimiter.
+     */
+    static int parseInt(byte[] bytes, int pos, int end) {
+        boolean negative = pos < end && bytes[pos] == '-';
+        if (negative) {
+            pos++;
+        }
+        int start = pos;
+        int value = 0;
+        while (pos < end && bytes[pos] >= '0' && bytes[pos] <= '9') {
+            value = value * 10 + (bytes[pos++] - '0');
+            if (pos - start > 9) {
+                return MISSING;
+            }
+        }
+        if (pos == start || (pos < end && bytes[pos] != ',' && bytes[pos] != '}' && !isWhitespace(bytes[pos]))) {
+            return MISSING;
+        }
+        return negative ? -value : value;
+    }
+
+    private static boolean startsWith(byte[] bytes, int pos, byte[] prefix) {
+        for (int i = 0; i < prefix.length; i++) {
+            if (bytes[pos + i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int skipWhitespace(byte[] bytes, int pos) {
+        while (pos < bytes.length && isWhitespace(bytes[pos])) {
+            pos++;
+        }
+        return pos;
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\n' || b == '\r' || b == '\t';
+    }
+}
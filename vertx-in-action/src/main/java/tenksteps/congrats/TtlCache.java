@@ -0,0 +1,98 @@
+package tenksteps.congrats;
+
+import io.vertx.core.json.JsonObject;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+/**
+ * TtlCache is a read-through cache helper: values are kept for ttlMillis, and at most maxEntries of them (the least
+ * recently used one is evicted first). Lookups are counted, so that the hit ratio can be reported.
+ *
+ * A cache is confined to the event loop of the verticle that owns it.
+ *
+ * @author sm@creativefusion.net
+ */
+class TtlCache<V> {
+
+    private final LongSupplier clock;
+    private final long ttlMillis;
+    private final Map<String, Entry<V>> entries;
+
+    // Metrics
+    private long hits;
+    private long misses;
+    private long invalidations;
+
+    TtlCache(long ttlMillis, int maxEntries) {
+        this(ttlMillis, maxEntries, System::currentTimeMillis);
+    }
+
+    TtlCache(long ttlMillis, int maxEntries, LongSupplier clock) {
+        this.clock = clock;
+        this.ttlMillis = ttlMillis;
+        // Access-ordered, so that the eldest entry is the least recently used one
+        this.entries = new LinkedHashMap<String, Entry<V>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry<V>> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /*
+     * Returns null (and counts a miss) when there is no value for the key, or when it has expired.
+     */
+    V get(String key) {
+        Entry<V> entry = entries.get(key);
+        if (entry != null && clock.getAsLong() < entry.expiresAt) {
+            hits++;
+            return entry.value;
+        }
+        if (entry != null) {
+            entries.remove(key);
+        }
+        misses++;
+        return null;
+    }
+
+    /*
+     * Like get, but without counting the lookup, for a caller that already did.
+     */
+    V peek(String key) {
+        Entry<V> entry = entries.get(key);
+        return entry != null && clock.getAsLong() < entry.expiresAt ? entry.value : null;
+    }
+
+    void put(String key, V value) {
+        entries.put(key, new Entry<>(value, clock.getAsLong() + ttlMillis));
+    }
+
+    void invalidate(String key) {
+        if (entries.remove(key) != null) {
+            invalidations++;
+        }
+    }
+
+    JsonObject metrics() {
+        long lookups = hits + misses;
+        return new JsonObject()
+                .put("size", entries.size())
+                .put("hits", hits)
+                .put("misses", misses)
+                .put("hitRatio", lookups == 0 ? 0.0d : (double) hits / lookups)
+                .put("invalidations", invalidations);
+    }
+
+    private static class Entry<V> {
+
+        final V value;
+        final long expiresAt;
+
+        Entry(V value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package tenksteps.congrats;
+
+/**
+ * Thrown by RecipientLookup when the user profile service definitively answers that a device has no owner, or that
+ * the owner has no profile or email address. Unlike the other lookup failures, retrying does not help, so the record
+ * is skipped.
+ *
+ * @author sm@creativefusion.net
+ */
+class UnknownRecipientException extends RuntimeException {
+
+    UnknownRecipientException(String message) {
+        // No stack trace: this is an expected outcome, not a bug
+        super(message, null, false, false);
+    }
+}
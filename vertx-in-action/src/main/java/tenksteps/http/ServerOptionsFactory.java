@@ -0,0 +1,58 @@
+package tenksteps.http;
+
+import io.vertx.core.http.Http2Settings;
+import io.vertx.core.http.HttpServerOptions;
+import io.vertx.core.http.HttpVersion;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.net.PemKeyCertOptions;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+/**
+ * ServerOptionsFactory gives the HTTP server options of the public-facing verticles, from the server entry of their
+ * configuration (see the README). Vert.x 4.0 only compresses with gzip and deflate: Brotli needs a newer Netty.
+ *
+ * @author sm@creativefusion.net
+ */
+public final class ServerOptionsFactory {
+
+    private ServerOptionsFactory() {
+    }
+
+    public static HttpServerOptions create(JsonObject config) {
+        HttpServerOptions options = new HttpServerOptions()
+                .setCompressionSupported(config.getBoolean("compression", true))
+                .setCompressionLevel(config.getInteger("compressionLevel", 6))
+                .setTcpNoDelay(config.getBoolean("tcpNoDelay", true))
+                .setTcpFastOpen(config.getBoolean("tcpFastOpen", false))
+                .setTcpQuickAck(config.getBoolean("tcpQuickAck", false))
+                .setReusePort(config.getBoolean("reusePort", false))
+                .setIdleTimeout(config.getInteger("idleTimeoutSeconds", 0));
+        if (config.containsKey("sendBufferSize")) {
+            options.setSendBufferSize(config.getInteger("sendBufferSize"));
+        }
+        if (config.containsKey("receiveBufferSize")) {
+            options.setReceiveBufferSize(config.getInteger("receiveBufferSize"));
+        }
+
+        boolean http2 = config.getBoolean("http2", true);
+        options.setHttp2ClearTextEnabled(http2)
+                .setInitialSettings(new Http2Settings()
+                        .setMaxConcurrentStreams(config.getLong("http2MaxConcurrentStreams", 100L))
+                        .setInitialWindowSize(config.getInteger("http2InitialWindowSize", 65_535)));
+
+        JsonObject tls = config.getJsonObject("tls");
+        if (tls != null) {
+            options.setSsl(true)
+                    .setPemKeyCertOptions(new PemKeyCertOptions()
+                            .setCertPath(tls.getString("certPath"))
+                            .setKeyPath(tls.getString("keyPath")))
+                    .setUseAlpn(http2)
+                    .setAlpnVersions(http2
+                            ? Arrays.asList(HttpVersion.HTTP_2, HttpVersion.HTTP_1_1)
+                            : Collections.singletonList(HttpVersion.HTTP_1_1));
+        }
+        return options;
+    }
+}
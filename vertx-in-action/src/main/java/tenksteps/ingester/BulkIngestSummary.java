@@ -0,0 +1,48 @@
+package tenksteps.ingester;
+
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+/**
+ * BulkIngestSummary accumulates the outcome of each line of a bulk upload while it is being streamed. Accepted lines
+ * are only counted, and rejected lines are reported with their line number and the reason for the rejection.
+ *
+ * The number of detailed rejections is capped so that a large upload of garbage does not make the summary itself
+ * grow without bounds.
+ *
+ * @author sm@creativefusion.net
+ */
+class BulkIngestSummary {
+
+    private static final int MAX_REPORTED_REJECTIONS = 1000;
+
+    private long lines;
+    private long accepted;
+    private long rejected;
+    private final JsonArray rejections = new JsonArray();
+
+    long nextLine() {
+        return ++lines;
+    }
+
+    void accepted() {
+        accepted++;
+    }
+
+    void rejected(long line, String reason) {
+        rejected++;
+        if (rejections.size() < MAX_REPORTED_REJECTIONS) {
+            rejections.add(new JsonObject()
+                    .put("line", line)
+                    .put("reason", reason));
+        }
+    }
+
+    JsonObject toJson() {
+        return new JsonObject()
+                .put("lines", lines)
+                .put("accepted", accepted)
+                .put("rejected", rejected)
+                .put("rejections", rejections);
+    }
+}
@@ -0,0 +1,228 @@
+package tenksteps.ingester;
+
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.shareddata.Shareable;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.function.LongSupplier;
+
+/**
+ * DedupIndex remembers the (deviceId, deviceSync) pairs that were recently ingested, so that replays from devices
+ * that missed a response, or AMQP redeliveries, do not turn into duplicate Kafka records.
+ *
+ * To stay compact, the index does not keep the device identifiers: each pair is reduced to a 64-bit fingerprint, and
+ * the fingerprints live in primitive arrays (an open-addressing table plus a ring buffer of insertion order), which is
+ * under 50 bytes per entry with no per-entry object. The odds of two different pairs sharing a fingerprint are
+ * negligible for the number of entries we keep.
+ *
+ * Entries expire after a time-to-live, and when the index is full the oldest entry is evicted first. Since an entry
+ * is only added once and then expires, insertion order is also the least-recently-used order.
+ *
+ * The ingestion of a pair goes through start and finish, so that the index also knows the pairs being ingested: a
+ * replay that arrives while the first ingestion is still waiting for Kafka is reported as IN_PROGRESS rather than
+ * ingested a second time, and a pair is only remembered once its ingestion has succeeded.
+ *
+ * The index is shared by all the instances of the ingester through a local map (it is Shareable), since a device may
+ * reach any of them, so its methods are synchronized. They only do a few array accesses, and the lock is not held
+ * while waiting for Kafka.
+ *
+ * @author sm@creativefusion.net
+ */
+class DedupIndex implements Shareable {
+
+    enum Status {
+        NEW, INGESTED, IN_PROGRESS
+    }
+
+    private static final long EMPTY = 0L;
+
+    private final int capacity;
+    private final long ttlMillis;
+    private final LongSupplier clock;
+
+    // Open-addressing table with linear probing, sized at twice the capacity
+    private final long[] keys;
+    private final long[] times;
+    private final int mask;
+
+    // Ring buffer of the entries in insertion order
+    private final long[] ringKeys;
+    private final long[] ringTimes;
+    private int ringHead;
+    private int ringSize;
+
+    // Pairs being ingested, as many as there are events waiting for their Kafka acknowledgement
+    private final Set<Long> inProgress = new HashSet<>();
+
+    private int size;
+    private long lookups;
+    private long hits;
+    private long evictions;
+    private long concurrentDuplicates;
+
+    DedupIndex(int capacity, long ttlMillis) {
+        this(capacity, ttlMillis, System::currentTimeMillis);
+    }
+
+    DedupIndex(int capacity, long ttlMillis, LongSupplier clock) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("The dedup capacity must be positive: " + capacity);
+        }
+        this.capacity = capacity;
+        this.ttlMillis = ttlMillis;
+        this.clock = clock;
+        int tableSize = Integer.highestOneBit(Math.max(2, capacity) * 2 - 1) << 1;
+        this.keys = new long[tableSize];
+        this.times = new long[tableSize];
+        this.mask = tableSize - 1;
+        this.ringKeys = new long[capacity];
+        this.ringTimes = new long[capacity];
+    }
+
+    /*
+     * NEW when the caller must ingest the pair, and then call finish.
+     */
+    synchronized Status start(String deviceId, long deviceSync) {
+        if (contains(deviceId, deviceSync)) {
+            return Status.INGESTED;
+        }
+        if (!inProgress.add(fingerprint(deviceId, deviceSync))) {
+            concurrentDuplicates++;
+            return Status.IN_PROGRESS;
+        }
+        return Status.NEW;
+    }
+
+    synchronized void finish(String deviceId, long deviceSync, boolean ingested) {
+        inProgress.remove(fingerprint(deviceId, deviceSync));
+        if (ingested) {
+            add(deviceId, deviceSync);
+        }
+    }
+
+    synchronized boolean contains(String deviceId, long deviceSync) {
+        lookups++;
+        int slot = find(fingerprint(deviceId, deviceSync));
+        if (slot >= 0 && clock.getAsLong() - times[slot] < ttlMillis) {
+            hits++;
+            return true;
+        }
+        return false;
+    }
+
+    synchronized void add(String deviceId, long deviceSync) {
+        long now = clock.getAsLong();
+        evictExpired(now);
+        if (ringSize == capacity) {
+            evictOldest();
+        }
+
+        long key = fingerprint(deviceId, deviceSync);
+        int slot = find(key);
+        if (slot < 0) {
+            slot = index(key);
+            while (keys[slot] != EMPTY) {
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = key;
+            size++;
+        }
+        times[slot] = now;
+
+        int tail = (ringHead + ringSize) % capacity;
+        ringKeys[tail] = key;
+        ringTimes[tail] = now;
+        ringSize++;
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+    synchronized JsonObject metrics() {
+        return new JsonObject()
+                .put("size", size)
+                .put("capacity", capacity)
+                .put("lookups", lookups)
+                .put("hits", hits)
+                .put("hitRate", lookups == 0 ? 0.0d : (double) hits / lookups)
+                .put("evictions", evictions)
+                .put("inProgress", inProgress.size())
+                .put("concurrentDuplicates", concurrentDuplicates);
+    }
+
+    private void evictExpired(long now) {
+        while (ringSize > 0 && now - ringTimes[ringHead] >= ttlMillis) {
+            evictOldest();
+        }
+    }
+
+    private void evictOldest() {
+        long key = ringKeys[ringHead];
+        long time = ringTimes[ringHead];
+        ringHead = (ringHead + 1) % capacity;
+        ringSize--;
+        int slot = find(key);
+        // The pair may have been added again since, in which case a younger ring entry owns the table entry
+        if (slot >= 0 && times[slot] == time) {
+            delete(slot);
+            evictions++;
+        }
+    }
+
+    private int find(long key) {
+        int slot = index(key);
+        while (keys[slot] != EMPTY) {
+            if (keys[slot] == key) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    /*
+     * Backward-shift deletion: the entries following the hole in the probe sequence are moved back when the hole
+     * lies between their home slot and their current slot, so that lookups never need tombstones.
+     */
+    private void delete(int slot) {
+        int hole = slot;
+        int current = slot;
+        while (true) {
+            current = (current + 1) & mask;
+            if (keys[current] == EMPTY) {
+                break;
+            }
+            int home = index(keys[current]);
+            if (((current - home) & mask) >= ((current - hole) & mask)) {
+                keys[hole] = keys[current];
+                times[hole] = times[current];
+                hole = current;
+            }
+        }
+        keys[hole] = EMPTY;
+        times[hole] = 0L;
+        size--;
+    }
+
+    private int index(long key) {
+        return (int) (key ^ (key >>> 32)) & mask;
+    }
+
+    static long fingerprint(String deviceId, long deviceSync) {
+        // FNV-1a over the identifier, combined with the counter and finished with the MurmurHash3 mixer
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < deviceId.length(); i++) {
+            hash ^= deviceId.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        hash ^= deviceSync * 0x9e3779b97f4a7c15L;
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash == EMPTY ? 1L : hash;
+    }
+}
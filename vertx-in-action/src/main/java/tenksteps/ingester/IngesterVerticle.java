@@ -2,15 +2,21 @@ package tenksteps.ingester;
 
 import io.reactivex.Completable;
 import io.reactivex.Flowable;
+import io.reactivex.Single;
+import io.reactivex.disposables.Disposable;
+import io.reactivex.subjects.CompletableSubject;
 import io.vertx.amqp.AmqpClientOptions;
 import io.vertx.amqp.AmqpReceiverOptions;
+import io.vertx.core.DeploymentOptions;
 import io.vertx.core.json.JsonObject;
+import io.vertx.core.shareddata.LocalMap;
 import io.vertx.reactivex.amqp.AmqpClient;
 import io.vertx.reactivex.amqp.AmqpMessage;
 import io.vertx.reactivex.amqp.AmqpReceiver;
 import io.vertx.reactivex.core.AbstractVerticle;
 import io.vertx.reactivex.core.RxHelper;
 import io.vertx.reactivex.core.Vertx;
+import io.vertx.reactivex.core.buffer.Buffer;
 import io.vertx.reactivex.ext.web.Router;
 import io.vertx.reactivex.ext.web.RoutingContext;
 import io.vertx.reactivex.ext.web.handler.BodyHandler;
@@ -19,6 +25,7 @@ import io.vertx.reactivex.kafka.client.producer.KafkaProducerRecord;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.nio.file.Paths;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
@@ -27,6 +34,9 @@ import java.util.concurrent.TimeUnit;
  * The ingestion service is a good example of integration using different input protocols. Ingests from
  * AMQP and HTTP onto Kafka records.
  *
+ * Replays of ingested events are answered from a DedupIndex, and events that Kafka fails to acknowledge can be spilled
+ * to a local SpillQueue. See the README for the configuration entries.
+ *
  * @author sm@creativefusion.net
  */
 public class IngesterVerticle extends AbstractVerticle {
@@ -34,33 +44,148 @@ public class IngesterVerticle extends AbstractVerticle {
     private static final int HTTP_PORT = 3002;
     private static final Logger logger = LoggerFactory.getLogger(IngesterVerticle.class);
 
-    private KafkaProducer<String, JsonObject> updateProducer;
+    private KafkaProducer<String, StepEvent> updateProducer;
+    private RecordSender<String, StepEvent> sender;
+    private final OrderedAcks orderedAcks = new OrderedAcks();
+    private DedupIndex dedupIndex;
+    private SpillQueue spillQueue;
+    private AmqpClient amqpClient;
+    private Disposable amqpReceiving;
+    private int amqpSlot = -1;
 
     @Override
     public Completable rxStart() {
-        updateProducer = KafkaProducer.create(vertx, kafkaConfig());
+        if (config().getBoolean("kafka.producer.shared", true)) {
+            updateProducer = KafkaProducer.createShared(vertx, "ingester", kafkaConfig(config()));
+        } else {
+            updateProducer = KafkaProducer.create(vertx, kafkaConfig(config()));
+        }
+        sender = new RecordSender<>(updateProducer);
+        dedupIndex = sharedDedupIndex();
+
+        vertx.eventBus().<JsonObject>consumer("ingester.metrics", msg -> msg.reply(metrics()));
+
+        if (takeAmqpReceiverSlot()) {
+            receiveAmqpMessages();
+        }
+
+        Router router = Router.router(vertx);
+        router.post("/ingest").handler(BodyHandler.create());
+        router.post("/ingest").handler(this::httpIngest);
+        // No BodyHandler here: bulk uploads are streamed
+        router.post("/ingest/bulk").handler(this::httpBulkIngest);
+
+        return openSpillQueue().andThen(vertx.createHttpServer()
+                .requestHandler(router)
+                .rxListen(HTTP_PORT)
+                .ignoreElement());
+    }
+
+    @Override
+    public Completable rxStop() {
+        Completable closeSpillQueue = spillQueue == null ? Completable.complete() : spillQueue.close();
+        // The failed sends are spilled, and the spill queue waits for its own sends to Kafka before closing. Closing a
+        // shared producer only releases a reference, so it would not wait for the sends of this instance.
+        return closeAmqpReceiver()
+                .andThen(sender.drain())
+                .andThen(closeSpillQueue)
+                .andThen(updateProducer.rxClose());
+    }
+
+    private DedupIndex sharedDedupIndex() {
+        LocalMap<String, DedupIndex> indexes = vertx.getDelegate().sharedData().getLocalMap("ingester.dedup");
+        DedupIndex index = new DedupIndex(
+                config().getInteger("dedup.capacity", 100_000),
+                TimeUnit.SECONDS.toMillis(config().getLong("dedup.ttl.seconds", 600L)));
+        DedupIndex existing = indexes.putIfAbsent("index", index);
+        return existing != null ? existing : index;
+    }
 
+    /*
+     * The log directories are locked, so the instances of this process, or of another process sharing spill.dir, never
+     * write to the same log.
+     */
+    private Completable openSpillQueue() {
+        if (!config().containsKey("spill.dir")) {
+            return Completable.complete();
+        }
+        return SpillQueue.open(vertx,
+                Paths.get(config().getString("spill.dir")),
+                config().getInteger("spill.segment.size", 64 * 1024 * 1024),
+                config().getLong("spill.max.bytes", 1024L * 1024L * 1024L),
+                config().getInteger("spill.drain.rate", 1000),
+                event -> sender.send(makeKafkaRecord(event)).ignoreElement())
+                .doOnSuccess(queue -> spillQueue = queue)
+                .ignoreElement();
+    }
+
+    /*
+     * At most amqp.receivers instances consume from the broker, each holding a slot of a local map until it stops.
+     */
+    private boolean takeAmqpReceiverSlot() {
+        if (!config().containsKey("amqp.receivers")) {
+            return true;
+        }
+        LocalMap<Integer, String> slots = vertx.getDelegate().sharedData().getLocalMap("ingester.amqp.receivers");
+        int receivers = config().getInteger("amqp.receivers");
+        for (int slot = 0; slot < receivers; slot++) {
+            if (slots.putIfAbsent(slot, deploymentID()) == null) {
+                amqpSlot = slot;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /*
+     * The receiver is closed before its slot is given back, so there are never more than amqp.receivers of them.
+     */
+    private Completable closeAmqpReceiver() {
+        if (amqpClient == null) {
+            return Completable.complete();
+        }
+        amqpReceiving.dispose();
+        return amqpClient.rxClose()
+                .doOnError(this::logAmqpError)
+                .onErrorComplete()
+                .doOnComplete(this::releaseAmqpReceiverSlot);
+    }
+
+    private void releaseAmqpReceiverSlot() {
+        if (amqpSlot >= 0) {
+            vertx.getDelegate().sharedData().getLocalMap("ingester.amqp.receivers").remove(amqpSlot);
+            amqpSlot = -1;
+        }
+    }
+
+    private void receiveAmqpMessages() {
         AmqpClientOptions amqpOptions = amqpConfig();
         AmqpReceiverOptions receiverOptions = new AmqpReceiverOptions()
                 .setAutoAcknowledgement(false)
-                .setDurable(true);
+                .setDurable(true)
+                .setMaxBufferedMessages(config().getInteger("amqp.prefetch", 1000));
+        int maxInFlight = config().getInteger("amqp.max.in.flight", 256);
 
-        AmqpClient.create(vertx, amqpOptions)
+        // The flatMap window bounds the in-flight Kafka sends, and its demand drives the credits given to the broker
+        amqpClient = AmqpClient.create(vertx, amqpOptions);
+        amqpReceiving = amqpClient
                 .rxConnect()
                 .flatMap(conn -> conn.rxCreateReceiver("step-events", receiverOptions))
                 .flatMapPublisher(AmqpReceiver::toFlowable)
+                .flatMapCompletable(this::handleAmqpMessage, false, maxInFlight)
                 .doOnError(this::logAmqpError)
                 .retryWhen(this::retryLater)
-                .subscribe(this::handleAmqpMessage);
-
-        Router router = Router.router(vertx);
-        router.post().handler(BodyHandler.create());
-        router.post("/ingest").handler(this::httpIngest);
+                .subscribe();
+    }
 
-        return vertx.createHttpServer()
-                .requestHandler(router)
-                .rxListen(HTTP_PORT)
-                .ignoreElement();
+    private JsonObject metrics() {
+        JsonObject metrics = sender.metrics()
+                .put("amqpDevicesAwaitingAck", orderedAcks.pendingKeys())
+                .put("dedup", dedupIndex.metrics());
+        if (spillQueue != null) {
+            metrics.put("spill", spillQueue.metrics());
+        }
+        return metrics;
     }
 
     private Flowable<Throwable> retryLater(Flowable<Throwable> errs) {
@@ -75,12 +200,27 @@ public class IngesterVerticle extends AbstractVerticle {
                 .setPassword("simetraehcapa");
     }
 
-    Map<String, String> kafkaConfig() {
+    static Map<String, String> kafkaConfig(JsonObject verticleConfig) {
         Map<String, String> config = new HashMap<>();
+        long linger = verticleConfig.getLong("batch.linger.ms", 5L);
         config.put("bootstrap.servers", "localhost:9092");
         config.put("key.serializer", "org.apache.kafka.common.serialization.StringSerializer");
-        config.put("value.serializer", "io.vertx.kafka.client.serialization.JsonObjectSerializer");
+        config.put("value.serializer", "tenksteps.ingester.StepEventSerializer");
         config.put("acks", "1");
+        config.put("linger.ms", String.valueOf(linger));
+        config.put("batch.size", String.valueOf(verticleConfig.getInteger("batch.size.bytes", 64 * 1024)));
+        config.put("compression.type", verticleConfig.getString("batch.compression", "lz4"));
+        if (verticleConfig.containsKey("spill.dir")) {
+            // Both the metadata wait and the delivery of a record are bounded, and an expired record is not retried by
+            // the producer, so it can be spilled. Only a record whose request timed out may also have been written by
+            // the broker, as with any acks=1 failure, which the at-least-once consumers of incoming.steps tolerate.
+            // The producer requires delivery.timeout.ms >= linger.ms + request.timeout.ms.
+            long timeout = verticleConfig.getLong("spill.send.timeout.ms", 2000L);
+            long requestTimeout = Math.max(1L, timeout - linger);
+            config.put("max.block.ms", String.valueOf(timeout));
+            config.put("delivery.timeout.ms", String.valueOf(linger + requestTimeout));
+            config.put("request.timeout.ms", String.valueOf(requestTimeout));
+        }
         return config;
     }
 
@@ -88,59 +228,162 @@ public class IngesterVerticle extends AbstractVerticle {
         logger.error("Woops AMQP", err);
     }
 
-    private void handleAmqpMessage(AmqpMessage message) {
-        if (!"application/json".equals(message.contentType()) || invalidIngestedJson(message.bodyAsJsonObject())) {
+    private Completable handleAmqpMessage(AmqpMessage message) {
+        StepEvent event = null;
+        if ("application/json".equals(message.contentType())) {
+            event = StepEventCodec.decode(message.bodyAsBinary().getDelegate());
+        }
+        if (event == null) {
             logger.error("Invalid AMQP message (discarded): {}", message.bodyAsBinary());
             message.accepted();
-            return;
+            return Completable.complete();
         }
 
-        JsonObject payload = message.bodyAsJsonObject();
-        KafkaProducerRecord<String, JsonObject> record = makeKafkaRecord(payload);
-        updateProducer.rxSend(record).subscribe(
-                ok -> message.accepted(),
-                err -> {
+        DedupIndex.Status status = dedupIndex.start(event.deviceId(), event.deviceSync());
+        if (status == DedupIndex.Status.INGESTED) {
+            return orderedAcks.acknowledge(event.deviceId(), Single.just(true), ok -> message.accepted());
+        }
+        if (status == DedupIndex.Status.IN_PROGRESS) {
+            // Redelivered by the broker once the first ingestion is over
+            return orderedAcks.acknowledge(event.deviceId(), Single.just(true), ok -> message.released());
+        }
+
+        Single<Boolean> delivered = ingest(event)
+                .toSingleDefault(true)
+                .onErrorReturn(err -> {
                     logger.error("AMQP ingestion failed", err);
-                    message.rejected();
+                    return false;
                 });
+        return orderedAcks.acknowledge(event.deviceId(), delivered, ok -> {
+            if (ok) {
+                message.accepted();
+            } else {
+                message.rejected();
+            }
+        });
     }
 
     private void httpIngest(RoutingContext ctx) {
-        JsonObject payload = ctx.getBodyAsJson();
-        if (invalidIngestedJson(payload)) {
-            logger.error("Invalid HTTP JSON (discarded): {}", payload.encode());
+        StepEvent event = StepEventCodec.decode(ctx.getBody().getDelegate());
+        if (event == null) {
+            logger.error("Invalid HTTP JSON (discarded): {}", ctx.getBodyAsString());
             ctx.fail(400);
             return;
         }
 
-        KafkaProducerRecord<String, JsonObject> record = makeKafkaRecord(payload);
-        updateProducer.rxSend(record).subscribe(
-                ok -> ctx.response().end(),
+        DedupIndex.Status status = dedupIndex.start(event.deviceId(), event.deviceSync());
+        if (status == DedupIndex.Status.INGESTED) {
+            ctx.response().end();
+            return;
+        }
+        if (status == DedupIndex.Status.IN_PROGRESS) {
+            ctx.fail(409);
+            return;
+        }
+
+        ingest(event).subscribe(
+                () -> ctx.response().end(),
                 err -> {
                     logger.error("HTTP ingestion failed", err);
                     ctx.fail(500);
                 });
     }
 
-    private boolean invalidIngestedJson(JsonObject payload) {
-        return !payload.containsKey("deviceId") || !payload.containsKey("deviceSync") || !payload.containsKey("stepsCount");
+    /*
+     * Bulk uploads are newline-delimited JSON, one step event per line, and the body is never buffered as a whole.
+     * Errors are delayed so that the summary is only sent once the lines in flight have been acknowledged.
+     */
+    private void httpBulkIngest(RoutingContext ctx) {
+        BulkIngestSummary summary = new BulkIngestSummary();
+        Flowable<io.vertx.core.buffer.Buffer> chunks = ctx.request().toFlowable().map(Buffer::getDelegate);
+
+        LineSplitter.lines(chunks, config().getInteger("bulk.max.line.size", 4096))
+                .flatMapCompletable(line -> ingestBulkLine(summary, summary.nextLine(), line),
+                        true, config().getInteger("bulk.max.in.flight", 256))
+                .subscribe(
+                        () -> ctx.response()
+                                .putHeader("Content-Type", "application/json")
+                                .end(summary.toJson().encode()),
+                        err -> {
+                            logger.error("Bulk HTTP ingestion aborted", err);
+                            ctx.response()
+                                    .setStatusCode(400)
+                                    .putHeader("Content-Type", "application/json")
+                                    .end(summary.toJson().put("error", err.getMessage()).encode());
+                        });
+    }
+
+    private Completable ingestBulkLine(BulkIngestSummary summary, long lineNumber, io.vertx.core.buffer.Buffer line) {
+        if (StepEventCodec.isBlank(line)) {
+            return Completable.complete();
+        }
+
+        StepEvent event = StepEventCodec.decode(line);
+        if (event == null) {
+            summary.rejected(lineNumber, "invalid step event");
+            return Completable.complete();
+        }
+        DedupIndex.Status status = dedupIndex.start(event.deviceId(), event.deviceSync());
+        if (status == DedupIndex.Status.INGESTED) {
+            summary.accepted();
+            return Completable.complete();
+        }
+        if (status == DedupIndex.Status.IN_PROGRESS) {
+            summary.rejected(lineNumber, "already being ingested");
+            return Completable.complete();
+        }
+
+        return ingest(event)
+                .doOnComplete(summary::accepted)
+                .doOnError(err -> {
+                    logger.error("Bulk HTTP ingestion failed", err);
+                    summary.rejected(lineNumber, "ingestion failed");
+                })
+                .onErrorComplete();
+    }
+
+    /*
+     * An event is only spilled once the producer has reported its send as failed, or while older events are spilled.
+     * The result is hot, so the pair is finished with the actual outcome even when the caller goes away.
+     */
+    private Completable ingest(StepEvent event) {
+        Completable ingested;
+        if (spillQueue == null) {
+            ingested = sender.send(makeKafkaRecord(event)).ignoreElement();
+        } else if (spillQueue.hasBacklog()) {
+            ingested = spillQueue.append(event);
+        } else {
+            ingested = sender.send(makeKafkaRecord(event))
+                    .ignoreElement()
+                    .onErrorResumeNext(err -> {
+                        logger.warn("Kafka send failed, spilling the event to disk", err);
+                        return spillQueue.append(event);
+                    });
+        }
+        CompletableSubject outcome = CompletableSubject.create();
+        ingested
+                .doOnEvent(err -> dedupIndex.finish(event.deviceId(), event.deviceSync(), err == null))
+                .subscribe(outcome);
+        return outcome;
     }
 
-    private KafkaProducerRecord<String, JsonObject> makeKafkaRecord(JsonObject payload) {
-        String deviceId = payload.getString("deviceId");
-        JsonObject recordData = new JsonObject()
-                .put("deviceId", payload.getString("deviceId"))
-                .put("deviceSync", payload.getLong("deviceSync"))
-                .put("stepsCount", payload.getInteger("stepsCount"));
-        return KafkaProducerRecord.create("incoming.steps", deviceId, recordData);
+    /*
+     * The StepEventSerializer writes the StepEvent as JSON, so there is no intermediate JsonObject to build.
+     */
+    private KafkaProducerRecord<String, StepEvent> makeKafkaRecord(StepEvent event) {
+        return KafkaProducerRecord.create("incoming.steps", event.deviceId(), event);
     }
 
+    /*
+     * The first argument is the number of instances to deploy (one per core by default).
+     */
     public static void main(String[] args) {
         System.setProperty("vertx.logger-delegate-factory-class-name", "io.vertx.core.logging.SLF4JLogDelegateFactory");
+        int instances = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
         Vertx vertx = Vertx.vertx();
-        vertx.rxDeployVerticle(new IngesterVerticle())
+        vertx.rxDeployVerticle(IngesterVerticle.class.getName(), new DeploymentOptions().setInstances(instances))
                 .subscribe(
-                        ok -> logger.info("HTTP server started on port {}", HTTP_PORT),
+                        ok -> logger.info("HTTP server started on port {} with {} instances", HTTP_PORT, instances),
                         err -> logger.error("Woops", err));
     }
 }
\ No newline at end of file
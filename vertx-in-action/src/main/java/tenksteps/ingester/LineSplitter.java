@@ -0,0 +1,78 @@
+package tenksteps.ingester;
+
+import io.reactivex.Flowable;
+import io.vertx.core.buffer.Buffer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * LineSplitter cuts a stream of buffers into newline-delimited lines (without the newline), like a delimited
+ * RecordParser, except that the bytes that follow the last newline are a line too when the stream ends: a bulk upload
+ * does not have to end with a newline.
+ *
+ * A line longer than maxLineSize fails the stream with an IllegalStateException, like RecordParser.maxRecordSize, so
+ * that a body without newlines is never buffered as a whole. Since the lines are emitted with concatMapIterable, the
+ * demand of the downstream operators still reaches the stream of buffers (and pauses the HTTP request).
+ *
+ * @author sm@creativefusion.net
+ */
+class LineSplitter {
+
+    private final int maxLineSize;
+    private Buffer partial = Buffer.buffer();
+
+    private LineSplitter(int maxLineSize) {
+        this.maxLineSize = maxLineSize;
+    }
+
+    static Flowable<Buffer> lines(Flowable<Buffer> chunks, int maxLineSize) {
+        return Flowable.defer(() -> {
+            LineSplitter splitter = new LineSplitter(maxLineSize);
+            return chunks
+                    .concatMapIterable(splitter::push)
+                    .concatWith(Flowable.defer(() -> Flowable.fromIterable(splitter.finish())));
+        });
+    }
+
+    private List<Buffer> push(Buffer chunk) {
+        List<Buffer> lines = new ArrayList<>();
+        int start = 0;
+        for (int i = 0; i < chunk.length(); i++) {
+            if (chunk.getByte(i) == '\n') {
+                lines.add(line(chunk, start, i));
+                start = i + 1;
+            }
+        }
+        if (start < chunk.length()) {
+            checkSize(partial.length() + chunk.length() - start);
+            partial.appendBuffer(chunk, start, chunk.length() - start);
+        }
+        return lines;
+    }
+
+    private List<Buffer> finish() {
+        List<Buffer> lines = new ArrayList<>();
+        if (partial.length() > 0) {
+            lines.add(partial);
+            partial = Buffer.buffer();
+        }
+        return lines;
+    }
+
+    private Buffer line(Buffer chunk, int start, int end) {
+        checkSize(partial.length() + end - start);
+        if (partial.length() == 0) {
+            return chunk.getBuffer(start, end);
+        }
+        Buffer line = partial.appendBuffer(chunk, start, end - start);
+        partial = Buffer.buffer();
+        return line;
+    }
+
+    private void checkSize(int lineSize) {
+        if (lineSize > maxLineSize) {
+            throw new IllegalStateException("A line is longer than " + maxLineSize + " bytes");
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package tenksteps.ingester;
+
+import io.reactivex.Completable;
+import io.reactivex.Single;
+import io.reactivex.functions.Consumer;
+import io.reactivex.subjects.CompletableSubject;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * OrderedAcks lets many messages be processed concurrently while acknowledging the messages of a given key in their
+ * arrival order. Each key keeps track of the last pending acknowledgement: a new message acknowledges only once its
+ * own outcome is known and the previous message with the same key has been acknowledged.
+ *
+ * Keys with nothing pending are dropped, so the map only grows with the number of keys currently in flight. Like the
+ * other helpers of the ingester, it is confined to the verticle event loop.
+ *
+ * @author sm@creativefusion.net
+ */
+class OrderedAcks {
+
+    private final Map<String, Completable> tails = new HashMap<>();
+
+    <T> Completable acknowledge(String key, Single<T> outcome, Consumer<T> ack) {
+        CompletableSubject done = CompletableSubject.create();
+        Completable previous = tails.getOrDefault(key, Completable.complete());
+        tails.put(key, done);
+        return outcome
+                .flatMapCompletable(value -> previous.andThen(Completable.fromAction(() -> ack.accept(value))))
+                .doFinally(() -> {
+                    done.onComplete();
+                    tails.remove(key, done);
+                });
+    }
+
+    int pendingKeys() {
+        return tails.size();
+    }
+}
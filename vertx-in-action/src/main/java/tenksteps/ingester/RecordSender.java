@@ -0,0 +1,90 @@
+package tenksteps.ingester;
+
+import io.reactivex.Completable;
+import io.reactivex.Single;
+import io.reactivex.subjects.CompletableSubject;
+import io.reactivex.subjects.SingleSubject;
+import io.vertx.core.json.JsonObject;
+import io.vertx.kafka.client.producer.RecordMetadata;
+import io.vertx.reactivex.kafka.client.producer.KafkaProducer;
+import io.vertx.reactivex.kafka.client.producer.KafkaProducerRecord;
+
+/**
+ * RecordSender hands the records of the ingestion handlers to the Kafka producer, which batches them itself, and keeps
+ * track of those waiting for their acknowledgement so that drain can wait for them. The Single returned by send is
+ * hot: the record is sent when send is called.
+ *
+ * @author sm@creativefusion.net
+ */
+class RecordSender<K, V> {
+
+    private final KafkaProducer<K, V> producer;
+    private int inFlight;
+    private CompletableSubject drained;
+
+    // Metrics
+    private final long startedAt = System.nanoTime();
+    private long recordsSent;
+    private long recordsAcked;
+    private long recordsFailed;
+    private long totalAckLatencyNanos;
+    private long maxAckLatencyNanos;
+
+    RecordSender(KafkaProducer<K, V> producer) {
+        this.producer = producer;
+    }
+
+    Single<RecordMetadata> send(KafkaProducerRecord<K, V> record) {
+        SingleSubject<RecordMetadata> ack = SingleSubject.create();
+        long start = System.nanoTime();
+        inFlight++;
+        recordsSent++;
+        producer.rxSend(record).subscribe(
+                metadata -> {
+                    recordsAcked++;
+                    done(System.nanoTime() - start);
+                    ack.onSuccess(metadata);
+                },
+                err -> {
+                    recordsFailed++;
+                    done(System.nanoTime() - start);
+                    ack.onError(err);
+                });
+        return ack;
+    }
+
+    Completable drain() {
+        return Completable.defer(() -> {
+            if (inFlight == 0) {
+                return Completable.complete();
+            }
+            if (drained == null) {
+                drained = CompletableSubject.create();
+            }
+            return drained;
+        });
+    }
+
+    JsonObject metrics() {
+        long completed = recordsAcked + recordsFailed;
+        double elapsedSeconds = (System.nanoTime() - startedAt) / 1_000_000_000.0d;
+        return new JsonObject()
+                .put("recordsSent", recordsSent)
+                .put("recordsAcked", recordsAcked)
+                .put("recordsFailed", recordsFailed)
+                .put("inFlight", inFlight)
+                .put("averageAckLatencyMs", completed == 0 ? 0.0d : totalAckLatencyNanos / 1_000_000.0d / completed)
+                .put("maxAckLatencyMs", maxAckLatencyNanos / 1_000_000.0d)
+                .put("ackedRecordsPerSecond", elapsedSeconds == 0.0d ? 0.0d : recordsAcked / elapsedSeconds);
+    }
+
+    private void done(long latencyNanos) {
+        totalAckLatencyNanos += latencyNanos;
+        maxAckLatencyNanos = Math.max(maxAckLatencyNanos, latencyNanos);
+        if (--inFlight == 0 && drained != null) {
+            CompletableSubject waiting = drained;
+            drained = null;
+            waiting.onComplete();
+        }
+    }
+}
@@ -0,0 +1,319 @@
+package tenksteps.ingester;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.TreeSet;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * SpillLog is an append-only, memory-mapped log of records waiting to be sent to Kafka, split into preallocated
+ * segment files. The read cursor only becomes durable on commit, and a torn write marks the end of a reopened log.
+ *
+ * This class uses blocking file APIs and is not thread-safe: it is meant to be driven from ordered blocking tasks.
+ *
+ * @author sm@creativefusion.net
+ */
+class SpillLog implements Closeable {
+
+    private static final int HEADER_SIZE = 8;
+    private static final String SEGMENT_SUFFIX = ".spill";
+    private static final String CHECKPOINT = "checkpoint";
+    private static final String LOCK = "lock";
+
+    private final Path dir;
+    private final int segmentSize;
+    private final long maxBytes;
+    private final TreeSet<Long> segmentIds = new TreeSet<>();
+    private final FileChannel lockChannel;
+
+    private Segment tail;
+    private Segment reader;
+    private long readSegment;
+    private int readPosition;
+    private long committedSegment;
+    private int committedPosition;
+
+    SpillLog(Path dir, int segmentSize, long maxBytes) throws IOException {
+        this(dir, segmentSize, maxBytes, null);
+    }
+
+    private SpillLog(Path dir, int segmentSize, long maxBytes, FileChannel lockChannel) throws IOException {
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        this.maxBytes = maxBytes;
+        this.lockChannel = lockChannel;
+
+        Files.createDirectories(dir);
+        try (Stream<Path> files = Files.list(dir)) {
+            files.map(file -> file.getFileName().toString())
+                    .filter(name -> name.endsWith(SEGMENT_SUFFIX))
+                    .map(name -> Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())))
+                    .forEach(segmentIds::add);
+        }
+        loadCheckpoint();
+        if (segmentIds.isEmpty()) {
+            segmentIds.add(committedSegment);
+            committedPosition = 0;
+            tail = Segment.open(segmentPath(committedSegment), committedSegment, segmentSize);
+        } else {
+            tail = Segment.open(segmentPath(segmentIds.last()), segmentIds.last(), segmentSize);
+            recoverTail();
+        }
+        if (!segmentIds.contains(committedSegment)) {
+            committedSegment = segmentIds.first();
+            committedPosition = 0;
+        } else if (committedSegment == tail.id) {
+            committedPosition = Math.min(committedPosition, tail.buffer.position());
+        }
+        deleteReadSegments(committedSegment);
+        rewind();
+    }
+
+    /*
+     * Returns null when the directory is locked by another log, of this process or of another one.
+     */
+    static SpillLog tryOpen(Path dir, int segmentSize, long maxBytes) throws IOException {
+        Files.createDirectories(dir);
+        FileChannel lockChannel = FileChannel.open(dir.resolve(LOCK), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE);
+        FileLock lock;
+        try {
+            lock = lockChannel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            // File locks are held per process: this one is held by another instance of this process
+            lock = null;
+        }
+        if (lock == null) {
+            lockChannel.close();
+            return null;
+        }
+        try {
+            return new SpillLog(dir, segmentSize, maxBytes, lockChannel);
+        } catch (IOException | RuntimeException e) {
+            lockChannel.close();
+            throw e;
+        }
+    }
+
+    /*
+     * Returns false when the log has reached its maximum size.
+     */
+    boolean append(byte[] data) throws IOException {
+        int recordSize = HEADER_SIZE + data.length;
+        if (recordSize > segmentSize) {
+            throw new IllegalArgumentException("Record of " + data.length + " bytes does not fit in a segment");
+        }
+        if (tail.buffer.remaining() < recordSize) {
+            if ((segmentIds.size() + 1L) * segmentSize > maxBytes) {
+                return false;
+            }
+            roll();
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        MappedByteBuffer buffer = tail.buffer;
+        int start = buffer.position();
+        buffer.position(start + HEADER_SIZE);
+        buffer.put(data);
+        buffer.putInt(start + 4, (int) crc.getValue());
+        // The length is written last: a zero length is the end of the log
+        buffer.putInt(start, data.length);
+        return true;
+    }
+
+    void sync() {
+        tail.buffer.force();
+    }
+
+    /*
+     * Returns the record at the read cursor and moves past it, or null when there is nothing left to read.
+     */
+    byte[] next() throws IOException {
+        while (true) {
+            Segment segment = readerSegment();
+            int limit = segment == tail ? tail.buffer.position() : segmentSize;
+            if (readPosition + HEADER_SIZE <= limit) {
+                int length = segment.buffer.getInt(readPosition);
+                if (length > 0) {
+                    byte[] data = new byte[length];
+                    ByteBuffer view = segment.buffer.duplicate();
+                    view.position(readPosition + HEADER_SIZE);
+                    view.get(data);
+                    readPosition += HEADER_SIZE + length;
+                    return data;
+                }
+            }
+            if (segment == tail) {
+                return null;
+            }
+            readSegment = segmentIds.higher(readSegment);
+            readPosition = 0;
+        }
+    }
+
+    void commit() throws IOException {
+        committedSegment = readSegment;
+        committedPosition = readPosition;
+        ByteBuffer checkpoint = ByteBuffer.allocate(12)
+                .putLong(committedSegment)
+                .putInt(committedPosition);
+        checkpoint.flip();
+        // The checkpoint, then its rename, are on disk before the segments it covers are deleted
+        Path temp = dir.resolve(CHECKPOINT + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (checkpoint.hasRemaining()) {
+                channel.write(checkpoint);
+            }
+            channel.force(true);
+        }
+        Files.move(temp, dir.resolve(CHECKPOINT),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        forceDirectory();
+        deleteReadSegments(committedSegment);
+    }
+
+    void rewind() {
+        readSegment = committedSegment;
+        readPosition = committedPosition;
+    }
+
+    boolean isEmpty() {
+        return committedSegment == tail.id && committedPosition == tail.buffer.position();
+    }
+
+    long sizeOnDisk() {
+        return segmentIds.size() * (long) segmentSize;
+    }
+
+    Path dir() {
+        return dir;
+    }
+
+    @Override
+    public void close() throws IOException {
+        sync();
+        reader = null;
+        tail = null;
+        if (lockChannel != null) {
+            // Closing the channel releases the lock
+            lockChannel.close();
+        }
+    }
+
+    private Segment readerSegment() throws IOException {
+        if (readSegment == tail.id) {
+            return tail;
+        }
+        if (reader == null || reader.id != readSegment) {
+            reader = Segment.open(segmentPath(readSegment), readSegment, segmentSize);
+        }
+        return reader;
+    }
+
+    private void roll() throws IOException {
+        tail.buffer.force();
+        long id = tail.id + 1;
+        tail = Segment.open(segmentPath(id), id, segmentSize);
+        segmentIds.add(id);
+    }
+
+    private void recoverTail() {
+        MappedByteBuffer buffer = tail.buffer;
+        int position = 0;
+        while (position + HEADER_SIZE <= segmentSize) {
+            int length = buffer.getInt(position);
+            if (length <= 0 || position + HEADER_SIZE + length > segmentSize) {
+                break;
+            }
+            ByteBuffer data = buffer.duplicate();
+            data.position(position + HEADER_SIZE).limit(position + HEADER_SIZE + length);
+            CRC32 crc = new CRC32();
+            crc.update(data);
+            if ((int) crc.getValue() != buffer.getInt(position + 4)) {
+                break;
+            }
+            position += HEADER_SIZE + length;
+        }
+        // Clear what a torn write may have left, so that it is not mistaken for records once appends resume
+        int lastDirty = -1;
+        for (int i = position; i < segmentSize; i++) {
+            if (buffer.get(i) != 0) {
+                lastDirty = i;
+            }
+        }
+        if (lastDirty >= 0) {
+            for (int i = position; i <= lastDirty; i++) {
+                buffer.put(i, (byte) 0);
+            }
+            buffer.force();
+        }
+        buffer.position(position);
+    }
+
+    private void forceDirectory() {
+        try (FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // Directories cannot be opened on some platforms (e.g., Windows), where the rename is durable anyway
+        }
+    }
+
+    /*
+     * A checkpoint torn by a crash counts as no checkpoint: the log is read again from its first segment.
+     */
+    private void loadCheckpoint() throws IOException {
+        Path checkpoint = dir.resolve(CHECKPOINT);
+        byte[] data = Files.exists(checkpoint) ? Files.readAllBytes(checkpoint) : new byte[0];
+        if (data.length >= 12) {
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            committedSegment = buffer.getLong();
+            committedPosition = buffer.getInt();
+        } else if (!segmentIds.isEmpty()) {
+            committedSegment = segmentIds.first();
+        }
+    }
+
+    private void deleteReadSegments(long upTo) throws IOException {
+        while (segmentIds.first() < upTo) {
+            long id = segmentIds.first();
+            Files.deleteIfExists(segmentPath(id));
+            segmentIds.remove(id);
+        }
+    }
+
+    private Path segmentPath(long id) {
+        return dir.resolve(String.format("%020d%s", id, SEGMENT_SUFFIX));
+    }
+
+    private static class Segment {
+
+        final long id;
+        final MappedByteBuffer buffer;
+
+        private Segment(long id, MappedByteBuffer buffer) {
+            this.id = id;
+            this.buffer = buffer;
+        }
+
+        // The mapping stays valid once the file has been closed
+        static Segment open(Path path, long id, int size) throws IOException {
+            try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw")) {
+                file.setLength(size);
+                return new Segment(id, file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size));
+            }
+        }
+    }
+}
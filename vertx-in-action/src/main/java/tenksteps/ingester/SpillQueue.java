@@ -0,0 +1,327 @@
+package tenksteps.ingester;
+
+import io.reactivex.Completable;
+import io.reactivex.Single;
+import io.reactivex.functions.Function;
+import io.reactivex.subjects.CompletableSubject;
+import io.vertx.core.json.JsonObject;
+import io.vertx.reactivex.core.Vertx;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * SpillQueue takes over when Kafka is slow or down: step events are appended to a local SpillLog and acknowledged once
+ * they are synced to disk, then drained in order to a sink when it is available again (delivery is at-least-once).
+ * The logs left behind by instances that are gone are drained ahead of the queue's own log.
+ *
+ * @author sm@creativefusion.net
+ */
+class SpillQueue {
+
+    private static final Logger logger = LoggerFactory.getLogger(SpillQueue.class);
+
+    private static final long DRAIN_INTERVAL_MS = 100L;
+    private static final long DRAIN_BACKOFF_MS = 5_000L;
+    private static final String INSTANCE_PREFIX = "instance-";
+
+    private final Vertx vertx;
+    private final SpillLog log;
+    private final List<SpillLog> adopted;
+    private final Function<StepEvent, Completable> sink;
+    private final int recordsPerDrain;
+    private final StepEventSerializer serializer = new StepEventSerializer();
+
+    private List<PendingAppend> appendQueue = new ArrayList<>();
+    private boolean writing;
+    private boolean draining;
+    private boolean backlog;
+    private long backoffUntil;
+    private long drainTimerId;
+    private boolean closing;
+    private final CompletableSubject idle = CompletableSubject.create();
+
+    // Metrics
+    private long spilled;
+    private long rejected;
+    private long groupCommits;
+    private long drained;
+    private long drainFailures;
+
+    private SpillQueue(Vertx vertx, List<SpillLog> logs, Function<StepEvent, Completable> sink, int drainRate) {
+        this.vertx = vertx;
+        this.log = logs.get(0);
+        this.adopted = new ArrayList<>(logs.subList(1, logs.size()));
+        this.sink = sink;
+        this.recordsPerDrain = Math.max(1, (int) (drainRate * DRAIN_INTERVAL_MS / 1000L));
+        this.backlog = !log.isEmpty();
+        this.drainTimerId = vertx.setPeriodic(DRAIN_INTERVAL_MS, this::drain);
+    }
+
+    static Single<SpillQueue> open(Vertx vertx, Path dir, int segmentSize, long maxBytes, int drainRate,
+                                   Function<StepEvent, Completable> sink) {
+        return vertx.<List<SpillLog>>rxExecuteBlocking(promise -> {
+            try {
+                promise.complete(lockLogs(dir, segmentSize, maxBytes));
+            } catch (IOException e) {
+                promise.fail(e);
+            }
+        }, true)
+                .toSingle()
+                .map(logs -> {
+                    logs.subList(1, logs.size()).forEach(orphan -> logger.info("Adopted spill log {}", orphan.dir()));
+                    return new SpillQueue(vertx, logs, sink, drainRate);
+                });
+    }
+
+    /*
+     * Blocking: returns the log of the queue, followed by the non-empty logs that it adopts.
+     */
+    private static List<SpillLog> lockLogs(Path dir, int segmentSize, long maxBytes) throws IOException {
+        List<SpillLog> logs = new ArrayList<>();
+        for (int slot = 0; logs.isEmpty(); slot++) {
+            SpillLog log = SpillLog.tryOpen(dir.resolve(INSTANCE_PREFIX + slot), segmentSize, maxBytes);
+            if (log != null) {
+                logs.add(log);
+            }
+        }
+        try (DirectoryStream<Path> dirs = Files.newDirectoryStream(dir, INSTANCE_PREFIX + "*")) {
+            for (Path candidate : dirs) {
+                if (!Files.isDirectory(candidate)) {
+                    continue;
+                }
+                // The log of the queue, and those of the running queues, are locked
+                SpillLog orphan = SpillLog.tryOpen(candidate, segmentSize, maxBytes);
+                if (orphan == null) {
+                    continue;
+                }
+                if (orphan.isEmpty()) {
+                    orphan.close();
+                } else {
+                    logs.add(orphan);
+                }
+            }
+        }
+        return logs;
+    }
+
+    /*
+     * True when events are waiting in the log: new events must then be spilled too, so that they are not delivered
+     * ahead of older ones.
+     */
+    boolean hasBacklog() {
+        return backlog;
+    }
+
+    Completable append(StepEvent event) {
+        if (closing) {
+            return Completable.error(new IllegalStateException("The spill queue is closed"));
+        }
+        CompletableSubject synced = CompletableSubject.create();
+        appendQueue.add(new PendingAppend(serializer.serialize(null, event), synced));
+        backlog = true;
+        writeQueuedEvents();
+        return synced;
+    }
+
+    /*
+     * The logs are closed once the running write (and the appends queued behind it) and drain are over, since the
+     * blocking tasks of these would otherwise run against closed logs.
+     */
+    Completable close() {
+        vertx.cancelTimer(drainTimerId);
+        closing = true;
+        completeIfIdle();
+        return idle.andThen(Completable.defer(() -> {
+            List<SpillLog> logs = new ArrayList<>(adopted);
+            logs.add(log);
+            return vertx.rxExecuteBlocking(promise -> {
+                try {
+                    for (SpillLog toClose : logs) {
+                        toClose.close();
+                    }
+                    promise.complete();
+                } catch (IOException e) {
+                    promise.fail(e);
+                }
+            }, true).ignoreElement();
+        }));
+    }
+
+    JsonObject metrics() {
+        return new JsonObject()
+                .put("backlog", backlog)
+                .put("spilled", spilled)
+                .put("rejected", rejected)
+                .put("groupCommits", groupCommits)
+                .put("drained", drained)
+                .put("drainFailures", drainFailures)
+                .put("adoptedLogs", adopted.size())
+                .put("sizeOnDisk", log.sizeOnDisk() + adopted.stream().mapToLong(SpillLog::sizeOnDisk).sum());
+    }
+
+    private void writeQueuedEvents() {
+        if (writing || appendQueue.isEmpty()) {
+            return;
+        }
+        writing = true;
+        List<PendingAppend> group = appendQueue;
+        appendQueue = new ArrayList<>();
+
+        vertx.<boolean[]>rxExecuteBlocking(promise -> {
+            try {
+                boolean[] appended = new boolean[group.size()];
+                for (int i = 0; i < group.size(); i++) {
+                    appended[i] = log.append(group.get(i).data);
+                }
+                log.sync();
+                promise.complete(appended);
+            } catch (IOException e) {
+                promise.fail(e);
+            }
+        }, true)
+                .toSingle()
+                .subscribe(
+                        appended -> {
+                            writing = false;
+                            groupCommits++;
+                            for (int i = 0; i < appended.length; i++) {
+                                if (appended[i]) {
+                                    spilled++;
+                                    group.get(i).synced.onComplete();
+                                } else {
+                                    rejected++;
+                                    group.get(i).synced.onError(new IllegalStateException("The spill log is full"));
+                                }
+                            }
+                            writeQueuedEvents();
+                            completeIfIdle();
+                        },
+                        err -> {
+                            writing = false;
+                            logger.error("Spill log write failed", err);
+                            rejected += group.size();
+                            group.forEach(pending -> pending.synced.onError(err));
+                            writeQueuedEvents();
+                            completeIfIdle();
+                        });
+    }
+
+    /*
+     * The adopted logs are drained first, one after the other, then the log of the queue.
+     */
+    private void drain(long timerId) {
+        if (closing || draining || (!backlog && adopted.isEmpty()) || System.currentTimeMillis() < backoffUntil) {
+            return;
+        }
+        draining = true;
+        SpillLog source = adopted.isEmpty() ? log : adopted.get(0);
+
+        vertx.<List<byte[]>>rxExecuteBlocking(promise -> {
+            try {
+                List<byte[]> records = new ArrayList<>();
+                byte[] record;
+                while (records.size() < recordsPerDrain && (record = source.next()) != null) {
+                    records.add(record);
+                }
+                promise.complete(records);
+            } catch (IOException e) {
+                promise.fail(e);
+            }
+        }, true)
+                .toSingle()
+                .flatMap(records -> deliver(records)
+                        .andThen(commit(source))
+                        .toSingleDefault(records.size()))
+                .subscribe(
+                        count -> {
+                            draining = false;
+                            drained += count;
+                            if (count == 0 && source != log) {
+                                release(source);
+                            } else if (count == 0 && !writing && appendQueue.isEmpty()) {
+                                backlog = false;
+                            }
+                            completeIfIdle();
+                        },
+                        err -> {
+                            logger.warn("Spill log drain failed, backing off", err);
+                            drainFailures++;
+                            backoffUntil = System.currentTimeMillis() + DRAIN_BACKOFF_MS;
+                            rewind(source).onErrorComplete().subscribe(() -> {
+                                draining = false;
+                                completeIfIdle();
+                            });
+                        });
+    }
+
+    /*
+     * The events are handed to the sink in log order, and the sink (the record sender) keeps that order per device.
+     */
+    private Completable deliver(List<byte[]> records) throws Exception {
+        List<Completable> deliveries = new ArrayList<>(records.size());
+        for (byte[] record : records) {
+            StepEvent event = StepEventCodec.decode(record);
+            if (event == null) {
+                logger.error("Corrupted spilled event (discarded)");
+                continue;
+            }
+            deliveries.add(sink.apply(event));
+        }
+        return Completable.merge(deliveries);
+    }
+
+    private void completeIfIdle() {
+        if (closing && !writing && !draining) {
+            idle.onComplete();
+        }
+    }
+
+    private void release(SpillLog orphan) {
+        adopted.remove(orphan);
+        vertx.rxExecuteBlocking(promise -> {
+            try {
+                orphan.close();
+                promise.complete();
+            } catch (IOException e) {
+                promise.fail(e);
+            }
+        }, true).ignoreElement().subscribe(() -> logger.info("Drained spill log {}", orphan.dir()),
+                err -> logger.error("Could not release spill log {}", orphan.dir(), err));
+    }
+
+    private Completable commit(SpillLog source) {
+        return vertx.rxExecuteBlocking(promise -> {
+            try {
+                source.commit();
+                promise.complete();
+            } catch (IOException e) {
+                promise.fail(e);
+            }
+        }, true).ignoreElement();
+    }
+
+    private Completable rewind(SpillLog source) {
+        return vertx.rxExecuteBlocking(promise -> {
+            source.rewind();
+            promise.complete();
+        }, true).ignoreElement();
+    }
+
+    private static class PendingAppend {
+
+        final byte[] data;
+        final CompletableSubject synced;
+
+        PendingAppend(byte[] data, CompletableSubject synced) {
+            this.data = data;
+            this.synced = synced;
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package tenksteps.ingester;
+
+import java.util.Objects;
+
+/**
+ * StepEvent is the compact value type of an ingested step update: a device identifier, the device synchronization
+ * counter and the number of steps. It replaces the JsonObject that used to be built for every Kafka record.
+ *
+ * @author sm@creativefusion.net
+ */
+final class StepEvent {
+
+    private final String deviceId;
+    private final long deviceSync;
+    private final int stepsCount;
+
+    StepEvent(String deviceId, long deviceSync, int stepsCount) {
+        this.deviceId = deviceId;
+        this.deviceSync = deviceSync;
+        this.stepsCount = stepsCount;
+    }
+
+    String deviceId() {
+        return deviceId;
+    }
+
+    long deviceSync() {
+        return deviceSync;
+    }
+
+    int stepsCount() {
+        return stepsCount;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (this == other) {
+            return true;
+        }
+        if (!(other instanceof StepEvent)) {
+            return false;
+        }
+        StepEvent that = (StepEvent) other;
+        return deviceSync == that.deviceSync && stepsCount == that.stepsCount && deviceId.equals(that.deviceId);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(deviceId, deviceSync, stepsCount);
+    }
+
+    @Override
+    public String toString() {
+        return "StepEvent{deviceId='" + deviceId + "', deviceSync=" + deviceSync + ", stepsCount=" + stepsCount + "}";
+    }
+}
@@ -0,0 +1,365 @@
+package tenksteps.ingester;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.vertx.core.buffer.Buffer;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * StepEventCodec decodes step events straight from the raw bytes of an HTTP body, an AMQP message or a bulk upload
+ * line. A single pass over the buffer both validates the document and extracts the deviceId (a string), deviceSync
+ * (an integer) and stepsCount (an integer) fields, so no intermediate JsonObject is ever built.
+ *
+ * Any other field is skipped. Skipped values are checked for balanced structure only, which is all we need to find
+ * the fields we care about. decode returns null when the payload is not a valid step event, which is cheaper than
+ * throwing on the hot path.
+ *
+ * @author sm@creativefusion.net
+ */
+final class StepEventCodec {
+
+    private static final byte[] DEVICE_ID = "deviceId".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] DEVICE_SYNC = "deviceSync".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] STEPS_COUNT = "stepsCount".getBytes(StandardCharsets.US_ASCII);
+
+    private StepEventCodec() {
+    }
+
+    static StepEvent decode(Buffer buffer) {
+        return decode(buffer.getByteBuf());
+    }
+
+    static StepEvent decode(byte[] bytes) {
+        return decode(Unpooled.wrappedBuffer(bytes));
+    }
+
+    static boolean isBlank(Buffer buffer) {
+        for (int i = 0; i < buffer.length(); i++) {
+            if (!isWhitespace(buffer.getByte(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static StepEvent decode(ByteBuf buf) {
+        try {
+            return new Parser(buf).parse();
+        } catch (InvalidPayload e) {
+            return null;
+        }
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\n' || b == '\r' || b == '\t';
+    }
+
+    /*
+     * Thrown to unwind the parser on invalid input. It is a shared instance without a stack trace, so rejecting a
+     * payload costs no more than accepting one.
+     */
+    private static final class InvalidPayload extends RuntimeException {
+
+        static final InvalidPayload INSTANCE = new InvalidPayload();
+
+        private InvalidPayload() {
+            super(null, null, false, false);
+        }
+    }
+
+    private static final class Parser {
+
+        private final ByteBuf buf;
+        private final int end;
+        private int pos;
+
+        private String deviceId;
+        private long deviceSync;
+        private int stepsCount;
+        private boolean hasDeviceSync;
+        private boolean hasStepsCount;
+
+        Parser(ByteBuf buf) {
+            this.buf = buf;
+            this.pos = buf.readerIndex();
+            this.end = buf.writerIndex();
+        }
+
+        StepEvent parse() {
+            skipWhitespace();
+            expect('{');
+            skipWhitespace();
+            if (peek() == '}') {
+                throw InvalidPayload.INSTANCE;
+            }
+            while (true) {
+                skipWhitespace();
+                expect('"');
+                int keyStart = pos;
+                boolean escaped = skipStringContent();
+                int keyEnd = pos - 1;
+                skipWhitespace();
+                expect(':');
+                skipWhitespace();
+                member(keyStart, keyEnd, escaped);
+                skipWhitespace();
+                byte next = next();
+                if (next == '}') {
+                    break;
+                } else if (next != ',') {
+                    throw InvalidPayload.INSTANCE;
+                }
+            }
+            skipWhitespace();
+            if (pos != end || deviceId == null || !hasDeviceSync || !hasStepsCount) {
+                throw InvalidPayload.INSTANCE;
+            }
+            return new StepEvent(deviceId, deviceSync, stepsCount);
+        }
+
+        private void member(int keyStart, int keyEnd, boolean escaped) {
+            if (keyIs(DEVICE_ID, keyStart, keyEnd, escaped)) {
+                expect('"');
+                deviceId = readStringContent();
+            } else if (keyIs(DEVICE_SYNC, keyStart, keyEnd, escaped)) {
+                deviceSync = readLong();
+                hasDeviceSync = true;
+            } else if (keyIs(STEPS_COUNT, keyStart, keyEnd, escaped)) {
+                long value = readLong();
+                if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+                    throw InvalidPayload.INSTANCE;
+                }
+                stepsCount = (int) value;
+                hasStepsCount = true;
+            } else {
+                skipValue();
+            }
+        }
+
+        private boolean keyIs(byte[] key, int start, int stop, boolean escaped) {
+            if (escaped) {
+                // Escaped keys are unusual enough to afford decoding them
+                return new String(key, StandardCharsets.US_ASCII).equals(decodeString(start, stop));
+            }
+            if (stop - start != key.length) {
+                return false;
+            }
+            for (int i = 0; i < key.length; i++) {
+                if (buf.getByte(start + i) != key[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private long readLong() {
+            boolean negative = false;
+            if (peek() == '-') {
+                negative = true;
+                pos++;
+            }
+            int digits = 0;
+            long value = 0;
+            while (pos < end) {
+                byte b = buf.getByte(pos);
+                if (b < '0' || b > '9') {
+                    break;
+                }
+                int digit = b - '0';
+                if (value > (Long.MAX_VALUE - digit) / 10) {
+                    throw InvalidPayload.INSTANCE;
+                }
+                value = value * 10 + digit;
+                digits++;
+                pos++;
+            }
+            if (digits == 0) {
+                throw InvalidPayload.INSTANCE;
+            }
+            if (pos < end) {
+                byte b = buf.getByte(pos);
+                if (b == '.' || b == 'e' || b == 'E') {
+                    // Counters are integers
+                    throw InvalidPayload.INSTANCE;
+                }
+            }
+            return negative ? -value : value;
+        }
+
+        /*
+         * Moves past the closing quote of a string whose opening quote has been consumed, and tells whether escape
+         * sequences were found.
+         */
+        private boolean skipStringContent() {
+            boolean escaped = false;
+            while (true) {
+                byte b = next();
+                if (b == '"') {
+                    return escaped;
+                } else if (b == '\\') {
+                    escaped = true;
+                    byte e = next();
+                    if (e == 'u') {
+                        for (int i = 0; i < 4; i++) {
+                            hexValue(next());
+                        }
+                    } else if (e != '"' && e != '\\' && e != '/' && e != 'b' && e != 'f' && e != 'n' && e != 'r'
+                            && e != 't') {
+                        throw InvalidPayload.INSTANCE;
+                    }
+                } else if (b >= 0 && b < 0x20) {
+                    throw InvalidPayload.INSTANCE;
+                }
+            }
+        }
+
+        private String readStringContent() {
+            int start = pos;
+            boolean escaped = skipStringContent();
+            int stop = pos - 1;
+            if (!escaped) {
+                return buf.toString(start, stop - start, StandardCharsets.UTF_8);
+            }
+            return decodeString(start, stop);
+        }
+
+        private String decodeString(int start, int stop) {
+            StringBuilder builder = new StringBuilder(stop - start);
+            int segment = start;
+            int i = start;
+            while (i < stop) {
+                if (buf.getByte(i) != '\\') {
+                    i++;
+                    continue;
+                }
+                builder.append(buf.toString(segment, i - segment, StandardCharsets.UTF_8));
+                byte e = buf.getByte(i + 1);
+                switch (e) {
+                    case 'b':
+                        builder.append('\b');
+                        break;
+                    case 'f':
+                        builder.append('\f');
+                        break;
+                    case 'n':
+                        builder.append('\n');
+                        break;
+                    case 'r':
+                        builder.append('\r');
+                        break;
+                    case 't':
+                        builder.append('\t');
+                        break;
+                    case 'u':
+                        int c = 0;
+                        for (int k = 0; k < 4; k++) {
+                            c = (c << 4) | hexValue(buf.getByte(i + 2 + k));
+                        }
+                        builder.append((char) c);
+                        i += 4;
+                        break;
+                    default:
+                        builder.append((char) e);
+                }
+                i += 2;
+                segment = i;
+            }
+            builder.append(buf.toString(segment, stop - segment, StandardCharsets.UTF_8));
+            return builder.toString();
+        }
+
+        private void skipValue() {
+            byte b = peek();
+            if (b == '"') {
+                pos++;
+                skipStringContent();
+            } else if (b == '{' || b == '[') {
+                skipComposite();
+            } else if (b == 't') {
+                expectLiteral("true");
+            } else if (b == 'f') {
+                expectLiteral("false");
+            } else if (b == 'n') {
+                expectLiteral("null");
+            } else if (b == '-' || (b >= '0' && b <= '9')) {
+                pos++;
+                while (pos < end) {
+                    byte c = buf.getByte(pos);
+                    if ((c >= '0' && c <= '9') || c == '.' || c == 'e' || c == 'E' || c == '+' || c == '-') {
+                        pos++;
+                    } else {
+                        break;
+                    }
+                }
+            } else {
+                throw InvalidPayload.INSTANCE;
+            }
+        }
+
+        private void skipComposite() {
+            // Tracks the nesting as a stack of bits: 1 for an object, 0 for an array
+            long stack = 0;
+            int depth = 0;
+            do {
+                byte b = next();
+                if (b == '"') {
+                    skipStringContent();
+                } else if (b == '{' || b == '[') {
+                    if (++depth > 64) {
+                        throw InvalidPayload.INSTANCE;
+                    }
+                    stack = (stack << 1) | (b == '{' ? 1 : 0);
+                } else if (b == '}' || b == ']') {
+                    if ((stack & 1) != (b == '}' ? 1 : 0)) {
+                        throw InvalidPayload.INSTANCE;
+                    }
+                    stack >>>= 1;
+                    depth--;
+                }
+            } while (depth > 0);
+        }
+
+        private void expectLiteral(String literal) {
+            for (int i = 0; i < literal.length(); i++) {
+                expect(literal.charAt(i));
+            }
+        }
+
+        private int hexValue(byte b) {
+            if (b >= '0' && b <= '9') {
+                return b - '0';
+            } else if (b >= 'a' && b <= 'f') {
+                return b - 'a' + 10;
+            } else if (b >= 'A' && b <= 'F') {
+                return b - 'A' + 10;
+            }
+            throw InvalidPayload.INSTANCE;
+        }
+
+        private void skipWhitespace() {
+            while (pos < end && isWhitespace(buf.getByte(pos))) {
+                pos++;
+            }
+        }
+
+        private void expect(char c) {
+            if (next() != c) {
+                throw InvalidPayload.INSTANCE;
+            }
+        }
+
+        private byte peek() {
+            if (pos >= end) {
+                throw InvalidPayload.INSTANCE;
+            }
+            return buf.getByte(pos);
+        }
+
+        private byte next() {
+            byte b = peek();
+            pos++;
+            return b;
+        }
+    }
+}
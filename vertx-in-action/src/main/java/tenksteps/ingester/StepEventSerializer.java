@@ -0,0 +1,103 @@
+package tenksteps.ingester;
+
+import org.apache.kafka.common.serialization.Serializer;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Kafka serializer for StepEvent values. The wire format is the same JSON document that the JsonObjectSerializer
+ * used to produce ({"deviceId":...,"deviceSync":...,"stepsCount":...}), so consumers of incoming.steps are unaffected,
+ * but the bytes are written directly instead of going through a JsonObject and Jackson.
+ *
+ * @author sm@creativefusion.net
+ */
+public class StepEventSerializer implements Serializer<StepEvent> {
+
+    private static final byte[] PREFIX = "{\"deviceId\":\"".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] DEVICE_SYNC = "\",\"deviceSync\":".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] STEPS_COUNT = ",\"stepsCount\":".getBytes(StandardCharsets.US_ASCII);
+
+    @Override
+    public byte[] serialize(String topic, StepEvent event) {
+        if (event == null) {
+            return null;
+        }
+        String deviceId = event.deviceId();
+        if (!isPlainAscii(deviceId)) {
+            return serializeEscaped(event);
+        }
+
+        // Fast path: the exact size is known, so the document is written into a single array
+        String deviceSync = Long.toString(event.deviceSync());
+        String stepsCount = Integer.toString(event.stepsCount());
+        byte[] bytes = new byte[PREFIX.length + deviceId.length() + DEVICE_SYNC.length + deviceSync.length()
+                + STEPS_COUNT.length + stepsCount.length() + 1];
+        int pos = put(bytes, 0, PREFIX);
+        pos = putAscii(bytes, pos, deviceId);
+        pos = put(bytes, pos, DEVICE_SYNC);
+        pos = putAscii(bytes, pos, deviceSync);
+        pos = put(bytes, pos, STEPS_COUNT);
+        pos = putAscii(bytes, pos, stepsCount);
+        bytes[pos] = '}';
+        return bytes;
+    }
+
+    private static boolean isPlainAscii(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x20 || c > 0x7e || c == '"' || c == '\\') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int put(byte[] bytes, int pos, byte[] chunk) {
+        System.arraycopy(chunk, 0, bytes, pos, chunk.length);
+        return pos + chunk.length;
+    }
+
+    private static int putAscii(byte[] bytes, int pos, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            bytes[pos++] = (byte) value.charAt(i);
+        }
+        return pos;
+    }
+
+    private static byte[] serializeEscaped(StepEvent event) {
+        StringBuilder builder = new StringBuilder("{\"deviceId\":\"");
+        String deviceId = event.deviceId();
+        for (int i = 0; i < deviceId.length(); i++) {
+            char c = deviceId.charAt(i);
+            switch (c) {
+                case '"':
+                    builder.append("\\\"");
+                    break;
+                case '\\':
+                    builder.append("\\\\");
+                    break;
+                case '\n':
+                    builder.append("\\n");
+                    break;
+                case '\r':
+                    builder.append("\\r");
+                    break;
+                case '\t':
+                    builder.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        builder.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        builder.append(c);
+                    }
+            }
+        }
+        return builder
+                .append("\",\"deviceSync\":").append(event.deviceSync())
+                .append(",\"stepsCount\":").append(event.stepsCount())
+                .append('}')
+                .toString()
+                .getBytes(StandardCharsets.UTF_8);
+    }
+}
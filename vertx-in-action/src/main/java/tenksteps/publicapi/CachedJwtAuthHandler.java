@@ -0,0 +1,101 @@
+package tenksteps.publicapi;
+
+import io.vertx.core.Handler;
+import io.vertx.core.json.JsonObject;
+import io.vertx.reactivex.ext.auth.User;
+import io.vertx.reactivex.core.http.HttpServerRequest;
+import io.vertx.reactivex.ext.auth.jwt.JWTAuth;
+import io.vertx.reactivex.ext.web.RoutingContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * CachedJwtAuthHandler plays the role of JWTAuthHandler for the protected routes: it authenticates the bearer token of
+ * the request, but looks it up in a TokenCache first, and only verifies its signature with JWTAuth on a cache miss.
+ *
+ * The verified subject and device identifier are put in the routing context data, so that the next handlers do not
+ * need to go through the user principal again (see the subject and deviceId methods).
+ *
+ * @author sm@creativefusion.net
+ */
+class CachedJwtAuthHandler implements Handler<RoutingContext> {
+
+    private static final Logger logger = LoggerFactory.getLogger(CachedJwtAuthHandler.class);
+
+    private static final String BEARER = "Bearer ";
+    private static final String SUBJECT_KEY = "jwt.sub";
+    private static final String DEVICE_ID_KEY = "jwt.deviceId";
+
+    private final JWTAuth jwtAuth;
+    private final TokenCache tokenCache;
+
+    CachedJwtAuthHandler(JWTAuth jwtAuth, TokenCache tokenCache) {
+        this.jwtAuth = jwtAuth;
+        this.tokenCache = tokenCache;
+    }
+
+    @Override
+    public void handle(RoutingContext ctx) {
+        String token = bearerToken(ctx.request());
+        if (token == null) {
+            unauthorized(ctx);
+            return;
+        }
+
+        TokenCache.VerifiedToken verified = tokenCache.get(token);
+        if (verified != null) {
+            authenticated(ctx, verified);
+            return;
+        }
+
+        // The body must not be lost while the token is verified, in case the next handlers stream it (resuming is
+        // asynchronous, so the next handlers have the time to pause the request again or set their handlers)
+        boolean paused = !ctx.request().isEnded();
+        if (paused) {
+            ctx.request().pause();
+        }
+        jwtAuth.rxAuthenticate(new JsonObject().put("token", token))
+                .doOnEvent((user, err) -> {
+                    if (paused) {
+                        ctx.request().resume();
+                    }
+                })
+                .subscribe(
+                        user -> authenticated(ctx, tokenCache.put(token, user.getDelegate())),
+                        err -> {
+                            logger.debug("Invalid token", err);
+                            unauthorized(ctx);
+                        });
+    }
+
+    /*
+     * Returns the bearer token of the request, or null when there is none.
+     */
+    static String bearerToken(HttpServerRequest request) {
+        String authorization = request.getHeader("Authorization");
+        if (authorization == null || !authorization.regionMatches(true, 0, BEARER, 0, BEARER.length())) {
+            return null;
+        }
+        return authorization.substring(BEARER.length()).trim();
+    }
+
+    static String subject(RoutingContext ctx) {
+        return ctx.get(SUBJECT_KEY);
+    }
+
+    static String deviceId(RoutingContext ctx) {
+        return ctx.get(DEVICE_ID_KEY);
+    }
+
+    private void authenticated(RoutingContext ctx, TokenCache.VerifiedToken verified) {
+        ctx.setUser(User.newInstance(verified.user));
+        ctx.put(SUBJECT_KEY, verified.subject);
+        ctx.put(DEVICE_ID_KEY, verified.deviceId);
+        ctx.next();
+    }
+
+    private void unauthorized(RoutingContext ctx) {
+        ctx.response().putHeader("WWW-Authenticate", "Bearer");
+        ctx.fail(401);
+    }
+}
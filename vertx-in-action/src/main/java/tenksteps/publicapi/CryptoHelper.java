@@ -22,10 +22,17 @@ class CryptoHelper {
         return read("private_key.pem");
     }
 
-    private static String read(String file) throws IOException {
-        Path path = Paths.get("vertx-in-action", file);
-        if (!path.toFile().exists()) {
-            path = Paths.get("..", "vertx-in-action", file);
+    /*
+     * An absolute path (e.g., a key file given in the configuration) is used as is, otherwise the file is looked up
+     * in the project directory.
+     */
+    static String read(String file) throws IOException {
+        Path path = Paths.get(file);
+        if (!path.isAbsolute()) {
+            path = Paths.get("vertx-in-action", file);
+            if (!path.toFile().exists()) {
+                path = Paths.get("..", "vertx-in-action", file);
+            }
         }
         return String.join("\n", Files.readAllLines(path, StandardCharsets.UTF_8));
     }
@@ -3,28 +3,53 @@ package tenksteps.publicapi;
 import io.reactivex.Completable;
 import io.reactivex.Single;
 import io.vertx.core.http.HttpMethod;
+import io.vertx.core.http.HttpVersion;
 import io.vertx.core.json.JsonObject;
+import io.vertx.core.shareddata.LocalMap;
 import io.vertx.ext.auth.JWTOptions;
 import io.vertx.ext.auth.PubSecKeyOptions;
 import io.vertx.ext.auth.jwt.JWTAuthOptions;
+import io.vertx.kafka.client.common.TopicPartition;
 import io.vertx.reactivex.core.AbstractVerticle;
+import io.vertx.reactivex.core.MultiMap;
+import io.vertx.reactivex.core.RxHelper;
 import io.vertx.reactivex.core.Vertx;
+import io.vertx.reactivex.core.buffer.Buffer;
+import io.vertx.reactivex.core.http.HttpClientRequest;
+import io.vertx.reactivex.core.http.HttpServerRequest;
+import io.vertx.reactivex.core.http.HttpServerResponse;
 import io.vertx.reactivex.ext.auth.jwt.JWTAuth;
 import io.vertx.reactivex.ext.web.Router;
 import io.vertx.reactivex.ext.web.RoutingContext;
 import io.vertx.reactivex.ext.web.client.HttpResponse;
-import io.vertx.reactivex.ext.web.client.WebClient;
-import io.vertx.reactivex.ext.web.client.predicate.ResponsePredicate;
-import io.vertx.reactivex.ext.web.codec.BodyCodec;
 import io.vertx.reactivex.ext.web.handler.BodyHandler;
 import io.vertx.reactivex.ext.web.handler.CorsHandler;
-import io.vertx.reactivex.ext.web.handler.JWTAuthHandler;
+import io.vertx.reactivex.kafka.client.consumer.KafkaConsumer;
+import io.vertx.reactivex.kafka.client.producer.KafkaProducer;
+import io.vertx.reactivex.kafka.client.producer.KafkaProducerRecord;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import tenksteps.http.ServerOptionsFactory;
+import tenksteps.upstream.LatencyHistogram;
+import tenksteps.upstream.Upstream;
+import tenksteps.upstream.UpstreamRejectedException;
+import tenksteps.upstream.Upstreams;
 
 import java.io.IOException;
+import java.time.DateTimeException;
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.time.ZoneId;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.Collectors;
 
 /**
  * This service is an edge service (or service gateway, depending on how you prefer to name it) as it exposes an HTTP
@@ -38,6 +63,9 @@ import java.util.Set;
  * - vertx-web-client to issue HTTP requests to the user profile and activity services
  * - vertx-auth-jwt to generate and process JSON web tokens and perform access.
  *
+ * Step counts are served from a ResponseCache that is invalidated by the daily.step.updates Kafka topic, and upstream
+ * calls are coalesced and guarded (see UpstreamGuard). See the README for the configuration entries.
+ *
  * @author sm@creativefusion.net
  */
 public class PublicApiVerticle extends AbstractVerticle {
@@ -45,28 +73,65 @@ public class PublicApiVerticle extends AbstractVerticle {
     private static final int HTTP_PORT = 4000;
     private static final Logger logger = LoggerFactory.getLogger(PublicApiVerticle.class);
 
-    private WebClient webClient;
+    private static final List<String> PROXIED_REQUEST_HEADERS = Arrays.asList(
+            "Content-Type", "Content-Length", "Accept");
+    private static final List<String> PROXIED_RESPONSE_HEADERS = Arrays.asList(
+            "Content-Type", "Content-Length", "ETag", "Cache-Control", "Last-Modified");
+
+    // EdDSA is not available in vertx-auth-jwt 4.0
+    private static final Set<String> SUPPORTED_JWT_ALGORITHMS = new HashSet<>(Arrays.asList(
+            "RS256", "RS384", "RS512", "ES256", "ES384", "ES512"));
+
+    private Upstreams upstreams;
+    private Upstream userProfiles;
+    private Upstream activities;
+    private ZoneId zone;
     private JWTAuth jwtAuth;
+    private ResponseCache responseCache;
+    private TokenCache tokenCache;
+    private UserDeviceCache userDevices;
+    private KafkaProducer<String, JsonObject> profileUpdates;
+    private KafkaConsumer<String, String> stepUpdates;
+    private RateLimiter addressLimiter;
+    private RateLimiter subjectLimiter;
+    private String jwtAlgorithm;
+    private final Map<String, LatencyHistogram> tokenStages = new LinkedHashMap<>();
+    private final SingleFlight<HttpResponse<Buffer>> upstreamRequests = new SingleFlight<>();
 
     @Override
     public Completable rxStart() {
 
+        jwtAlgorithm = config().getString("jwt.algorithm", "RS256");
+        if (!SUPPORTED_JWT_ALGORITHMS.contains(jwtAlgorithm)) {
+            return Completable.error(new IllegalArgumentException("Unsupported JWT algorithm " + jwtAlgorithm));
+        }
+
         String publicKey;
         String privateKey;
         try {
-            publicKey = CryptoHelper.publicKey();
-            privateKey = CryptoHelper.privateKey();
+            publicKey = config().containsKey("jwt.public.key")
+                    ? CryptoHelper.read(config().getString("jwt.public.key"))
+                    : CryptoHelper.publicKey();
+            privateKey = config().containsKey("jwt.private.key")
+                    ? CryptoHelper.read(config().getString("jwt.private.key"))
+                    : CryptoHelper.privateKey();
         } catch (IOException e) {
             return Completable.error(e);
         }
 
         jwtAuth = JWTAuth.create(vertx, new JWTAuthOptions()
                 .addPubSecKey(new PubSecKeyOptions()
-                        .setAlgorithm("RS256")
+                        .setAlgorithm(jwtAlgorithm)
                         .setBuffer(publicKey))
                 .addPubSecKey(new PubSecKeyOptions()
-                        .setAlgorithm("RS256")
+                        .setAlgorithm(jwtAlgorithm)
                         .setBuffer(privateKey)));
+        userDevices = new UserDeviceCache(
+                config().getInteger("user.devices.cache.max.entries", 10_000),
+                config().getLong("user.devices.cache.ttl.ms", 600_000L));
+        for (String stage : Arrays.asList("authenticate", "deviceLookup", "sign", "total")) {
+            tokenStages.put(stage, new LatencyHistogram());
+        }
 
         Router router = Router.router(vertx);
 
@@ -90,12 +155,24 @@ public class PublicApiVerticle extends AbstractVerticle {
                 .allowedHeaders(allowedHeaders)
                 .allowedMethods(allowedMethods));
 
-        BodyHandler bodyHandler = BodyHandler.create();
-        router.post().handler(bodyHandler);
-        router.put().handler(bodyHandler);
-
         String prefix = "/api/v1";
-        JWTAuthHandler jwtHandler = JWTAuthHandler.create(jwtAuth);
+        tokenCache = new TokenCache(
+                config().getInteger("jwt.cache.max.entries", 10_000),
+                config().getLong("jwt.cache.max.ttl.ms", 300_000L));
+        CachedJwtAuthHandler jwtHandler = new CachedJwtAuthHandler(jwtAuth, tokenCache);
+
+        // Rate limiting comes first, so that rejected requests cost neither a body read nor a token verification
+        long idleMillis = config().getLong("ratelimit.idle.ms", 60_000L);
+        addressLimiter = sharedRateLimiter("address",
+                config().getDouble("ratelimit.address.rate", 50.0d),
+                config().getInteger("ratelimit.address.burst", 100), idleMillis);
+        subjectLimiter = sharedRateLimiter("subject",
+                config().getDouble("ratelimit.user.rate", 10.0d),
+                config().getInteger("ratelimit.user.burst", 20), idleMillis);
+        router.route(prefix + "/*").handler(new RateLimitHandler(addressLimiter, subjectLimiter, tokenCache));
+
+        // No BodyHandler for PUT requests: profile updates are streamed to the user profile service
+        router.post().handler(BodyHandler.create());
 
         // Account
         router.post(prefix + "/register").handler(this::register);
@@ -128,16 +205,105 @@ public class PublicApiVerticle extends AbstractVerticle {
                 .handler(this::checkUser)
                 .handler(this::dailySteps);
 
-        webClient = WebClient.create(vertx);
+        router.get(prefix + "/:username/dashboard")
+                .handler(jwtHandler)
+                .handler(this::checkUser)
+                .handler(this::dashboard);
+
+        upstreams = new Upstreams(vertx, config().getJsonObject("upstreams", new JsonObject()));
+        userProfiles = upstreams.get("user-profiles", "localhost", 3000);
+        activities = upstreams.get("activities", "localhost", 3001);
+        profileUpdates = KafkaProducer.createShared(vertx, "publicapi.profile.updates", profileUpdatesConfig());
+        // The day and month boundaries of the activity data, UTC unless configured otherwise
+        zone = ZoneId.of(config().getString("activity.zone", "UTC"));
+        responseCache = new ResponseCache(
+                config().getInteger("cache.max.entries", 10_000),
+                config().getLong("cache.ttl.current.ms", 5_000L),
+                config().getLong("cache.ttl.closed.ms", 3_600_000L));
+
+        // Only the record keys are needed, so the values are not decoded
+        stepUpdates = KafkaConsumer.<String, String>create(vertx, stepUpdatesConfig())
+                .handler(record -> {
+                    if (record.key() != null) {
+                        responseCache.invalidate(record.key());
+                    }
+                });
+        stepUpdates.rxPartitionsFor("daily.step.updates")
+                .map(partitions -> partitions.stream()
+                        .map(partition -> new TopicPartition(partition.getTopic(), partition.getPartition()))
+                        .collect(Collectors.toSet()))
+                .flatMapCompletable(stepUpdates::rxAssign)
+                .subscribe(
+                        () -> logger.debug("Reading daily.step.updates"),
+                        err -> logger.warn("Could not read daily.step.updates, cached steps will only expire", err));
+        vertx.eventBus().<JsonObject>consumer("publicapi.metrics", msg -> msg.reply(metrics()));
 
-        return vertx.createHttpServer()
+        return vertx.createHttpServer(ServerOptionsFactory.create(config().getJsonObject("server", new JsonObject())))
                 .requestHandler(router)
                 .rxListen(HTTP_PORT)
                 .ignoreElement();
     }
 
+    @Override
+    public Completable rxStop() {
+        return stepUpdates.rxClose();
+    }
+
+    /*
+     * The rate limiters are shared by the instances of the verticle, and the first one to start evicts their idle keys.
+     */
+    private RateLimiter sharedRateLimiter(String name, double ratePerSecond, int burst, long idleMillis) {
+        LocalMap<String, RateLimiter> limiters = vertx.getDelegate().sharedData().getLocalMap("publicapi.ratelimiters");
+        RateLimiter limiter = new RateLimiter(ratePerSecond, burst,
+                config().getInteger("ratelimit.max.keys", 100_000), idleMillis);
+        RateLimiter existing = limiters.putIfAbsent(name, limiter);
+        if (existing != null) {
+            return existing;
+        }
+        vertx.setPeriodic(idleMillis, id -> limiter.evictIdle());
+        return limiter;
+    }
+
+    private static Map<String, String> stepUpdatesConfig() {
+        Map<String, String> config = new HashMap<>();
+        config.put("bootstrap.servers", "localhost:9092");
+        config.put("key.deserializer", "org.apache.kafka.common.serialization.StringDeserializer");
+        config.put("value.deserializer", "org.apache.kafka.common.serialization.StringDeserializer");
+        config.put("auto.offset.reset", "latest");
+        config.put("enable.auto.commit", "false");
+        return config;
+    }
+
+    private static Map<String, String> profileUpdatesConfig() {
+        Map<String, String> config = new HashMap<>();
+        config.put("bootstrap.servers", "localhost:9092");
+        config.put("key.serializer", "org.apache.kafka.common.serialization.StringSerializer");
+        config.put("value.serializer", "io.vertx.kafka.client.serialization.JsonObjectSerializer");
+        config.put("acks", "1");
+        return config;
+    }
+
+    private JsonObject metrics() {
+        return new JsonObject()
+                .put("responseCache", responseCache.metrics())
+                .put("upstreamRequests", upstreamRequests.metrics())
+                .put("upstreams", upstreams.metrics())
+                .put("tokenCache", tokenCache.metrics())
+                .put("rateLimits", new JsonObject()
+                        .put("address", addressLimiter.metrics())
+                        .put("subject", subjectLimiter.metrics()))
+                .put("userDevices", userDevices.metrics())
+                .put("tokenIssuance", tokenIssuanceMetrics());
+    }
+
+    private JsonObject tokenIssuanceMetrics() {
+        JsonObject metrics = new JsonObject();
+        tokenStages.forEach((stage, histogram) -> metrics.put(stage, histogram.toJson()));
+        return metrics;
+    }
+
     private void checkUser(RoutingContext ctx) {
-        String subject = ctx.user().principal().getString("sub");
+        String subject = CachedJwtAuthHandler.subject(ctx);
         if (!ctx.pathParam("username").equals(subject)) {
             sendStatusCode(ctx, 403);
         } else {
@@ -146,57 +312,117 @@ public class PublicApiVerticle extends AbstractVerticle {
     }
 
     private void register(RoutingContext ctx) {
-        webClient
-                .post(3000, "localhost", "/register")
-                .putHeader("Content-Type", "application/json")
-                .rxSendJson(ctx.getBodyAsJson())
+        userProfiles.guarded(() -> userProfiles.rxWebClient()
+                        .post("/register")
+                        .putHeader("Content-Type", "application/json")
+                        .rxSendJson(ctx.getBodyAsJson()), PublicApiVerticle::isServerError)
                 .subscribe(
                         response -> sendStatusCode(ctx, response.statusCode()),
-                        err -> sendBadGateway(ctx, err));
+                        err -> sendUpstreamError(ctx, err));
     }
 
     private void sendStatusCode(RoutingContext ctx, int code) {
         ctx.response().setStatusCode(code).end();
     }
 
-    private void sendBadGateway(RoutingContext ctx, Throwable err) {
-        logger.error("Woops", err);
-        ctx.fail(502);
+    /*
+     * Guard rejections are expected when an upstream service is overloaded or down, so they are not logged as errors.
+     */
+    private void sendUpstreamError(RoutingContext ctx, Throwable err) {
+        if (err instanceof UpstreamRejectedException) {
+            logger.debug("Rejected", err);
+            ctx.response().putHeader("Retry-After", "1");
+            ctx.fail(503);
+        } else if (err instanceof TimeoutException) {
+            logger.warn("Upstream timeout");
+            ctx.fail(504);
+        } else {
+            logger.error("Woops", err);
+            ctx.fail(502);
+        }
+    }
+
+    private static boolean isServerError(HttpResponse<Buffer> resp) {
+        return resp.statusCode() >= 500;
     }
 
     /*
-     * A typical RxJava composition of asynchronous operations with flatMap to chain requests.
-     *
-     * Also uses the declarative API of the Vert.x router to specify that we expect the first request to be a success.
+     * A typical RxJava composition of asynchronous operations. The device is only looked up once the authentication has
+     * succeeded, and only 5xx responses count for the circuit breaker of the user profile service.
      */
     private void token(RoutingContext ctx) {
         JsonObject payload = ctx.getBodyAsJson();
         String username = payload.getString("username");
-        webClient
-                .post(3000, "localhost", "/authenticate")
-                .expect(ResponsePredicate.SC_SUCCESS)
-                .rxSendJson(payload)
-                .flatMap(resp -> fetchUserDetails(username))
-                .map(resp -> resp.body().getString("deviceId"))
-                .map(deviceId -> makeJwtToken(username, deviceId))
+        long startedAt = System.nanoTime();
+
+        Single<HttpResponse<Buffer>> authenticated = timed("authenticate", userProfiles.guarded(() -> userProfiles
+                .rxWebClient()
+                .post("/authenticate")
+                .rxSendJson(payload), PublicApiVerticle::isServerError)
+                .map(resp -> {
+                    if (resp.statusCode() / 100 != 2) {
+                        throw new UpstreamStatusException(resp.statusCode());
+                    }
+                    return resp;
+                }));
+        authenticated
+                .flatMap(resp -> timed("deviceLookup", deviceIdOf(username)))
+                .map(id -> {
+                    long signStartedAt = System.nanoTime();
+                    String token = makeJwtToken(username, id);
+                    tokenStages.get("sign").record(System.nanoTime() - signStartedAt);
+                    return token;
+                })
                 .subscribe(
-                        token -> sendToken(ctx, token),
+                        token -> {
+                            tokenStages.get("total").record(System.nanoTime() - startedAt);
+                            sendToken(ctx, token);
+                        },
                         err -> handleAuthError(ctx, err));
     }
 
-    private Single<HttpResponse<JsonObject>> fetchUserDetails(String username) {
-        return webClient
-                .get(3000, "localhost", "/" + username)
-                .expect(ResponsePredicate.SC_OK)
-                .as(BodyCodec.jsonObject())
-                .rxSend();
+    private <T> Single<T> timed(String stage, Single<T> operation) {
+        return Single.defer(() -> {
+            long startedAt = System.nanoTime();
+            return operation.doOnSuccess(result -> tokenStages.get(stage).record(System.nanoTime() - startedAt));
+        });
+    }
+
+    private Single<String> deviceIdOf(String username) {
+        String deviceId = userDevices.get(username);
+        if (deviceId != null) {
+            return Single.just(deviceId);
+        }
+        return fetchUserDetails(username)
+                .map(details -> details.getString("deviceId"))
+                .doOnSuccess(id -> userDevices.put(username, id));
+    }
+
+    private Single<JsonObject> fetchUserDetails(String username) {
+        return coalescedGet(userProfiles, "/" + username)
+                .map(resp -> {
+                    if (resp.statusCode() != 200) {
+                        throw new UpstreamStatusException(resp.statusCode());
+                    }
+                    return resp.bodyAsJsonObject();
+                });
+    }
+
+    /*
+     * Identical GET requests issued while one is in flight share its response, which must not be modified.
+     */
+    private Single<HttpResponse<Buffer>> coalescedGet(Upstream upstream, String requestUri) {
+        return upstreamRequests.execute(upstream.name() + requestUri, () -> upstream.guarded(() -> upstream
+                .rxWebClient()
+                .get(requestUri)
+                .rxSend(), PublicApiVerticle::isServerError));
     }
 
     private String makeJwtToken(String username, String deviceId) {
         JsonObject claims = new JsonObject()
                 .put("deviceId", deviceId);
         JWTOptions jwtOptions = new JWTOptions()
-                .setAlgorithm("RS256")
+                .setAlgorithm(jwtAlgorithm)
                 .setExpiresInMinutes(10_080) // 7 days
                 .setIssuer("10k-steps-api")
                 .setSubject(username);
@@ -204,6 +430,10 @@ public class PublicApiVerticle extends AbstractVerticle {
     }
 
     private void handleAuthError(RoutingContext ctx, Throwable err) {
+        if (err instanceof UpstreamRejectedException || err instanceof TimeoutException) {
+            sendUpstreamError(ctx, err);
+            return;
+        }
         logger.error("Authentication error", err);
         ctx.fail(401);
     }
@@ -212,76 +442,301 @@ public class PublicApiVerticle extends AbstractVerticle {
         ctx.response().putHeader("Content-Type", "application/jwt").end(token);
     }
 
+    /*
+     * In streaming mode (proxy.streaming) the profile is piped from the user profile service, otherwise the request
+     * is coalesced with identical ones and the buffered response is forwarded.
+     */
     private void fetchUser(RoutingContext ctx) {
-        webClient
-                .get(3000, "localhost", "/" + ctx.pathParam("username"))
-                .as(BodyCodec.jsonObject())
-                .rxSend()
+        String uri = "/" + ctx.pathParam("username");
+        if (config().getBoolean("proxy.streaming", false)) {
+            proxy(ctx, userProfiles, HttpMethod.GET, uri)
+                    .ignoreElement()
+                    .doOnError(err -> sendProxyError(ctx, err))
+                    .onErrorComplete()
+                    .subscribe();
+            return;
+        }
+        coalescedGet(userProfiles, uri)
                 .subscribe(
                         resp -> forwardJsonOrStatusCode(ctx, resp),
-                        err -> sendBadGateway(ctx, err));
+                        err -> sendUpstreamError(ctx, err));
     }
 
-    private void forwardJsonOrStatusCode(RoutingContext ctx, HttpResponse<JsonObject> resp) {
+    private void forwardJsonOrStatusCode(RoutingContext ctx, HttpResponse<Buffer> resp) {
         if (resp.statusCode() != 200) {
             sendStatusCode(ctx, resp.statusCode());
+        } else if (resp.body() == null) {
+            // An empty body is null rather than an empty buffer
+            ctx.response().end();
         } else {
             ctx.response()
                     .putHeader("Content-Type", "application/json")
-                    .end(resp.body().encode());
+                    .end(resp.body());
         }
     }
 
     private void updateUser(RoutingContext ctx) {
-        webClient
-                .put(3000, "localhost", "/" + ctx.pathParam("username"))
-                .putHeader("Content-Type", "application/json")
-                .expect(ResponsePredicate.SC_OK)
-                .rxSendBuffer(ctx.getBody())
+        proxy(ctx, userProfiles, HttpMethod.PUT, "/" + ctx.pathParam("username"))
                 .subscribe(
-                        resp -> ctx.response().end(),
-                        err -> sendBadGateway(ctx, err));
+                        status -> {
+                            if (status == 200) {
+                                responseCache.invalidate(CachedJwtAuthHandler.deviceId(ctx));
+                                userDevices.invalidate(ctx.pathParam("username"));
+                                publishProfileUpdate(ctx.pathParam("username"), CachedJwtAuthHandler.deviceId(ctx));
+                            }
+                        },
+                        err -> sendProxyError(ctx, err));
+    }
+
+    /*
+     * Other services cache profile data and consume the user.profile.updates Kafka topic. A failed send is only logged.
+     */
+    private void publishProfileUpdate(String username, String deviceId) {
+        JsonObject update = new JsonObject()
+                .put("username", username)
+                .put("deviceId", deviceId);
+        profileUpdates.rxSend(KafkaProducerRecord.create("user.profile.updates", username, update))
+                .subscribe(metadata -> {
+                }, err -> logger.warn("Could not publish the profile update of {}", username, err));
+    }
+
+    /*
+     * Streaming pass-through: the request body (if any) and the upstream response are piped with back-pressure, and
+     * only the end-to-end headers are copied. The upstream guard covers the call until the response headers arrive, and
+     * a failed call resets the upstream request and discards the rest of the client request body.
+     */
+    private Single<Integer> proxy(RoutingContext ctx, Upstream upstream, HttpMethod method, String uri) {
+        HttpServerRequest request = ctx.request();
+        HttpServerResponse response = ctx.response();
+        boolean hasBody = hasBody(request, method);
+        if (hasBody) {
+            // Resumed by the pipe once the upstream request is ready
+            request.pause();
+        }
+        HttpClientRequest[] sent = {null};
+        return upstream.guarded(() -> upstream.rxHttpClient()
+                        .rxRequest(method, uri)
+                        .flatMap(upstreamRequest -> {
+                            sent[0] = upstreamRequest;
+                            copyHeaders(request.headers(), upstreamRequest.headers(), PROXIED_REQUEST_HEADERS);
+                            if (!hasBody) {
+                                return upstreamRequest.rxSend();
+                            }
+                            if (request.getHeader("Content-Length") == null) {
+                                upstreamRequest.setChunked(true);
+                            }
+                            return upstreamRequest.rxSend(request);
+                        }), upstreamResponse -> upstreamResponse.statusCode() >= 500)
+                .flatMap(upstreamResponse -> {
+                    response.setStatusCode(upstreamResponse.statusCode());
+                    copyHeaders(upstreamResponse.headers(), response.headers(), PROXIED_RESPONSE_HEADERS);
+                    if (upstreamResponse.getHeader("Content-Length") == null) {
+                        response.setChunked(true);
+                    }
+                    return upstreamResponse.rxPipeTo(response).toSingleDefault(upstreamResponse.statusCode());
+                })
+                .doOnError(err -> abortProxy(request, sent[0]));
+    }
+
+    /*
+     * The route handler runs before the body has arrived, so whether there is one comes from the headers: HTTP/1.1
+     * needs a Content-Length or a Transfer-Encoding for a body, while an HTTP/2 body may come without either.
+     */
+    private static boolean hasBody(HttpServerRequest request, HttpMethod method) {
+        String contentLength = request.getHeader("Content-Length");
+        if (contentLength != null) {
+            return !"0".equals(contentLength.trim());
+        }
+        if (request.getHeader("Transfer-Encoding") != null) {
+            return true;
+        }
+        return request.version() == HttpVersion.HTTP_2
+                && (method == HttpMethod.POST || method == HttpMethod.PUT || method == HttpMethod.PATCH);
+    }
+
+    private static void abortProxy(HttpServerRequest request, HttpClientRequest upstreamRequest) {
+        if (upstreamRequest != null) {
+            upstreamRequest.reset();
+        }
+        if (!request.isEnded()) {
+            // Replaces the handlers of the pipe, if any
+            request.exceptionHandler(err -> logger.debug("Discarded request body failed", err));
+            request.endHandler(v -> logger.debug("Discarded the body of {}", request.uri()));
+            request.handler(buffer -> {
+            });
+            request.resume();
+        }
+    }
+
+    private static void copyHeaders(MultiMap from, MultiMap to, List<String> names) {
+        for (String name : names) {
+            String value = from.get(name);
+            if (value != null) {
+                to.set(name, value);
+            }
+        }
+    }
+
+    private void sendProxyError(RoutingContext ctx, Throwable err) {
+        if (ctx.response().headWritten()) {
+            // Too late for an error status: the client will see a truncated response
+            logger.error("Proxied response failed", err);
+            ctx.response().reset();
+        } else {
+            sendUpstreamError(ctx, err);
+        }
     }
 
     private void totalSteps(RoutingContext ctx) {
-        String deviceId = ctx.user().principal().getString("deviceId");
-        webClient
-                .get(3001, "localhost", "/" + deviceId + "/total")
-                .as(BodyCodec.jsonObject())
-                .rxSend()
-                .subscribe(
-                        resp -> forwardJsonOrStatusCode(ctx, resp),
-                        err -> sendBadGateway(ctx, err));
+        String deviceId = CachedJwtAuthHandler.deviceId(ctx);
+        forwardCachedJson(ctx, deviceId, "/" + deviceId + "/total", false);
     }
 
     /*
      * The device identifier is extracted from the JWT token data and passed along to the web client request.
      */
     private void monthlySteps(RoutingContext ctx) {
-        String deviceId = ctx.user().principal().getString("deviceId"); // From the JWT token
+        String deviceId = CachedJwtAuthHandler.deviceId(ctx); // From the JWT token
         String year = ctx.pathParam("year");
         String month = ctx.pathParam("month");
-        webClient
-                .get(3001, "localhost", "/" + deviceId + "/" + year + "/" + month)
-                .as(BodyCodec.jsonObject())
-                .rxSend()
-                .subscribe(
-                        resp -> forwardJsonOrStatusCode(ctx, resp),
-                        err -> sendBadGateway(ctx, err));
+        forwardCachedJson(ctx, deviceId, "/" + deviceId + "/" + year + "/" + month, isClosedMonth(year, month));
     }
 
     private void dailySteps(RoutingContext ctx) {
-        String deviceId = ctx.user().principal().getString("deviceId");
+        String deviceId = CachedJwtAuthHandler.deviceId(ctx);
         String year = ctx.pathParam("year");
         String month = ctx.pathParam("month");
         String day = ctx.pathParam("day");
-        webClient
-                .get(3001, "localhost", "/" + deviceId + "/" + year + "/" + month + "/" + day)
-                .as(BodyCodec.jsonObject())
-                .rxSend()
+        forwardCachedJson(ctx, deviceId, "/" + deviceId + "/" + year + "/" + month + "/" + day,
+                isClosedDay(year, month, day));
+    }
+
+    /*
+     * Serves a GET on the activity service from the response cache when possible. Only successful responses are
+     * cached, and the body is forwarded as is rather than decoded and encoded again.
+     */
+    private void forwardCachedJson(RoutingContext ctx, String deviceId, String route, boolean closedPeriod) {
+        cachedActivity(deviceId, route, closedPeriod)
                 .subscribe(
-                        resp -> forwardJsonOrStatusCode(ctx, resp),
-                        err -> sendBadGateway(ctx, err));
+                        entry -> sendCacheEntry(ctx, entry),
+                        err -> {
+                            if (err instanceof UpstreamStatusException) {
+                                sendStatusCode(ctx, ((UpstreamStatusException) err).statusCode());
+                            } else {
+                                sendUpstreamError(ctx, err);
+                            }
+                        });
+    }
+
+    private Single<ResponseCache.Entry> cachedActivity(String deviceId, String route, boolean closedPeriod) {
+        ResponseCache.Entry cached = responseCache.get(deviceId, route);
+        if (cached != null) {
+            return Single.just(cached);
+        }
+        return coalescedGet(activities, route)
+                .map(resp -> {
+                    if (resp.statusCode() != 200 || resp.body() == null) {
+                        throw new UpstreamStatusException(resp.statusCode());
+                    }
+                    return responseCache.put(deviceId, route, resp.body().getDelegate(), closedPeriod);
+                });
+    }
+
+    /*
+     * As in the CollectorService of chapter 5, the upstream requests are issued in parallel and combined with
+     * Single.zip, but a branch that fails or times out is replaced by an error entry. Only when every branch fails is
+     * the request failed.
+     */
+    private void dashboard(RoutingContext ctx) {
+        String username = ctx.pathParam("username");
+        String deviceId = CachedJwtAuthHandler.deviceId(ctx);
+        LocalDate today = LocalDate.now(zone);
+        // Zero-padded like the URLs of the month and day routes, so that both share the cache entries
+        String month = String.format("/%s/%d/%02d", deviceId, today.getYear(), today.getMonthValue());
+
+        Single<JsonObject> profile = dashboardBranch("profile", fetchUserDetails(username));
+        Single<JsonObject> total = dashboardBranch("total",
+                cachedActivity(deviceId, "/" + deviceId + "/total", false).map(this::toJson));
+        Single<JsonObject> thisMonth = dashboardBranch("month",
+                cachedActivity(deviceId, month, false).map(this::toJson));
+        Single<JsonObject> thisDay = dashboardBranch("today",
+                cachedActivity(deviceId, String.format("%s/%02d", month, today.getDayOfMonth()), false)
+                        .map(this::toJson));
+
+        Single.zip(profile, total, thisMonth, thisDay, Arrays::asList)
+                .subscribe(branches -> {
+                    long failed = branches.stream().filter(branch -> branch.containsKey("error")).count();
+                    if (failed == branches.size()) {
+                        sendStatusCode(ctx, 502);
+                        return;
+                    }
+                    JsonObject dashboard = new JsonObject()
+                            .put("username", username)
+                            .put("date", today.toString())
+                            .put("profile", branches.get(0))
+                            .put("total", branches.get(1))
+                            .put("month", branches.get(2))
+                            .put("today", branches.get(3))
+                            .put("partial", failed > 0);
+                    ctx.response()
+                            .putHeader("Content-Type", "application/json")
+                            .end(dashboard.encode());
+                }, err -> sendUpstreamError(ctx, err));
+    }
+
+    private Single<JsonObject> dashboardBranch(String name, Single<JsonObject> branch) {
+        return branch
+                .timeout(config().getLong("dashboard.branch.timeout.ms", 1_000L), TimeUnit.MILLISECONDS,
+                        RxHelper.scheduler(vertx))
+                .onErrorReturn(err -> {
+                    String error;
+                    if (err instanceof TimeoutException) {
+                        error = "timeout";
+                    } else if (err instanceof UpstreamRejectedException) {
+                        error = "rejected";
+                    } else if (err instanceof UpstreamStatusException) {
+                        error = "status " + ((UpstreamStatusException) err).statusCode();
+                    } else {
+                        logger.warn("Dashboard branch {} failed", name, err);
+                        error = "unavailable";
+                    }
+                    return new JsonObject().put("error", error);
+                });
+    }
+
+    private JsonObject toJson(ResponseCache.Entry entry) {
+        return new JsonObject(entry.body);
+    }
+
+    private void sendCacheEntry(RoutingContext ctx, ResponseCache.Entry entry) {
+        // no-cache lets clients keep the response, as long as they revalidate it with If-None-Match
+        ctx.response()
+                .putHeader("ETag", entry.etag)
+                .putHeader("Cache-Control", "private, no-cache");
+        if (entry.matches(ctx.request().getHeader("If-None-Match"))) {
+            sendStatusCode(ctx, 304);
+        } else {
+            ctx.response()
+                    .putHeader("Content-Type", "application/json")
+                    .end(Buffer.newInstance(entry.body));
+        }
+    }
+
+    private boolean isClosedMonth(String year, String month) {
+        try {
+            return YearMonth.of(Integer.parseInt(year), Integer.parseInt(month)).isBefore(YearMonth.now(zone));
+        } catch (NumberFormatException | DateTimeException e) {
+            return false;
+        }
+    }
+
+    private boolean isClosedDay(String year, String month, String day) {
+        try {
+            return LocalDate.of(Integer.parseInt(year), Integer.parseInt(month), Integer.parseInt(day))
+                    .isBefore(LocalDate.now(zone));
+        } catch (NumberFormatException | DateTimeException e) {
+            return false;
+        }
     }
 
     public static void main(String[] args) {
@@ -0,0 +1,52 @@
+package tenksteps.publicapi;
+
+import io.vertx.core.Handler;
+import io.vertx.reactivex.core.net.SocketAddress;
+import io.vertx.reactivex.ext.web.RoutingContext;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * RateLimitHandler is the admission control of the public API: it runs before any other API handler, and answers 429
+ * with a Retry-After header to the requests beyond the limits.
+ *
+ * Each request counts against the limit of its remote address and, when its bearer token has already been verified,
+ * against the limit of the token subject. Tokens are not verified here: an unknown token only counts against the
+ * remote address, so a client cannot spend the budget of another user by forging tokens in its name.
+ *
+ * @author sm@creativefusion.net
+ */
+class RateLimitHandler implements Handler<RoutingContext> {
+
+    private final RateLimiter byAddress;
+    private final RateLimiter bySubject;
+    private final TokenCache tokenCache;
+
+    RateLimitHandler(RateLimiter byAddress, RateLimiter bySubject, TokenCache tokenCache) {
+        this.byAddress = byAddress;
+        this.bySubject = bySubject;
+        this.tokenCache = tokenCache;
+    }
+
+    @Override
+    public void handle(RoutingContext ctx) {
+        SocketAddress remoteAddress = ctx.request().remoteAddress();
+        long waitNanos = byAddress.acquire(remoteAddress != null ? remoteAddress.host() : "unknown");
+        if (waitNanos == 0L) {
+            String token = CachedJwtAuthHandler.bearerToken(ctx.request());
+            TokenCache.VerifiedToken verified = token != null ? tokenCache.peek(token) : null;
+            if (verified != null && verified.subject != null) {
+                waitNanos = bySubject.acquire(verified.subject);
+            }
+        }
+        if (waitNanos > 0L) {
+            long seconds = Math.max(1L, (waitNanos + TimeUnit.SECONDS.toNanos(1) - 1) / TimeUnit.SECONDS.toNanos(1));
+            ctx.response()
+                    .setStatusCode(429)
+                    .putHeader("Retry-After", String.valueOf(seconds))
+                    .end();
+            return;
+        }
+        ctx.next();
+    }
+}
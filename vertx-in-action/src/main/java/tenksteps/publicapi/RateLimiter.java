@@ -0,0 +1,136 @@
+package tenksteps.publicapi;
+
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.shareddata.Shareable;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * RateLimiter admits at most ratePerSecond requests per second and per key, with bursts of up to burst requests. It is
+ * a lock-free token bucket (the generic cell rate algorithm, one AtomicLong per key), so it can be shared by the
+ * instances of the verticle. When more than maxKeys keys are tracked, the keys with the fullest buckets go first.
+ *
+ * @author sm@creativefusion.net
+ */
+class RateLimiter implements Shareable {
+
+    private final long emissionIntervalNanos;
+    private final long burstToleranceNanos;
+    private final int maxKeys;
+    private final long idleNanos;
+    private final LongSupplier clock;
+    private final ConcurrentHashMap<String, AtomicLong> buckets = new ConcurrentHashMap<>();
+    private final AtomicBoolean makingRoom = new AtomicBoolean();
+
+    // Metrics
+    private final LongAdder admitted = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder evicted = new LongAdder();
+    private final LongAdder displaced = new LongAdder();
+
+    RateLimiter(double ratePerSecond, int burst, int maxKeys, long idleMillis) {
+        this(ratePerSecond, burst, maxKeys, idleMillis, System::nanoTime);
+    }
+
+    RateLimiter(double ratePerSecond, int burst, int maxKeys, long idleMillis, LongSupplier clock) {
+        this.emissionIntervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / ratePerSecond);
+        this.burstToleranceNanos = emissionIntervalNanos * (Math.max(1, burst) - 1);
+        this.maxKeys = maxKeys;
+        this.idleNanos = TimeUnit.MILLISECONDS.toNanos(idleMillis);
+        this.clock = clock;
+    }
+
+    /*
+     * Returns 0 when the request is admitted, otherwise how many nanoseconds the client should wait before retrying.
+     */
+    long acquire(String key) {
+        long now = clock.getAsLong();
+        AtomicLong bucket = bucket(key, now);
+        while (true) {
+            long arrival = bucket.get();
+            long theoretical = Math.max(arrival, now);
+            long ahead = theoretical - now;
+            if (ahead > burstToleranceNanos) {
+                rejected.increment();
+                return ahead - burstToleranceNanos;
+            }
+            if (bucket.compareAndSet(arrival, theoretical + emissionIntervalNanos)) {
+                admitted.increment();
+                return 0L;
+            }
+        }
+    }
+
+    void evictIdle() {
+        evictIdle(clock.getAsLong());
+    }
+
+    private void evictIdle(long now) {
+        // remove(key, value) only succeeds if no request has replaced the bucket in between, and a concurrent acquire
+        // on a removed bucket is merely forgotten, which is what eviction does anyway
+        buckets.forEach((key, bucket) -> {
+            if (now - bucket.get() >= idleNanos && buckets.remove(key, bucket)) {
+                evicted.increment();
+            }
+        });
+    }
+
+    int size() {
+        return buckets.size();
+    }
+
+    JsonObject metrics() {
+        return new JsonObject()
+                .put("keys", buckets.size())
+                .put("maxKeys", maxKeys)
+                .put("admitted", admitted.sum())
+                .put("rejected", rejected.sum())
+                .put("evicted", evicted.sum())
+                .put("displaced", displaced.sum());
+    }
+
+    private AtomicLong bucket(String key, long now) {
+        AtomicLong bucket = buckets.get(key);
+        if (bucket != null) {
+            return bucket;
+        }
+        // Only one caller makes room at a time, the others add their key meanwhile (so the map can briefly hold a few
+        // more keys than maxKeys)
+        if (buckets.size() >= maxKeys && makingRoom.compareAndSet(false, true)) {
+            try {
+                makeRoom(now);
+            } finally {
+                makingRoom.set(false);
+            }
+        }
+        return buckets.computeIfAbsent(key, k -> new AtomicLong(now));
+    }
+
+    /*
+     * Evicts the idle keys, then if the map is still full, the tenth of the keys with the oldest theoretical arrival
+     * times. The sort is amortized over the maxKeys / 10 new keys that fit afterwards.
+     */
+    private void makeRoom(long now) {
+        evictIdle(now);
+        if (buckets.size() < maxKeys) {
+            return;
+        }
+        long[] arrivals = buckets.values().stream().mapToLong(AtomicLong::get).toArray();
+        if (arrivals.length == 0) {
+            return;
+        }
+        Arrays.sort(arrivals);
+        long threshold = arrivals[Math.min(arrivals.length - 1, arrivals.length / 10)];
+        buckets.forEach((k, bucket) -> {
+            if (bucket.get() <= threshold && buckets.remove(k, bucket)) {
+                displaced.increment();
+            }
+        });
+    }
+}
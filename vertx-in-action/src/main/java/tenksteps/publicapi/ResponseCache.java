@@ -0,0 +1,164 @@
+package tenksteps.publicapi;
+
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.JsonObject;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.LongSupplier;
+
+/**
+ * ResponseCache keeps the activity service responses that dashboards poll every few seconds, keyed by device
+ * identifier and route. Data for closed periods is kept longer than data that may still change, and each entry
+ * carries an ETag computed from its body.
+ *
+ * The cache is confined to the event loop of the verticle that owns it.
+ *
+ * @author sm@creativefusion.net
+ */
+class ResponseCache {
+
+    private final int maxEntries;
+    private final long currentTtlMillis;
+    private final long closedTtlMillis;
+    private final LongSupplier clock;
+
+    private final LinkedHashMap<String, Entry> entries;
+    private final Map<String, Set<String>> routesByDevice = new HashMap<>();
+
+    // Metrics
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long invalidations;
+
+    ResponseCache(int maxEntries, long currentTtlMillis, long closedTtlMillis) {
+        this(maxEntries, currentTtlMillis, closedTtlMillis, System::currentTimeMillis);
+    }
+
+    ResponseCache(int maxEntries, long currentTtlMillis, long closedTtlMillis, LongSupplier clock) {
+        this.maxEntries = maxEntries;
+        this.currentTtlMillis = currentTtlMillis;
+        this.closedTtlMillis = closedTtlMillis;
+        this.clock = clock;
+        // Access-ordered, so that the eldest entry is the least recently used one
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                if (size() > ResponseCache.this.maxEntries) {
+                    unindex(eldest.getValue().deviceId, eldest.getKey());
+                    evictions++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /*
+     * Returns the cached response, or null when there is none or it has expired.
+     */
+    Entry get(String deviceId, String route) {
+        Entry entry = entries.get(route);
+        if (entry != null && clock.getAsLong() < entry.expiresAt) {
+            hits++;
+            return entry;
+        }
+        if (entry != null) {
+            remove(deviceId, route);
+        }
+        misses++;
+        return null;
+    }
+
+    Entry put(String deviceId, String route, Buffer body, boolean closedPeriod) {
+        long ttl = closedPeriod ? closedTtlMillis : currentTtlMillis;
+        Entry entry = new Entry(deviceId, body, clock.getAsLong() + ttl);
+        entries.put(route, entry);
+        routesByDevice.computeIfAbsent(deviceId, id -> new HashSet<>()).add(route);
+        return entry;
+    }
+
+    void invalidate(String deviceId) {
+        Set<String> routes = routesByDevice.remove(deviceId);
+        if (routes != null) {
+            routes.forEach(entries::remove);
+            invalidations += routes.size();
+        }
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    JsonObject metrics() {
+        long lookups = hits + misses;
+        return new JsonObject()
+                .put("size", entries.size())
+                .put("maxEntries", maxEntries)
+                .put("hits", hits)
+                .put("misses", misses)
+                .put("hitRate", lookups == 0 ? 0.0d : (double) hits / lookups)
+                .put("evictions", evictions)
+                .put("invalidations", invalidations);
+    }
+
+    private void remove(String deviceId, String route) {
+        entries.remove(route);
+        unindex(deviceId, route);
+    }
+
+    private void unindex(String deviceId, String route) {
+        Set<String> routes = routesByDevice.get(deviceId);
+        if (routes != null) {
+            routes.remove(route);
+            if (routes.isEmpty()) {
+                routesByDevice.remove(deviceId);
+            }
+        }
+    }
+
+    static class Entry {
+
+        final String deviceId;
+        final Buffer body;
+        final String etag;
+        final long expiresAt;
+
+        Entry(String deviceId, Buffer body, long expiresAt) {
+            this.deviceId = deviceId;
+            this.body = body;
+            this.etag = etag(body);
+            this.expiresAt = expiresAt;
+        }
+
+        /*
+         * If-None-Match may hold several tags, and weak tags match too since they are only used for GET requests.
+         */
+        boolean matches(String ifNoneMatch) {
+            if (ifNoneMatch == null) {
+                return false;
+            }
+            for (String tag : ifNoneMatch.split(",")) {
+                tag = tag.trim();
+                if (tag.equals("*") || tag.equals(etag) || tag.equals("W/" + etag)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private static String etag(Buffer body) {
+            // 64-bit FNV-1a over the body bytes
+            long hash = 0xcbf29ce484222325L;
+            for (int i = 0; i < body.length(); i++) {
+                hash ^= body.getByte(i) & 0xff;
+                hash *= 0x100000001b3L;
+            }
+            return "\"" + Long.toHexString(hash) + "\"";
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package tenksteps.publicapi;
+
+import io.reactivex.Single;
+import io.vertx.core.json.JsonObject;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+/**
+ * SingleFlight coalesces identical concurrent calls: while a call for a given key is in flight, other callers asking
+ * for the same key get the outcome of the pending one instead of issuing a new call. Nothing is kept once it is over.
+ *
+ * A SingleFlight is confined to the event loop of the verticle that created it.
+ *
+ * @author sm@creativefusion.net
+ */
+class SingleFlight<T> {
+
+    private final Map<String, Single<T>> inFlight = new HashMap<>();
+
+    // Metrics
+    private long requests;
+    private long upstreamCalls;
+
+    Single<T> execute(String key, Supplier<Single<T>> call) {
+        requests++;
+        Single<T> pending = inFlight.get(key);
+        if (pending != null) {
+            return pending;
+        }
+        upstreamCalls++;
+        AtomicReference<Single<T>> shared = new AtomicReference<>();
+        // cache() subscribes to the call once and replays its outcome to every subscriber
+        shared.set(Single.defer(call::get)
+                .doFinally(() -> inFlight.remove(key, shared.get()))
+                .cache());
+        inFlight.put(key, shared.get());
+        return shared.get();
+    }
+
+    int inFlight() {
+        return inFlight.size();
+    }
+
+    JsonObject metrics() {
+        return new JsonObject()
+                .put("requests", requests)
+                .put("upstreamCalls", upstreamCalls)
+                .put("coalesced", requests - upstreamCalls)
+                .put("coalescingRatio", requests == 0 ? 0.0d : (double) (requests - upstreamCalls) / requests)
+                .put("inFlight", inFlight.size());
+    }
+}
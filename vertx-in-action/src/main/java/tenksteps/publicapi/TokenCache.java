@@ -0,0 +1,130 @@
+package tenksteps.publicapi;
+
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.auth.User;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+/**
+ * TokenCache remembers the JSON web tokens whose signature has already been verified, keyed by their SHA-256 hash,
+ * along with the claims the request handlers need. An entry never outlives its token.
+ *
+ * A cache is confined to the event loop of the verticle that owns it.
+ *
+ * @author sm@creativefusion.net
+ */
+class TokenCache {
+
+    private final int maxEntries;
+    private final long maxTtlMillis;
+    private final LongSupplier clock;
+    private final MessageDigest sha256;
+    private final LinkedHashMap<String, VerifiedToken> tokens;
+
+    // Metrics
+    private long hits;
+    private long misses;
+
+    TokenCache(int maxEntries, long maxTtlMillis) {
+        this(maxEntries, maxTtlMillis, System::currentTimeMillis);
+    }
+
+    TokenCache(int maxEntries, long maxTtlMillis, LongSupplier clock) {
+        this.maxEntries = maxEntries;
+        this.maxTtlMillis = maxTtlMillis;
+        this.clock = clock;
+        try {
+            this.sha256 = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+        // Access-ordered, so that the eldest entry is the least recently used one
+        this.tokens = new LinkedHashMap<String, VerifiedToken>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, VerifiedToken> eldest) {
+                return size() > TokenCache.this.maxEntries;
+            }
+        };
+    }
+
+    /*
+     * Returns the verified token, or null when the token has not been verified yet or has expired.
+     */
+    VerifiedToken get(String token) {
+        String key = hash(token);
+        VerifiedToken verified = tokens.get(key);
+        if (verified != null && clock.getAsLong() < verified.expiresAt) {
+            hits++;
+            return verified;
+        }
+        if (verified != null) {
+            tokens.remove(key);
+        }
+        misses++;
+        return null;
+    }
+
+    /*
+     * Like get, but not counted in the metrics, for the handlers that only look at a token before it is authenticated.
+     */
+    VerifiedToken peek(String token) {
+        VerifiedToken verified = tokens.get(hash(token));
+        return verified != null && clock.getAsLong() < verified.expiresAt ? verified : null;
+    }
+
+    /*
+     * The user must come from a successful verification of the token.
+     */
+    VerifiedToken put(String token, User user) {
+        long now = clock.getAsLong();
+        long expiresAt = now + maxTtlMillis;
+        Long exp = user.principal().getLong("exp");
+        if (exp != null) {
+            expiresAt = Math.min(expiresAt, exp * 1000L);
+        }
+        VerifiedToken verified = new VerifiedToken(user, expiresAt);
+        if (expiresAt > now) {
+            tokens.put(hash(token), verified);
+        }
+        return verified;
+    }
+
+    int size() {
+        return tokens.size();
+    }
+
+    JsonObject metrics() {
+        long lookups = hits + misses;
+        return new JsonObject()
+                .put("size", tokens.size())
+                .put("maxEntries", maxEntries)
+                .put("hits", hits)
+                .put("misses", misses)
+                .put("hitRate", lookups == 0 ? 0.0d : (double) hits / lookups);
+    }
+
+    private String hash(String token) {
+        return Base64.getEncoder().encodeToString(sha256.digest(token.getBytes(StandardCharsets.US_ASCII)));
+    }
+
+    static class VerifiedToken {
+
+        final User user;
+        final String subject;
+        final String deviceId;
+        final long expiresAt;
+
+        VerifiedToken(User user, long expiresAt) {
+            this.user = user;
+            this.subject = user.principal().getString("sub");
+            this.deviceId = user.principal().getString("deviceId");
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package tenksteps.publicapi;
+
+/**
+ * Signals that an upstream service answered with an unexpected status code, so that the gateway can forward that
+ * status code rather than a generic error.
+ *
+ * @author sm@creativefusion.net
+ */
+class UpstreamStatusException extends RuntimeException {
+
+    private final int statusCode;
+
+    UpstreamStatusException(int statusCode) {
+        // No stack trace: this is an expected outcome, not a bug
+        super("Unexpected status code " + statusCode, null, false, false);
+        this.statusCode = statusCode;
+    }
+
+    int statusCode() {
+        return statusCode;
+    }
+}
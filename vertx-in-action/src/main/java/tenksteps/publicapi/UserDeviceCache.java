@@ -0,0 +1,97 @@
+package tenksteps.publicapi;
+
+import io.vertx.core.json.JsonObject;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+/**
+ * UserDeviceCache maps usernames to device identifiers, so that issuing a token for a user who logs in again does not
+ * need to fetch the user details from the user profile service each time.
+ *
+ * The mapping of a user is dropped when the user profile is updated, and in any case after ttlMillis, so that a
+ * change made directly in the user profile service is eventually seen. The cache holds at most maxEntries users and
+ * evicts the least-recently-used one beyond that.
+ *
+ * A cache is confined to the event loop of the verticle that owns it.
+ *
+ * @author sm@creativefusion.net
+ */
+class UserDeviceCache {
+
+    private final int maxEntries;
+    private final long ttlMillis;
+    private final LongSupplier clock;
+    private final LinkedHashMap<String, Entry> devices;
+
+    // Metrics
+    private long hits;
+    private long misses;
+    private long invalidations;
+
+    UserDeviceCache(int maxEntries, long ttlMillis) {
+        this(maxEntries, ttlMillis, System::currentTimeMillis);
+    }
+
+    UserDeviceCache(int maxEntries, long ttlMillis, LongSupplier clock) {
+        this.maxEntries = maxEntries;
+        this.ttlMillis = ttlMillis;
+        this.clock = clock;
+        // Access-ordered, so that the eldest entry is the least recently used one
+        this.devices = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > UserDeviceCache.this.maxEntries;
+            }
+        };
+    }
+
+    /*
+     * Returns the device identifier of the user, or null when it is not known or has expired.
+     */
+    String get(String username) {
+        Entry entry = devices.get(username);
+        if (entry != null && clock.getAsLong() < entry.expiresAt) {
+            hits++;
+            return entry.deviceId;
+        }
+        if (entry != null) {
+            devices.remove(username);
+        }
+        misses++;
+        return null;
+    }
+
+    void put(String username, String deviceId) {
+        devices.put(username, new Entry(deviceId, clock.getAsLong() + ttlMillis));
+    }
+
+    void invalidate(String username) {
+        if (devices.remove(username) != null) {
+            invalidations++;
+        }
+    }
+
+    JsonObject metrics() {
+        long lookups = hits + misses;
+        return new JsonObject()
+                .put("size", devices.size())
+                .put("maxEntries", maxEntries)
+                .put("hits", hits)
+                .put("misses", misses)
+                .put("hitRate", lookups == 0 ? 0.0d : (double) hits / lookups)
+                .put("invalidations", invalidations);
+    }
+
+    private static class Entry {
+
+        final String deviceId;
+        final long expiresAt;
+
+        Entry(String deviceId, long expiresAt) {
+            this.deviceId = deviceId;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
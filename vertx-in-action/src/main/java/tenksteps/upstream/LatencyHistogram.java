@@ -0,0 +1,78 @@
+package tenksteps.upstream;
+
+import io.vertx.core.json.JsonObject;
+
+import java.util.Arrays;
+
+/**
+ * LatencyHistogram records durations in buckets of exponentially growing width, from 1 microsecond to about a minute,
+ * with each bucket about 20% wider than the previous one. This gives percentiles that are within 20% of the exact
+ * value for a fixed memory cost, whatever the number of recorded values.
+ *
+ * A histogram is confined to the event loop of the verticle that owns it.
+ *
+ * @author sm@creativefusion.net
+ */
+public class LatencyHistogram {
+
+    private static final long[] BOUNDS_MICROS = bounds();
+
+    private final long[] counts = new long[BOUNDS_MICROS.length + 1];
+    private long count;
+    private long totalMicros;
+    private long maxMicros;
+
+    public void record(long nanos) {
+        long micros = Math.max(0L, nanos / 1000L);
+        int index = Arrays.binarySearch(BOUNDS_MICROS, micros);
+        // The bucket of a value is the first one whose upper bound is greater than or equal to it
+        counts[index >= 0 ? index : -index - 1]++;
+        count++;
+        totalMicros += micros;
+        maxMicros = Math.max(maxMicros, micros);
+    }
+
+    public long count() {
+        return count;
+    }
+
+    /*
+     * Returns the upper bound of the bucket holding the given percentile, in milliseconds.
+     */
+    public double percentileMillis(double percentile) {
+        if (count == 0) {
+            return 0.0d;
+        }
+        long rank = (long) Math.ceil(percentile / 100.0d * count);
+        long seen = 0L;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= Math.max(1L, rank)) {
+                long bound = i < BOUNDS_MICROS.length ? BOUNDS_MICROS[i] : maxMicros;
+                return Math.min(bound, maxMicros) / 1000.0d;
+            }
+        }
+        return maxMicros / 1000.0d;
+    }
+
+    public JsonObject toJson() {
+        return new JsonObject()
+                .put("count", count)
+                .put("meanMs", count == 0 ? 0.0d : totalMicros / 1000.0d / count)
+                .put("p50Ms", percentileMillis(50.0d))
+                .put("p90Ms", percentileMillis(90.0d))
+                .put("p99Ms", percentileMillis(99.0d))
+                .put("maxMs", maxMicros / 1000.0d);
+    }
+
+    private static long[] bounds() {
+        long[] bounds = new long[128];
+        int size = 0;
+        long bound = 1L;
+        while (bound <= 60_000_000L) {
+            bounds[size++] = bound;
+            bound = Math.max(bound + 1, (long) (bound * 1.2d));
+        }
+        return Arrays.copyOf(bounds, size);
+    }
+}
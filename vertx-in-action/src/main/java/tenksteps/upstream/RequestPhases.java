@@ -0,0 +1,81 @@
+package tenksteps.upstream;
+
+import io.vertx.ext.web.client.WebClient;
+import io.vertx.ext.web.client.impl.HttpContext;
+import io.vertx.ext.web.client.impl.WebClientInternal;
+
+/**
+ * RequestPhases is the only place that uses the internals of the Vert.x web client (io.vertx.ext.web.client.impl).
+ *
+ * Vert.x 4.0 has no public API to observe the phases of a web client request, and Upstream needs them to tell the
+ * time a request waits for a pooled connection from its overall latency. The internal interceptor is wrapped here
+ * behind a listener that only sees our own Phase and Request types, so that a Vert.x upgrade that changes the
+ * internals (or that brings a public interceptor API) only affects this class.
+ *
+ * @author sm@creativefusion.net
+ */
+class RequestPhases {
+
+    enum Phase {
+        PREPARE_REQUEST, CREATE_REQUEST, SEND_REQUEST, DISPATCH_RESPONSE, FAILURE
+    }
+
+    /*
+     * The attributes of one request, kept from one phase to the next (including across redirects).
+     */
+    interface Request {
+
+        <T> T get(String key);
+
+        void set(String key, Object value);
+    }
+
+    interface Listener {
+
+        void onPhase(Phase phase, Request request);
+    }
+
+    private RequestPhases() {
+    }
+
+    /*
+     * The listener runs on the event loop of the request, and must not block: the request only proceeds once it
+     * returns.
+     */
+    static void listen(WebClient webClient, Listener listener) {
+        ((WebClientInternal) webClient).addInterceptor(ctx -> {
+            Phase phase = phaseOf(ctx);
+            if (phase != null) {
+                listener.onPhase(phase, new Request() {
+                    @Override
+                    public <T> T get(String key) {
+                        return ctx.get(key);
+                    }
+
+                    @Override
+                    public void set(String key, Object value) {
+                        ctx.set(key, value);
+                    }
+                });
+            }
+            ctx.next();
+        });
+    }
+
+    private static Phase phaseOf(HttpContext<?> ctx) {
+        switch (ctx.phase()) {
+            case PREPARE_REQUEST:
+                return Phase.PREPARE_REQUEST;
+            case CREATE_REQUEST:
+                return Phase.CREATE_REQUEST;
+            case SEND_REQUEST:
+                return Phase.SEND_REQUEST;
+            case DISPATCH_RESPONSE:
+                return Phase.DISPATCH_RESPONSE;
+            case FAILURE:
+                return Phase.FAILURE;
+            default:
+                return null;
+        }
+    }
+}
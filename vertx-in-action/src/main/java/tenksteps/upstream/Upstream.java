@@ -0,0 +1,182 @@
+package tenksteps.upstream;
+
+import io.reactivex.Single;
+import io.reactivex.functions.Predicate;
+import io.vertx.core.Vertx;
+import io.vertx.core.http.HttpClient;
+import io.vertx.core.http.HttpVersion;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.web.client.WebClient;
+import io.vertx.ext.web.client.WebClientOptions;
+import io.vertx.reactivex.RxHelper;
+
+import java.util.function.Supplier;
+
+/**
+ * An Upstream is a named HTTP service that we call, with its own tuned connection pool and a WebClient on top of it.
+ * The connection wait and overall time of each request are recorded (see RequestPhases), and calls should go through
+ * guarded (see UpstreamGuard).
+ *
+ * @author sm@creativefusion.net
+ */
+public class Upstream {
+
+    private static final String STARTED_AT = "upstream.startedAt";
+    private static final String CREATED_AT = "upstream.createdAt";
+    private static final String WAITING = "upstream.waiting";
+
+    private final String name;
+    private final String host;
+    private final int port;
+    private final String protocol;
+    private final HttpClient httpClient;
+    private final WebClient webClient;
+    private final UpstreamGuard guard;
+    private io.vertx.reactivex.ext.web.client.WebClient rxWebClient;
+
+    // Metrics
+    private final LatencyHistogram queueWait = new LatencyHistogram();
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private int activeConnections;
+    private long openedConnections;
+    private int waitingRequests;
+    private int inFlightRequests;
+    private long failures;
+
+    Upstream(Vertx vertx, String name, JsonObject definition) {
+        this.name = name;
+        this.host = definition.getString("host", "localhost");
+        this.port = definition.getInteger("port");
+        this.protocol = definition.getString("protocol", "http1");
+
+        WebClientOptions options = new WebClientOptions()
+                .setDefaultHost(host)
+                .setDefaultPort(port)
+                .setKeepAlive(true)
+                .setMaxPoolSize(definition.getInteger("poolSize", 16))
+                .setMaxWaitQueueSize(definition.getInteger("maxWaitQueue", 256))
+                .setIdleTimeout(definition.getInteger("idleTimeoutSeconds", 60))
+                .setKeepAliveTimeout(definition.getInteger("idleTimeoutSeconds", 60));
+        switch (protocol) {
+            case "http1":
+                break;
+            case "pipelining":
+                options.setPipelining(true)
+                        .setPipeliningLimit(definition.getInteger("pipeliningLimit", 10));
+                break;
+            case "http2":
+                options.setProtocolVersion(HttpVersion.HTTP_2)
+                        .setHttp2ClearTextUpgrade(false)
+                        .setHttp2MaxPoolSize(definition.getInteger("poolSize", 2))
+                        .setHttp2MultiplexingLimit(definition.getInteger("http2MultiplexingLimit", 100))
+                        .setHttp2KeepAliveTimeout(definition.getInteger("idleTimeoutSeconds", 60));
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown protocol " + protocol + " for upstream " + name);
+        }
+
+        httpClient = vertx.createHttpClient(options);
+        httpClient.connectionHandler(conn -> {
+            activeConnections++;
+            openedConnections++;
+            conn.closeHandler(v -> activeConnections--);
+        });
+        webClient = WebClient.wrap(httpClient, options);
+        RequestPhases.listen(webClient, this::measure);
+        guard = new UpstreamGuard(name, definition, RxHelper.scheduler(vertx.getOrCreateContext()),
+                System::currentTimeMillis);
+    }
+
+    public String name() {
+        return name;
+    }
+
+    public WebClient webClient() {
+        return webClient;
+    }
+
+    /*
+     * The raw HTTP client shares the connection pool of the web client, but its requests are not observed,
+     * so they only show up in the connection metrics.
+     */
+    public io.vertx.reactivex.core.http.HttpClient rxHttpClient() {
+        return io.vertx.reactivex.core.http.HttpClient.newInstance(httpClient);
+    }
+
+    public io.vertx.reactivex.ext.web.client.WebClient rxWebClient() {
+        if (rxWebClient == null) {
+            rxWebClient = io.vertx.reactivex.ext.web.client.WebClient.newInstance(webClient);
+        }
+        return rxWebClient;
+    }
+
+    public <T> Single<T> guarded(Supplier<Single<T>> call) {
+        return guard.call(call, result -> false);
+    }
+
+    /*
+     * isFailure tells which results count as failures for the circuit breaker, for instance 5xx responses.
+     */
+    public <T> Single<T> guarded(Supplier<Single<T>> call, Predicate<? super T> isFailure) {
+        return guard.call(call, isFailure);
+    }
+
+    public JsonObject metrics() {
+        return new JsonObject()
+                .put("host", host)
+                .put("port", port)
+                .put("protocol", protocol)
+                .put("activeConnections", activeConnections)
+                .put("openedConnections", openedConnections)
+                .put("waitingRequests", waitingRequests)
+                .put("inFlightRequests", inFlightRequests)
+                .put("failures", failures)
+                .put("queueWait", queueWait.toJson())
+                .put("latency", latency.toJson())
+                .put("guard", guard.metrics());
+    }
+
+    void close() {
+        webClient.close();
+    }
+
+    /*
+     * The connection is requested from the pool between the CREATE_REQUEST and SEND_REQUEST phases, so the time
+     * between them is the time spent waiting for a connection. A redirect goes through CREATE_REQUEST again, but not
+     * through PREPARE_REQUEST.
+     */
+    private void measure(RequestPhases.Phase phase, RequestPhases.Request ctx) {
+        long now = System.nanoTime();
+        switch (phase) {
+            case PREPARE_REQUEST:
+                ctx.set(STARTED_AT, now);
+                inFlightRequests++;
+                break;
+            case CREATE_REQUEST:
+                ctx.set(CREATED_AT, now);
+                ctx.set(WAITING, true);
+                waitingRequests++;
+                break;
+            case SEND_REQUEST:
+                ctx.set(WAITING, false);
+                waitingRequests--;
+                queueWait.record(now - ctx.<Long>get(CREATED_AT));
+                break;
+            case DISPATCH_RESPONSE:
+                inFlightRequests--;
+                latency.record(now - ctx.<Long>get(STARTED_AT));
+                break;
+            case FAILURE:
+                if (Boolean.TRUE.equals(ctx.get(WAITING))) {
+                    waitingRequests--;
+                }
+                if (ctx.get(STARTED_AT) != null) {
+                    inFlightRequests--;
+                }
+                failures++;
+                break;
+            default:
+                break;
+        }
+    }
+}
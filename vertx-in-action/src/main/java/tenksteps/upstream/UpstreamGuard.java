@@ -0,0 +1,210 @@
+package tenksteps.upstream;
+
+import io.reactivex.Scheduler;
+import io.reactivex.Single;
+import io.reactivex.functions.Predicate;
+import io.vertx.core.json.JsonObject;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * UpstreamGuard protects the callers of an upstream service from its slowdowns and failures, with a bulkhead, a
+ * circuit breaker and a timeout that adapts to the p99 latency of the recent calls. Rejections fail with an
+ * UpstreamRejectedException, and time-outs with a TimeoutException.
+ *
+ * A guard is confined to the event loop of the verticle that owns it.
+ *
+ * @author sm@creativefusion.net
+ */
+public class UpstreamGuard {
+
+    private enum State {CLOSED, OPEN, HALF_OPEN}
+
+    private static final int MIN_SAMPLES = 100;
+
+    private final String name;
+    private final Scheduler scheduler;
+    private final LongSupplier clock;
+
+    private final int maxConcurrent;
+    private final int maxFailures;
+    private final long resetTimeoutMillis;
+    private final int halfOpenProbes;
+    private final long initialTimeoutMillis;
+    private final long minTimeoutMillis;
+    private final long maxTimeoutMillis;
+    private final double timeoutMultiplier;
+    private final int timeoutWindow;
+
+    private State state = State.CLOSED;
+    private int consecutiveFailures;
+    private long openedAt;
+    private int activeCalls;
+    private int activeProbes;
+
+    // Latencies of the current window, and of the previous one once the current window is full
+    private LatencyHistogram currentWindow = new LatencyHistogram();
+    private LatencyHistogram previousWindow;
+
+    // Metrics
+    private long calls;
+    private long failures;
+    private long timeouts;
+    private long bulkheadRejections;
+    private long circuitRejections;
+    private long circuitOpenings;
+
+    UpstreamGuard(String name, JsonObject definition, Scheduler scheduler, LongSupplier clock) {
+        this.name = name;
+        this.scheduler = scheduler;
+        this.clock = clock;
+        this.maxConcurrent = definition.getInteger("maxConcurrent", 64);
+        this.maxFailures = definition.getInteger("circuit.maxFailures", 5);
+        this.resetTimeoutMillis = definition.getLong("circuit.resetTimeoutMs", 5_000L);
+        this.halfOpenProbes = definition.getInteger("circuit.halfOpenProbes", 1);
+        this.initialTimeoutMillis = definition.getLong("timeout.initialMs", 2_000L);
+        this.minTimeoutMillis = definition.getLong("timeout.minMs", 100L);
+        this.maxTimeoutMillis = definition.getLong("timeout.maxMs", 5_000L);
+        this.timeoutMultiplier = definition.getDouble("timeout.multiplier", 2.0d);
+        this.timeoutWindow = definition.getInteger("timeout.window", 1_000);
+    }
+
+    /*
+     * Calls are only started when admitted; isFailure tells which results count as failures (e.g., 5xx responses)
+     * even though they are passed to the caller.
+     */
+    <T> Single<T> call(Supplier<Single<T>> call, Predicate<? super T> isFailure) {
+        return Single.defer(() -> {
+            Permit permit = admit();
+            long startedAt = clock.getAsLong();
+            long timeoutMillis = timeoutMillis();
+            return call.get()
+                    .timeout(timeoutMillis, TimeUnit.MILLISECONDS, scheduler)
+                    .doOnSuccess(result -> {
+                        currentWindowRecord(clock.getAsLong() - startedAt);
+                        if (isFailure.test(result)) {
+                            onFailure(permit);
+                        } else {
+                            onSuccess(permit);
+                        }
+                    })
+                    .doOnError(err -> {
+                        if (err instanceof TimeoutException) {
+                            timeouts++;
+                            currentWindowRecord(Math.max(clock.getAsLong() - startedAt, timeoutMillis));
+                        }
+                        onFailure(permit);
+                    })
+                    // A cancelled call neither succeeded nor failed, it just gives its permit back
+                    .doOnDispose(() -> release(permit));
+        });
+    }
+
+    long timeoutMillis() {
+        LatencyHistogram window = previousWindow != null ? previousWindow : currentWindow;
+        if (window.count() < MIN_SAMPLES) {
+            return initialTimeoutMillis;
+        }
+        long adaptive = (long) Math.ceil(window.percentileMillis(99.0d) * timeoutMultiplier);
+        return Math.max(minTimeoutMillis, Math.min(maxTimeoutMillis, adaptive));
+    }
+
+    JsonObject metrics() {
+        return new JsonObject()
+                .put("state", state.name())
+                .put("activeCalls", activeCalls)
+                .put("maxConcurrent", maxConcurrent)
+                .put("timeoutMs", timeoutMillis())
+                .put("calls", calls)
+                .put("failures", failures)
+                .put("timeouts", timeouts)
+                .put("bulkheadRejections", bulkheadRejections)
+                .put("circuitRejections", circuitRejections)
+                .put("circuitOpenings", circuitOpenings);
+    }
+
+    /*
+     * Returns the permit of an admitted call, or throws when the call is rejected.
+     */
+    private Permit admit() {
+        if (state == State.OPEN && clock.getAsLong() - openedAt >= resetTimeoutMillis) {
+            state = State.HALF_OPEN;
+            activeProbes = 0;
+        }
+        if (state == State.OPEN || (state == State.HALF_OPEN && activeProbes >= halfOpenProbes)) {
+            circuitRejections++;
+            throw new UpstreamRejectedException(name, "circuit open");
+        }
+        if (activeCalls >= maxConcurrent) {
+            bulkheadRejections++;
+            throw new UpstreamRejectedException(name, "too many concurrent calls");
+        }
+        calls++;
+        activeCalls++;
+        boolean probe = state == State.HALF_OPEN;
+        if (probe) {
+            activeProbes++;
+        }
+        return new Permit(probe);
+    }
+
+    private void onSuccess(Permit permit) {
+        if (!release(permit)) {
+            return;
+        }
+        consecutiveFailures = 0;
+        if (permit.probe && state == State.HALF_OPEN) {
+            state = State.CLOSED;
+        }
+    }
+
+    private void onFailure(Permit permit) {
+        if (!release(permit)) {
+            return;
+        }
+        failures++;
+        consecutiveFailures++;
+        boolean failedProbe = permit.probe && state == State.HALF_OPEN;
+        if (failedProbe || (state == State.CLOSED && consecutiveFailures >= maxFailures)) {
+            state = State.OPEN;
+            openedAt = clock.getAsLong();
+            circuitOpenings++;
+        }
+    }
+
+    /*
+     * Operators like zip may dispose a call that has already completed, so a permit must only be released once.
+     */
+    private boolean release(Permit permit) {
+        if (permit.released) {
+            return false;
+        }
+        permit.released = true;
+        activeCalls--;
+        if (permit.probe) {
+            activeProbes--;
+        }
+        return true;
+    }
+
+    private void currentWindowRecord(long elapsedMillis) {
+        currentWindow.record(TimeUnit.MILLISECONDS.toNanos(elapsedMillis));
+        if (currentWindow.count() >= timeoutWindow) {
+            previousWindow = currentWindow;
+            currentWindow = new LatencyHistogram();
+        }
+    }
+
+    private static class Permit {
+
+        final boolean probe;
+        boolean released;
+
+        Permit(boolean probe) {
+            this.probe = probe;
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package tenksteps.upstream;
+
+/**
+ * Thrown when an UpstreamGuard refuses to call its upstream service, either because too many calls are already in
+ * flight or because its circuit is open.
+ *
+ * @author sm@creativefusion.net
+ */
+public class UpstreamRejectedException extends RuntimeException {
+
+    private final String upstream;
+
+    UpstreamRejectedException(String upstream, String reason) {
+        // No stack trace: this is an expected outcome, not a bug
+        super("Call to upstream " + upstream + " rejected: " + reason, null, false, false);
+        this.upstream = upstream;
+    }
+
+    public String upstream() {
+        return upstream;
+    }
+}
@@ -0,0 +1,47 @@
+package tenksteps.upstream;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Upstreams is the registry of the HTTP services that a verticle calls. Each upstream is looked up by name with a
+ * default host and port, which the definitions of the upstreams configuration entry override.
+ *
+ * @author sm@creativefusion.net
+ */
+public class Upstreams {
+
+    private final Vertx vertx;
+    private final JsonObject definitions;
+    private final Map<String, Upstream> upstreams = new LinkedHashMap<>();
+
+    public Upstreams(Vertx vertx, JsonObject definitions) {
+        this.vertx = vertx;
+        this.definitions = definitions;
+    }
+
+    public Upstreams(io.vertx.reactivex.core.Vertx vertx, JsonObject definitions) {
+        this(vertx.getDelegate(), definitions);
+    }
+
+    public Upstream get(String name, String defaultHost, int defaultPort) {
+        return upstreams.computeIfAbsent(name, key -> new Upstream(vertx, name, new JsonObject()
+                .put("host", defaultHost)
+                .put("port", defaultPort)
+                .mergeIn(definitions.getJsonObject(name, new JsonObject()))));
+    }
+
+    public JsonObject metrics() {
+        JsonObject metrics = new JsonObject();
+        upstreams.forEach((name, upstream) -> metrics.put(name, upstream.metrics()));
+        return metrics;
+    }
+
+    public void close() {
+        upstreams.values().forEach(Upstream::close);
+        upstreams.clear();
+    }
+}
@@ -0,0 +1,87 @@
+package tenksteps.webapp.users;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * AssetPrecompressor is run at build time on the web application assets: it writes a .gz variant next to each text
+ * asset, when it saves at least 10% of the size. The JDK has no Brotli encoder, so .br variants are to be produced by
+ * the brotli command-line tool in the same build step.
+ *
+ * Arguments: [directory] [minimum size in bytes]
+ *
+ * @author sm@creativefusion.net
+ */
+public class AssetPrecompressor {
+
+    private static final Logger logger = LoggerFactory.getLogger(AssetPrecompressor.class);
+
+    private static final Set<String> COMPRESSIBLE = new HashSet<>(Arrays.asList(
+            "html", "css", "js", "mjs", "json", "map", "svg", "txt", "xml", "ico", "wasm"));
+
+    public static void main(String[] args) throws IOException {
+        Path root = Paths.get(args.length > 0 ? args[0] : "webroot/assets");
+        int minSize = args.length > 1 ? Integer.parseInt(args[1]) : 1024;
+        int written = precompress(root, minSize);
+        logger.info("{} gzip variants written in {}", written, root);
+    }
+
+    static int precompress(Path root, int minSize) throws IOException {
+        List<Path> files;
+        try (Stream<Path> walk = Files.walk(root)) {
+            files = walk.filter(Files::isRegularFile).filter(AssetPrecompressor::isCompressible)
+                    .collect(Collectors.toList());
+        }
+        int written = 0;
+        for (Path file : files) {
+            if (Files.size(file) >= minSize && gzip(file)) {
+                written++;
+            }
+        }
+        return written;
+    }
+
+    private static boolean isCompressible(Path file) {
+        String name = file.getFileName().toString();
+        return COMPRESSIBLE.contains(name.substring(name.lastIndexOf('.') + 1).toLowerCase());
+    }
+
+    private static boolean gzip(Path file) throws IOException {
+        Path variant = file.resolveSibling(file.getFileName() + ".gz");
+        if (Files.exists(variant)
+                && Files.getLastModifiedTime(variant).compareTo(Files.getLastModifiedTime(file)) >= 0) {
+            return false;
+        }
+        byte[] content = Files.readAllBytes(file);
+        try (OutputStream out = new BestGzipOutputStream(Files.newOutputStream(variant))) {
+            out.write(content);
+        }
+        if (Files.size(variant) > content.length * 0.9d) {
+            Files.delete(variant);
+            return false;
+        }
+        return true;
+    }
+
+    private static class BestGzipOutputStream extends GZIPOutputStream {
+
+        BestGzipOutputStream(OutputStream out) throws IOException {
+            super(out);
+            def.setLevel(Deflater.BEST_COMPRESSION);
+        }
+    }
+}
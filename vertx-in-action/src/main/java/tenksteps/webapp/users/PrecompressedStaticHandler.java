@@ -0,0 +1,350 @@
+package tenksteps.webapp.users;
+
+import io.reactivex.Maybe;
+import io.reactivex.Single;
+import io.vertx.core.Handler;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.http.impl.MimeMapping;
+import io.vertx.core.json.JsonObject;
+import io.vertx.reactivex.core.Vertx;
+import io.vertx.reactivex.core.buffer.Buffer;
+import io.vertx.reactivex.core.file.FileProps;
+import io.vertx.reactivex.core.file.FileSystem;
+import io.vertx.reactivex.core.http.HttpServerResponse;
+import io.vertx.reactivex.ext.web.RoutingContext;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * PrecompressedStaticHandler serves the static assets of the web application, as StaticHandler does, but it picks the
+ * .br and .gz variants produced at build time (see AssetPrecompressor), lets clients cache fingerprinted files for a
+ * year, and keeps the small files in memory. Assets are expected not to change while the application runs.
+ *
+ * A handler is confined to the event loop of the verticle that owns it.
+ *
+ * @author sm@creativefusion.net
+ */
+class PrecompressedStaticHandler implements Handler<RoutingContext> {
+
+    private static final Pattern FINGERPRINTED = Pattern.compile(".*[.-][0-9a-fA-F]{8,}\\.[A-Za-z0-9]+$");
+    private static final String IMMUTABLE = "public, max-age=31536000, immutable";
+    private static final String REVALIDATE = "public, no-cache";
+    private static final String INDEX = "/index.html";
+    private static final int MAX_ENTRIES = 10_000;
+    private static final int MAX_MISSING_ENTRIES = 1_000;
+    private static final Pattern RANGE = Pattern.compile("bytes=(\\d*)-(\\d*)");
+    private static final long[] UNSATISFIABLE = new long[0];
+
+    // Files that are already compressed: the server must not compress them on the fly either
+    private static final Set<String> INCOMPRESSIBLE = new HashSet<>(Arrays.asList(
+            "png", "jpg", "jpeg", "gif", "webp", "avif", "woff", "woff2", "mp4", "webm", "zip", "gz", "br"));
+
+    private static final Asset MISSING = new Asset(null, false, false, new ArrayList<>());
+
+    private final FileSystem fileSystem;
+    private final String webRoot;
+    private final int maxCachedFileSize;
+    private final long maxCacheBytes;
+    private final Map<String, Asset> assets;
+    private final Map<String, Boolean> missing;
+    private long cachedBytes;
+
+    // Metrics
+    private long hits;
+    private long misses;
+    private long precompressed;
+    private long ranges;
+
+    PrecompressedStaticHandler(Vertx vertx, String webRoot, int maxCachedFileSize, long maxCacheBytes) {
+        this.fileSystem = vertx.fileSystem();
+        this.webRoot = webRoot.endsWith("/") ? webRoot.substring(0, webRoot.length() - 1) : webRoot;
+        this.maxCachedFileSize = maxCachedFileSize;
+        this.maxCacheBytes = maxCacheBytes;
+        this.assets = new LinkedHashMap<String, Asset>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Asset> eldest) {
+                if (size() <= MAX_ENTRIES) {
+                    return false;
+                }
+                cachedBytes -= eldest.getValue().cachedBytes();
+                return true;
+            }
+        };
+        this.missing = new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                return size() > MAX_MISSING_ENTRIES;
+            }
+        };
+    }
+
+    @Override
+    public void handle(RoutingContext ctx) {
+        String path = ctx.normalisedPath();
+        if (path.endsWith("/")) {
+            path = path + "index.html";
+        }
+        serve(ctx, path);
+    }
+
+    void serveIndex(RoutingContext ctx) {
+        serve(ctx, INDEX);
+    }
+
+    JsonObject metrics() {
+        return new JsonObject()
+                .put("assets", assets.size())
+                .put("missingPaths", missing.size())
+                .put("cachedBytes", cachedBytes)
+                .put("hits", hits)
+                .put("misses", misses)
+                .put("precompressed", precompressed)
+                .put("ranges", ranges);
+    }
+
+    private void serve(RoutingContext ctx, String path) {
+        HttpMethod method = ctx.request().method();
+        if ((method != HttpMethod.GET && method != HttpMethod.HEAD) || !isSafe(path)) {
+            ctx.next();
+            return;
+        }
+        Asset cached = missing.containsKey(path) ? MISSING : assets.get(path);
+        if (cached != null) {
+            hits++;
+            send(ctx, cached);
+            return;
+        }
+        misses++;
+        resolve(path).subscribe(asset -> {
+            // Concurrent misses on the same path resolve it more than once, only the last one is kept
+            if (asset == MISSING) {
+                missing.put(path, Boolean.TRUE);
+            } else {
+                Asset replaced = assets.put(path, asset);
+                cachedBytes += asset.cachedBytes() - (replaced != null ? replaced.cachedBytes() : 0L);
+            }
+            send(ctx, asset);
+        }, ctx::fail);
+    }
+
+    private void send(RoutingContext ctx, Asset asset) {
+        if (asset == MISSING) {
+            ctx.next();
+            return;
+        }
+        HttpServerResponse response = ctx.response();
+        // The offsets of a range are those of the file itself, so a range is taken from the identity variant
+        String range = ctx.request().getHeader("Range");
+        Variant variant = range != null
+                ? asset.identity()
+                : asset.negotiate(ctx.request().getHeader("Accept-Encoding"));
+        response
+                .putHeader("Content-Type", asset.contentType)
+                .putHeader("Cache-Control", asset.fingerprinted ? IMMUTABLE : REVALIDATE)
+                .putHeader("ETag", variant.etag)
+                .putHeader("Accept-Ranges", "bytes");
+        if (asset.variants.size() > 1) {
+            response.putHeader("Vary", "Accept-Encoding");
+        }
+        if (variant.encoding != null) {
+            precompressed++;
+            response.putHeader("Content-Encoding", variant.encoding);
+        } else if (!asset.compressible || range != null) {
+            // Tells the server not to compress the response
+            response.putHeader("Content-Encoding", "identity");
+        }
+        String ifNoneMatch = ctx.request().getHeader("If-None-Match");
+        String ifRange = ctx.request().getHeader("If-Range");
+        long[] bounds = range != null && (ifRange == null || ifRange.equals(variant.etag))
+                ? parseRange(range, variant.size) : null;
+        if (ifNoneMatch != null && ifNoneMatch.contains(variant.etag)) {
+            response.setStatusCode(304).end();
+        } else if (bounds == UNSATISFIABLE) {
+            response.setStatusCode(416).putHeader("Content-Range", "bytes */" + variant.size).end();
+        } else if (bounds != null) {
+            sendRange(ctx, variant, bounds[0], bounds[1]);
+        } else if (ctx.request().method() == HttpMethod.HEAD) {
+            response.putHeader("Content-Length", String.valueOf(variant.size)).end();
+        } else if (variant.content != null) {
+            response.end(variant.content);
+        } else {
+            response.sendFile(variant.file);
+        }
+    }
+
+    private void sendRange(RoutingContext ctx, Variant variant, long first, long last) {
+        ranges++;
+        long length = last - first + 1;
+        HttpServerResponse response = ctx.response()
+                .setStatusCode(206)
+                .putHeader("Content-Range", "bytes " + first + "-" + last + "/" + variant.size);
+        if (ctx.request().method() == HttpMethod.HEAD) {
+            response.putHeader("Content-Length", String.valueOf(length)).end();
+        } else if (variant.content != null) {
+            response.end(variant.content.getBuffer((int) first, (int) last + 1));
+        } else {
+            response.sendFile(variant.file, first, length);
+        }
+    }
+
+    /*
+     * Returns the first and last byte of a single byte range, UNSATISFIABLE when it starts beyond the end of the file,
+     * or null when the header is to be ignored (it is malformed, or asks for several ranges).
+     */
+    static long[] parseRange(String header, long size) {
+        Matcher matcher = RANGE.matcher(header.trim());
+        if (!matcher.matches() || (matcher.group(1).isEmpty() && matcher.group(2).isEmpty())) {
+            return null;
+        }
+        long first;
+        long last;
+        try {
+            if (matcher.group(1).isEmpty()) {
+                // A suffix range: the last bytes of the file
+                long suffix = Long.parseLong(matcher.group(2));
+                if (suffix == 0L) {
+                    return UNSATISFIABLE;
+                }
+                first = Math.max(0L, size - suffix);
+                last = size - 1;
+            } else {
+                first = Long.parseLong(matcher.group(1));
+                last = matcher.group(2).isEmpty() ? Long.MAX_VALUE : Long.parseLong(matcher.group(2));
+                if (last < first) {
+                    return null;
+                }
+                last = Math.min(last, size - 1);
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return first >= size ? UNSATISFIABLE : new long[]{first, last};
+    }
+
+    /*
+     * The .br variant comes first, so that it is preferred when the client accepts both encodings.
+     */
+    private Single<Asset> resolve(String path) {
+        String file = webRoot + path;
+        return variant(file, null)
+                .flatMapSingle(identity -> Maybe.concat(variant(file + ".br", "br"), variant(file + ".gz", "gzip"))
+                        .toList()
+                        .map(compressed -> {
+                            List<Variant> variants = new ArrayList<>(compressed);
+                            variants.add(identity);
+                            String extension = path.substring(path.lastIndexOf('.') + 1).toLowerCase();
+                            return new Asset(contentType(path), FINGERPRINTED.matcher(path).matches(),
+                                    !INCOMPRESSIBLE.contains(extension), variants);
+                        }))
+                .toSingle(MISSING);
+    }
+
+    private Maybe<Variant> variant(String file, String encoding) {
+        return fileSystem.rxProps(file)
+                .toMaybe()
+                .onErrorComplete()
+                .filter(FileProps::isRegularFile)
+                .flatMap(props -> {
+                    String etag = "\"" + props.size() + "-" + props.lastModifiedTime()
+                            + (encoding != null ? "-" + encoding : "") + "\"";
+                    if (props.size() > maxCachedFileSize || cachedBytes + props.size() > maxCacheBytes) {
+                        return Maybe.just(new Variant(file, encoding, props.size(), etag, null));
+                    }
+                    return fileSystem.rxReadFile(file)
+                            .map(content -> new Variant(file, encoding, props.size(), etag, content))
+                            .toMaybe();
+                });
+    }
+
+    private static String contentType(String path) {
+        String contentType = MimeMapping.getMimeTypeForFilename(path);
+        if (contentType == null) {
+            return "application/octet-stream";
+        }
+        if (contentType.startsWith("text/") || contentType.equals("application/javascript")) {
+            return contentType + ";charset=utf-8";
+        }
+        return contentType;
+    }
+
+    private static boolean isSafe(String path) {
+        return path.startsWith("/") && !path.contains("..") && !path.contains("\\") && path.indexOf('\0') < 0;
+    }
+
+    private static class Asset {
+
+        final String contentType;
+        final boolean fingerprinted;
+        final boolean compressible;
+        final List<Variant> variants;
+
+        Asset(String contentType, boolean fingerprinted, boolean compressible, List<Variant> variants) {
+            this.contentType = contentType;
+            this.fingerprinted = fingerprinted;
+            this.compressible = compressible;
+            this.variants = variants;
+        }
+
+        /*
+         * Returns the first variant whose encoding the client accepts, the identity variant being the last one.
+         */
+        Variant negotiate(String acceptEncoding) {
+            for (Variant variant : variants) {
+                if (variant.encoding == null || accepts(acceptEncoding, variant.encoding)) {
+                    return variant;
+                }
+            }
+            return identity();
+        }
+
+        Variant identity() {
+            return variants.get(variants.size() - 1);
+        }
+
+        long cachedBytes() {
+            return variants.stream()
+                    .filter(variant -> variant.content != null)
+                    .mapToLong(variant -> variant.size)
+                    .sum();
+        }
+
+        private static boolean accepts(String acceptEncoding, String encoding) {
+            if (acceptEncoding == null) {
+                return false;
+            }
+            for (String accepted : acceptEncoding.split(",")) {
+                String[] parts = accepted.trim().split(";");
+                if (parts[0].trim().equalsIgnoreCase(encoding)) {
+                    // An encoding with q=0 is explicitly refused
+                    return parts.length < 2 || !parts[1].trim().matches("q=0(\\.0*)?");
+                }
+            }
+            return false;
+        }
+    }
+
+    private static class Variant {
+
+        final String file;
+        final String encoding;
+        final long size;
+        final String etag;
+        final Buffer content;
+
+        Variant(String file, String encoding, long size, String etag, Buffer content) {
+            this.file = file;
+            this.encoding = encoding;
+            this.size = size;
+            this.etag = etag;
+            this.content = content;
+        }
+    }
+}
@@ -1,12 +1,13 @@
 package tenksteps.webapp.users;
 
 import io.reactivex.Completable;
+import io.vertx.core.json.JsonObject;
 import io.vertx.reactivex.core.AbstractVerticle;
 import io.vertx.reactivex.core.Vertx;
 import io.vertx.reactivex.ext.web.Router;
-import io.vertx.reactivex.ext.web.handler.StaticHandler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import tenksteps.http.ServerOptionsFactory;
 
 /**
  * The Vert.x code does not have much to do beyond starting an HTTP server and serving static content.
@@ -21,9 +22,14 @@ public class UserWebAppVerticle extends AbstractVerticle {
     @Override
     public Completable rxStart() {
         Router router = Router.router(vertx);
-        router.route().handler(StaticHandler.create("webroot/assets"));
-        router.get("/*").handler(ctx -> ctx.reroute("/index.html"));
-        return vertx.createHttpServer()
+        PrecompressedStaticHandler assets = new PrecompressedStaticHandler(vertx,
+                config().getString("webroot", "webroot/assets"),
+                config().getInteger("assets.cache.max.file.size", 256 * 1024),
+                config().getLong("assets.cache.max.bytes", 32L * 1024 * 1024));
+        router.route().handler(assets);
+        router.get("/*").handler(assets::serveIndex);
+        vertx.eventBus().<JsonObject>consumer("webapp.metrics", msg -> msg.reply(assets.metrics()));
+        return vertx.createHttpServer(ServerOptionsFactory.create(config().getJsonObject("server", new JsonObject())))
                 .requestHandler(router)
                 .rxListen(HTTP_PORT)
                 .ignoreElement();
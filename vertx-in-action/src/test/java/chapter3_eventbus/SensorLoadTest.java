@@ -0,0 +1,77 @@
+package chapter3_eventbus;
+
+import io.vertx.core.json.JsonObject;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class SensorLoadTest {
+
+    @Test
+    void testRateAndFractions() {
+        SensorLoad load = load(new JsonObject().put("rate", 100.0d).put("sensors", 10));
+        assertEquals(10, load.dueAt(millis(10)));
+        assertEquals(5, load.dueAt(millis(15)));
+        // Half an update is not published, but carried over to the next tick
+        assertEquals(0, load.dueAt(micros(15_500)));
+        assertEquals(1, load.dueAt(millis(16)));
+    }
+
+    @Test
+    void testBurst() {
+        JsonObject burst = new JsonObject().put("factor", 3.0d).put("periodMs", 1000L).put("durationMs", 100L);
+        SensorLoad load = load(new JsonObject().put("rate", 100.0d).put("sensors", 10).put("burst", burst));
+        for (int tick = 1; tick < 10; tick++) {
+            assertEquals(30, load.dueAt(millis(tick * 10)));
+        }
+        // The burst lasts for the first 100ms of every second
+        assertEquals(10, load.dueAt(millis(100)));
+        assertEquals(10, load.dueAt(millis(110)));
+    }
+
+    @Test
+    void testBacklogIsSpreadOverTicks() {
+        SensorLoad load = load(new JsonObject().put("rate", 100.0d).put("sensors", 10));
+        // After a 5 second stall, one second of updates is kept as a backlog, and each tick publishes at most twice its
+        // share of the rate until the backlog is caught up with
+        long now = 5_000L;
+        int published = load.dueAt(millis(now));
+        assertEquals(20, published);
+        int ticks = 1;
+        int count;
+        do {
+            now += 10L;
+            count = load.dueAt(millis(now));
+            published += count;
+            ticks++;
+        } while (count == 20);
+        assertEquals(10, count);
+        assertEquals(100, ticks);
+        assertEquals(1000 + 10 * (ticks - 1), published);
+    }
+
+    @Test
+    void testInvalidConfiguration() {
+        assertThrows(IllegalArgumentException.class,
+                () -> load(new JsonObject().put("rate", 100.0d).put("sensors", 0)));
+        assertThrows(IllegalArgumentException.class,
+                () -> load(new JsonObject().put("rate", 100.0d).put("tickMs", 0L)));
+    }
+
+    private static SensorLoad load(JsonObject config) {
+        SensorLoad load = new SensorLoad(null, "sensor.updates", config);
+        load.startAt(0L);
+        return load;
+    }
+
+    private static long millis(long millis) {
+        return TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    private static long micros(long micros) {
+        return TimeUnit.MICROSECONDS.toNanos(micros);
+    }
+}
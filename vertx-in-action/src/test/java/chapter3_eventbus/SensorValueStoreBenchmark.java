@@ -0,0 +1,81 @@
+package chapter3_eventbus;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Compares the HashMap<String, Double> that SensorData used to keep with the SensorValueStore, for sensor updates
+ * (on already known sensors, as in steady state) and for average requests, with a thousand and a million sensors.
+ *
+ * Run the main method (e.g., from the IDE) once the test classes have been compiled.
+ *
+ * @author sm@creativefusion.net
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SensorValueStoreBenchmark {
+
+    @Param({"1000", "1000000"})
+    public int sensors;
+
+    private final HashMap<String, Double> map = new HashMap<>();
+    private final SensorValueStore store = new SensorValueStore();
+    private final Random random = new Random(42L);
+    private String[] ids;
+    private int next;
+
+    @Setup
+    public void prepare() {
+        ids = new String[sensors];
+        for (int i = 0; i < sensors; i++) {
+            ids[i] = "sensor-" + i;
+            map.put(ids[i], 21.0d);
+            store.update(ids[i], 21.0d);
+        }
+    }
+
+    @Benchmark
+    public Double mapUpdate() {
+        return map.put(nextId(), 21.0d + random.nextDouble());
+    }
+
+    @Benchmark
+    public SensorValueStore storeUpdate() {
+        store.update(nextId(), 21.0d + random.nextDouble());
+        return store;
+    }
+
+    @Benchmark
+    public double mapAverage() {
+        return map.values().stream()
+                .collect(Collectors.averagingDouble(Double::doubleValue));
+    }
+
+    @Benchmark
+    public double storeAverage() {
+        return store.average();
+    }
+
+    private String nextId() {
+        next = next + 1 == ids.length ? 0 : next + 1;
+        return ids[next];
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(SensorValueStoreBenchmark.class.getSimpleName())
+                .build())
+                .run();
+    }
+}
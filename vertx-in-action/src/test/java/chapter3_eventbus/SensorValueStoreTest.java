@@ -0,0 +1,58 @@
+package chapter3_eventbus;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SensorValueStoreTest {
+
+    @Test
+    void testLatestValuesAndAverage() {
+        SensorValueStore store = new SensorValueStore(2);
+        assertEquals(0.0d, store.average());
+        store.update("a", 20.0d);
+        store.update("b", 22.0d);
+        store.update("a", 24.0d);
+        assertEquals(2, store.size());
+        assertEquals(24.0d, store.valueOf("a"));
+        assertEquals(23.0d, store.average());
+        assertTrue(store.contains("b"));
+        assertFalse(store.contains("c"));
+        assertTrue(Double.isNaN(store.valueOf("c")));
+    }
+
+    @Test
+    void testNonFiniteValuesAreRejected() {
+        SensorValueStore store = new SensorValueStore();
+        store.update("a", 20.0d);
+        assertFalse(store.update("a", Double.NaN));
+        assertFalse(store.update("b", Double.POSITIVE_INFINITY));
+        assertFalse(store.update("b", Double.NEGATIVE_INFINITY));
+        assertTrue(store.update("b", 22.0d));
+        assertEquals(2, store.size());
+        assertEquals(20.0d, store.valueOf("a"));
+        assertEquals(21.0d, store.average());
+    }
+
+    @Test
+    void testSameAverageAsTheMap() {
+        SensorValueStore store = new SensorValueStore();
+        HashMap<String, Double> map = new HashMap<>();
+        Random random = new Random(42L);
+        for (int i = 0; i < 1_000_000; i++) {
+            String id = "sensor-" + random.nextInt(50_000);
+            double value = 21.0d + random.nextGaussian() * 5.0d;
+            store.update(id, value);
+            map.put(id, value);
+        }
+        double expected = map.values().stream().mapToDouble(Double::doubleValue).average().orElse(0.0d);
+        assertEquals(map.size(), store.size());
+        assertEquals(expected, store.average(), 1e-9);
+        map.forEach((id, value) -> assertEquals(value, store.valueOf(id)));
+    }
+}
@@ -0,0 +1,89 @@
+package tenksteps.congrats;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class DailyDedupTest {
+
+    private final LocalDate today = LocalDate.of(2021, 3, 14);
+
+    @Test
+    void congratulatesOncePerDay() {
+        DailyDedup dedup = new DailyDedup(4);
+        assertThat(dedup.add("a1b2", today)).isTrue();
+        assertThat(dedup.add("a1b2", today)).isFalse();
+        assertThat(dedup.add("c3d4", today)).isTrue();
+        assertThat(dedup.add("a1b2", today.plusDays(1))).isTrue();
+        assertThat(dedup.add("c3d4", today)).isFalse();
+        assertThat(dedup.add("e5f6", today)).isTrue();
+        assertThat(dedup.add("a1b2", today.minusDays(1))).isFalse();
+        assertThat(dedup.metrics().getLong("tooOld")).isEqualTo(1L);
+    }
+
+    @Test
+    void containsKeepsTheDays() {
+        DailyDedup dedup = new DailyDedup(4);
+        assertThat(dedup.contains("a1b2", today)).isFalse();
+        assertThat(dedup.contains("a1b2", today)).isFalse();
+        assertThat(dedup.takeUnsaved()).isEmpty();
+        dedup.add("a1b2", today);
+        assertThat(dedup.contains("a1b2", today)).isTrue();
+        assertThat(dedup.contains("a1b2", today.plusDays(1))).isFalse();
+        assertThat(dedup.contains("a1b2", today.minusDays(2))).isTrue();
+        assertThat(dedup.contains("a1b2", today)).isTrue();
+        assertThat(dedup.metrics().getLong("tooOld")).isEqualTo(1L);
+    }
+
+    @Test
+    void keepsAFailedBatchUntilItIsFlushed(@TempDir Path dir) throws IOException {
+        DailyDedup dedup = new DailyDedup(4);
+        dedup.add("a1b2", today);
+        Map<LocalDate, DailyDedup.LongList> failed = dedup.takeUnsaved();
+        dedup.add("c3d4", today);
+        dedup.restoreUnsaved(failed);
+
+        Map<LocalDate, DailyDedup.LongList> batch = dedup.takeUnsaved();
+        assertThat(batch.get(today).size).isEqualTo(2);
+        assertThat(batch.get(today).values[0]).isEqualTo(DailyDedup.fingerprint("a1b2"));
+        DailyDedup.flush(dir, batch);
+        assertThat(dedup.takeUnsaved()).isEmpty();
+        assertThat(DailyDedup.load(dir, today, 4).add("c3d4", today)).isFalse();
+    }
+
+    @Test
+    void dropsOlderDays() {
+        DailyDedup dedup = new DailyDedup(4);
+        for (int i = 0; i < 1000; i++) {
+            assertThat(dedup.add("device-" + i, today)).isTrue();
+        }
+        assertThat(dedup.metrics().getLong("memoryBytes")).isLessThanOrEqualTo(2 * 4096 * 8L);
+        dedup.add("a1b2", today.plusDays(2));
+        assertThat(dedup.size()).isEqualTo(1);
+    }
+
+    @Test
+    void reloadsTheSavedDays(@TempDir Path dir) throws IOException {
+        DailyDedup dedup = new DailyDedup(4);
+        dedup.add("old", today.minusDays(2));
+        DailyDedup.flush(dir, dedup.takeUnsaved());
+        dedup.add("a1b2", today.minusDays(1));
+        dedup.add("c3d4", today);
+        DailyDedup.flush(dir, dedup.takeUnsaved());
+        assertThat(dedup.takeUnsaved()).isEmpty();
+
+        DailyDedup reloaded = DailyDedup.load(dir, today, 4);
+        assertThat(reloaded.size()).isEqualTo(2);
+        assertThat(reloaded.add("a1b2", today.minusDays(1))).isFalse();
+        assertThat(reloaded.add("c3d4", today)).isFalse();
+        assertThat(reloaded.add("a1b2", today)).isTrue();
+        assertThat(Files.exists(dir.resolve(today.minusDays(2) + ".dedup"))).isFalse();
+    }
+}
@@ -0,0 +1,157 @@
+package tenksteps.congrats;
+
+import io.reactivex.Flowable;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.mail.MailMessage;
+import io.vertx.junit5.VertxExtension;
+import io.vertx.junit5.VertxTestContext;
+import io.vertx.reactivex.core.Vertx;
+import io.vertx.reactivex.core.net.NetSocket;
+import io.vertx.reactivex.core.parsetools.RecordParser;
+import io.vertx.reactivex.ext.mail.MailClient;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+
+import java.io.IOException;
+import java.util.concurrent.TimeoutException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@ExtendWith(VertxExtension.class)
+class MailDispatcherTest {
+
+    private final FakeSmtpServer smtp = new FakeSmtpServer();
+    private MailClient mailClient;
+
+    @BeforeEach
+    void prepare(Vertx vertx, VertxTestContext ctx) {
+        vertx.createNetServer()
+                .connectHandler(smtp::accept)
+                .rxListen(0)
+                .subscribe(server -> {
+                    mailClient = MailClient.create(vertx, MailerConfig.config(new JsonObject()
+                            .put("port", server.actualPort())
+                            .put("poolSize", 4)));
+                    ctx.completeNow();
+                }, ctx::failNow);
+    }
+
+    @Test
+    void sendsOverPooledConnections(VertxTestContext ctx) {
+        MailDispatcher dispatcher = new MailDispatcher(mailClient, 4);
+        dispatcher.dispatch(Flowable.range(0, 40).map(i -> message("user" + i + "@tenksteps.tld")), m -> m)
+                .toList()
+                .subscribe(results -> ctx.verify(() -> {
+                    assertThat(results).hasSize(40);
+                    assertThat(smtp.messages).isEqualTo(40);
+                    assertThat(smtp.maxConnections).isLessThanOrEqualTo(4);
+                    assertThat(dispatcher.metrics().getLong("succeeded")).isEqualTo(40L);
+                    ctx.completeNow();
+                }), ctx::failNow);
+    }
+
+    @Test
+    void skipsTheEmailsThatCannotBeSent(VertxTestContext ctx) {
+        MailDispatcher dispatcher = new MailDispatcher(mailClient, 4);
+        dispatcher.dispatch(Flowable.just(
+                message("foo@tenksteps.tld"), message("bounce@tenksteps.tld"), message("bar@tenksteps.tld")), m -> m)
+                .toList()
+                .subscribe(results -> ctx.verify(() -> {
+                    assertThat(results).hasSize(2);
+                    assertThat(dispatcher.metrics().getLong("failed")).isEqualTo(1L);
+                    ctx.completeNow();
+                }), ctx::failNow);
+    }
+
+    @Test
+    void failsOnTransientErrors(VertxTestContext ctx) {
+        MailDispatcher dispatcher = new MailDispatcher(mailClient, 4);
+        dispatcher.dispatch(Flowable.just(message("foo@tenksteps.tld"), message("busy@tenksteps.tld")), m -> m)
+                .toList()
+                .subscribe(results -> ctx.failNow(new AssertionError("The dispatch should have failed")),
+                        err -> ctx.verify(() -> {
+                            assertThat(MailDispatcher.isPermanentFailure(err)).isFalse();
+                            ctx.completeNow();
+                        }));
+    }
+
+    @Test
+    void onlyClassifiesSmtpRepliesAsPermanent() {
+        assertThat(MailDispatcher.isPermanentFailure(new RuntimeException("550 No such user"))).isTrue();
+        assertThat(MailDispatcher.isPermanentFailure(
+                new RuntimeException("recipient address not accepted: 550 5.1.1 No such user"))).isTrue();
+        assertThat(MailDispatcher.isPermanentFailure(
+                new RuntimeException("recipient address not accepted: 451 Try again later"))).isFalse();
+        assertThat(MailDispatcher.isPermanentFailure(
+                new RuntimeException("Connection timed out after 500 ms"))).isFalse();
+        assertThat(MailDispatcher.isPermanentFailure(
+                new RuntimeException("Proxy error: 503 Service Unavailable"))).isFalse();
+        assertThat(MailDispatcher.isPermanentFailure(new IOException("550 No such user"))).isFalse();
+        assertThat(MailDispatcher.isPermanentFailure(new TimeoutException("500 ms"))).isFalse();
+        assertThat(MailDispatcher.isPermanentFailure(new RuntimeException())).isFalse();
+    }
+
+    private static MailMessage message(String to) {
+        return new MailMessage()
+                .setFrom("noreply@tenksteps.tld")
+                .setTo(to)
+                .setSubject("You made it!")
+                .setText("Congratulations!");
+    }
+
+    /*
+     * Just enough of SMTP for the mail client, rejecting the bounce@ recipients and deferring the busy@ ones.
+     */
+    private static class FakeSmtpServer {
+
+        int connections;
+        int maxConnections;
+        int messages;
+
+        void accept(NetSocket socket) {
+            connections++;
+            maxConnections = Math.max(maxConnections, connections);
+            socket.closeHandler(v -> connections--);
+            boolean[] inData = {false};
+            socket.handler(RecordParser.newDelimited("\r\n", line -> {
+                String command = line.toString();
+                if (inData[0]) {
+                    if (command.equals(".")) {
+                        inData[0] = false;
+                        messages++;
+                        socket.write("250 OK\r\n");
+                    }
+                    return;
+                }
+                String verb = command.length() >= 4 ? command.substring(0, 4).toUpperCase() : command.toUpperCase();
+                switch (verb) {
+                    case "EHLO":
+                    case "HELO":
+                        socket.write("250-localhost\r\n250 8BITMIME\r\n");
+                        break;
+                    case "RCPT":
+                        if (command.contains("bounce@")) {
+                            socket.write("550 No such user\r\n");
+                        } else if (command.contains("busy@")) {
+                            socket.write("451 Try again later\r\n");
+                        } else {
+                            socket.write("250 OK\r\n");
+                        }
+                        break;
+                    case "DATA":
+                        inData[0] = true;
+                        socket.write("354 End data with <CR><LF>.<CR><LF>\r\n");
+                        break;
+                    case "QUIT":
+                        socket.write("221 Bye\r\n");
+                        socket.close();
+                        break;
+                    default:
+                        socket.write("250 OK\r\n");
+                }
+            })::handle);
+            socket.write("220 localhost ESMTP\r\n");
+        }
+    }
+}
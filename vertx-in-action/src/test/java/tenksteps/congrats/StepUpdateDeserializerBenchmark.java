@@ -0,0 +1,92 @@
+package tenksteps.congrats;
+
+import io.vertx.core.json.JsonObject;
+import io.vertx.kafka.client.serialization.JsonObjectDeserializer;
+import org.apache.kafka.common.header.internals.RecordHeaders;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the records per second that a single core filters on the daily.step.updates topic: deserializing every
+ * value to a JsonObject before checking its steps count, versus the StepUpdateDeserializer scanning the value bytes,
+ * versus a stepsCount record header. One operation is one record; as in production, about 1 record in 20 is above
+ * 10k steps, and only those have their deviceId read.
+ *
+ * Run the main method (e.g., from the IDE) once the test classes have been compiled.
+ *
+ * @author sm@creativefusion.net
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StepUpdateDeserializerBenchmark {
+
+    private static final int RECORDS = 1024;
+
+    private final JsonObjectDeserializer jsonObjectDeserializer = new JsonObjectDeserializer();
+    private final StepUpdateDeserializer stepUpdateDeserializer = new StepUpdateDeserializer();
+    private final RecordHeaders noHeaders = new RecordHeaders();
+    private byte[][] values;
+    private RecordHeaders[] headers;
+    private int next;
+
+    @Setup
+    public void prepare() {
+        Random random = new Random(42L);
+        values = new byte[RECORDS][];
+        headers = new RecordHeaders[RECORDS];
+        for (int i = 0; i < RECORDS; i++) {
+            int stepsCount = random.nextInt(20) == 0 ? 10_000 + random.nextInt(5000) : random.nextInt(10_000);
+            values[i] = new JsonObject()
+                    .put("deviceId", "a1b2c3d4-e5f6-" + i)
+                    .put("timestamp", "2021-03-14T10:15:30.123")
+                    .put("stepsCount", stepsCount)
+                    .encode()
+                    .getBytes(StandardCharsets.UTF_8);
+            headers[i] = new RecordHeaders();
+            headers[i].add(StepUpdateDeserializer.STEPS_COUNT_HEADER,
+                    Integer.toString(stepsCount).getBytes(StandardCharsets.US_ASCII));
+        }
+    }
+
+    @Benchmark
+    public String jsonObjectFilter() {
+        JsonObject json = jsonObjectDeserializer.deserialize("daily.step.updates", values[nextIndex()]);
+        return json.getInteger("stepsCount") >= 10_000 ? json.getString("deviceId") : null;
+    }
+
+    @Benchmark
+    public String scanningFilter() {
+        StepUpdateView view = stepUpdateDeserializer.deserialize("daily.step.updates", noHeaders,
+                values[nextIndex()]);
+        return view.stepsCount() >= 10_000 ? view.deviceId() : null;
+    }
+
+    @Benchmark
+    public String headerFilter() {
+        int index = nextIndex();
+        StepUpdateView view = stepUpdateDeserializer.deserialize("daily.step.updates", headers[index], values[index]);
+        return view.stepsCount() >= 10_000 ? view.deviceId() : null;
+    }
+
+    private int nextIndex() {
+        next = (next + 1) & (RECORDS - 1);
+        return next;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(StepUpdateDeserializerBenchmark.class.getSimpleName())
+                .build())
+                .run();
+    }
+}
@@ -0,0 +1,88 @@
+package tenksteps.congrats;
+
+import org.apache.kafka.common.header.internals.RecordHeaders;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class StepUpdateDeserializerTest {
+
+    private final StepUpdateDeserializer deserializer = new StepUpdateDeserializer();
+
+    @Test
+    void scanTheStepsCount() {
+        assertThat(stepsCount("{\"deviceId\":\"a1b2\",\"timestamp\":\"2021-03-14T10:00:00\",\"stepsCount\":10250}"))
+                .isEqualTo(10250);
+        assertThat(stepsCount("{ \"stepsCount\" :\n-3 , \"deviceId\": \"a1b2\" }")).isEqualTo(-3);
+        assertThat(StepUpdateView.scanStepsCount(bytes("{\"stepsCount\": 1.5e4}"))).isEqualTo(StepUpdateView.MISSING);
+    }
+
+    @Test
+    void decodeWhenTheScanCannotTell() {
+        assertThat(stepsCount("{\"steps\\u0043ount\": 12000, \"deviceId\": \"a1b2\"}")).isEqualTo(12000);
+        assertThat(stepsCount("{\"deviceId\": \"a1b2\"}")).isEqualTo(StepUpdateView.MISSING);
+        assertThat(stepsCount("{\"stepsCount\": \"12000\"}")).isEqualTo(StepUpdateView.MISSING);
+        assertThat(stepsCount("not json")).isEqualTo(StepUpdateView.MISSING);
+    }
+
+    @Test
+    void onlyScanTheTopLevelMember() {
+        String nestedFirst = "{\"device\":{\"stepsCount\":20000},\"stepsCount\":500}";
+        assertThat(StepUpdateView.scanStepsCount(bytes(nestedFirst))).isEqualTo(500);
+        String inArray = "{\"history\":[{\"stepsCount\":20000}],\"stepsCount\":12}";
+        assertThat(StepUpdateView.scanStepsCount(bytes(inArray))).isEqualTo(12);
+        assertThat(stepsCount("{\"meta\":{\"stepsCount\":20000}}")).isEqualTo(StepUpdateView.MISSING);
+        assertThat(stepsCount("{\"deviceId\":\"stepsCount\",\"steps\":20000}")).isEqualTo(StepUpdateView.MISSING);
+    }
+
+    @Test
+    void keepTheLastDuplicateMember() {
+        String duplicated = "{\"stepsCount\":20000,\"deviceId\":\"a1b2\",\"stepsCount\":500}";
+        assertThat(StepUpdateView.scanStepsCount(bytes(duplicated))).isEqualTo(500);
+        assertThat(stepsCount(duplicated)).isEqualTo(view(duplicated).json().getInteger("stepsCount"));
+        assertThat(stepsCount("{\"stepsCount\":20000,\"stepsCount\":\"500\"}")).isEqualTo(StepUpdateView.MISSING);
+    }
+
+    @Test
+    void decodeWhenATopLevelStringIsEscaped() {
+        String quoted = "{\"note\":\"\\\"stepsCount\\\":20000\",\"stepsCount\":7}";
+        assertThat(StepUpdateView.scanStepsCount(bytes(quoted))).isEqualTo(StepUpdateView.MISSING);
+        assertThat(stepsCount(quoted)).isEqualTo(7);
+    }
+
+    @Test
+    void preferTheHeader() {
+        RecordHeaders headers = new RecordHeaders();
+        headers.add(StepUpdateDeserializer.STEPS_COUNT_HEADER, bytes("12000"));
+        StepUpdateView view = deserializer.deserialize("daily.step.updates", headers,
+                bytes("{\"deviceId\":\"a1b2\",\"stepsCount\":12000}"));
+        assertThat(view.stepsCount()).isEqualTo(12000);
+        assertThat(view.deviceId()).isEqualTo("a1b2");
+    }
+
+    @Test
+    void tolerateDocumentsWithoutDeviceId() {
+        RecordHeaders headers = new RecordHeaders();
+        headers.add(StepUpdateDeserializer.STEPS_COUNT_HEADER, bytes("12000"));
+        StepUpdateView notJson = deserializer.deserialize("daily.step.updates", headers, bytes("not json"));
+        assertThat(notJson.stepsCount()).isEqualTo(12000);
+        assertThat(notJson.json()).isNull();
+        assertThat(notJson.deviceId()).isNull();
+        assertThat(view("{\"stepsCount\":12000}").deviceId()).isNull();
+        assertThat(view("{\"stepsCount\":12000,\"deviceId\":42}").deviceId()).isNull();
+    }
+
+    private StepUpdateView view(String json) {
+        return deserializer.deserialize("daily.step.updates", new RecordHeaders(), bytes(json));
+    }
+
+    private int stepsCount(String json) {
+        return view(json).stepsCount();
+    }
+
+    private static byte[] bytes(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,34 @@
+package tenksteps.congrats;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class TtlCacheTest {
+
+    private final AtomicLong now = new AtomicLong();
+
+    @Test
+    void expiresAndEvicts() {
+        TtlCache<String> cache = new TtlCache<>(1000L, 2, now::get);
+        cache.put("a", "a@tenksteps.tld");
+        cache.put("b", "b@tenksteps.tld");
+        assertThat(cache.get("a")).isEqualTo("a@tenksteps.tld");
+        cache.put("c", "c@tenksteps.tld");
+        assertThat(cache.get("b")).isNull();
+        now.set(1000L);
+        assertThat(cache.get("a")).isNull();
+        assertThat(cache.metrics().getDouble("hitRatio")).isEqualTo(1.0d / 3);
+    }
+
+    @Test
+    void invalidates() {
+        TtlCache<String> cache = new TtlCache<>(1000L, 10, now::get);
+        cache.put("a", "a@tenksteps.tld");
+        cache.invalidate("a");
+        assertThat(cache.peek("a")).isNull();
+        assertThat(cache.metrics().getLong("invalidations")).isEqualTo(1L);
+    }
+}
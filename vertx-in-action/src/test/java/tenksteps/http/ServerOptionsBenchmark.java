@@ -0,0 +1,132 @@
+package tenksteps.http;
+
+import io.reactivex.Flowable;
+import io.reactivex.Single;
+import io.vertx.core.http.HttpVersion;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.web.client.WebClientOptions;
+import io.vertx.reactivex.core.Vertx;
+import io.vertx.reactivex.core.buffer.Buffer;
+import io.vertx.reactivex.core.http.HttpServer;
+import io.vertx.reactivex.ext.web.client.WebClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import tenksteps.upstream.LatencyHistogram;
+
+import java.time.LocalDate;
+
+/**
+ * Compares the default HTTP server options (HTTP/1.1, no compression) with the ones of ServerOptionsFactory (gzip,
+ * HTTP/2), on a dashboard-like JSON response: how many body bytes go on the wire per response, and the latency
+ * percentiles under CONCURRENCY concurrent requests.
+ *
+ * This is not a JMH benchmark since what is measured is a client and a server talking over the loopback interface, so
+ * run the main method and read the report. The loopback interface has plenty of bandwidth: on a mobile network the
+ * byte savings weigh much more on the latency than here, where the compression cost shows instead.
+ *
+ * @author sm@creativefusion.net
+ */
+public class ServerOptionsBenchmark {
+
+    private static final Logger logger = LoggerFactory.getLogger(ServerOptionsBenchmark.class);
+    private static final int WARMUP_REQUESTS = 5_000;
+    private static final int REQUESTS = 20_000;
+    private static final int CONCURRENCY = 32;
+
+    public static void main(String[] args) {
+        Vertx vertx = Vertx.vertx();
+        Buffer payload = Buffer.buffer(dashboard().encode());
+        logger.info("Payload: {} bytes of JSON, {} requests, {} concurrent", payload.length(), REQUESTS, CONCURRENCY);
+        try {
+            run(vertx, "defaults, HTTP/1.1",
+                    new JsonObject().put("compression", false).put("http2", false), HttpVersion.HTTP_1_1, payload);
+            run(vertx, "gzip, HTTP/1.1",
+                    new JsonObject(), HttpVersion.HTTP_1_1, payload);
+            run(vertx, "gzip, HTTP/2",
+                    new JsonObject(), HttpVersion.HTTP_2, payload);
+        } finally {
+            vertx.rxClose().blockingAwait();
+        }
+    }
+
+    private static void run(Vertx vertx, String scenario, JsonObject config, HttpVersion version, Buffer payload) {
+        HttpServer server = vertx.createHttpServer(ServerOptionsFactory.create(config))
+                .requestHandler(req -> req.response()
+                        .putHeader("Content-Type", "application/json")
+                        .end(payload))
+                .rxListen(0)
+                .blockingGet();
+        WebClient client = WebClient.create(vertx, new WebClientOptions()
+                .setDefaultPort(server.actualPort())
+                .setProtocolVersion(version)
+                .setHttp2ClearTextUpgrade(false)
+                .setMaxPoolSize(CONCURRENCY)
+                .setHttp2MaxPoolSize(1)
+                .setHttp2MultiplexingLimit(CONCURRENCY));
+        try {
+            load(client, WARMUP_REQUESTS).blockingGet();
+            long startedAt = System.nanoTime();
+            Stats stats = load(client, REQUESTS).blockingGet();
+            double seconds = (System.nanoTime() - startedAt) / 1e9;
+            logger.info("{}: {} bytes/response, p50 = {}ms, p99 = {}ms, {} requests/s", scenario,
+                    stats.bodyBytes / REQUESTS, String.format("%.3f", stats.latency.percentileMillis(50.0d)),
+                    String.format("%.3f", stats.latency.percentileMillis(99.0d)),
+                    String.format("%.0f", REQUESTS / seconds));
+        } finally {
+            client.close();
+            server.rxClose().blockingAwait();
+        }
+    }
+
+    /*
+     * The client does not decompress responses (tryUseCompression is off), so the body it gets is what the server
+     * sent on the wire.
+     */
+    private static Single<Stats> load(WebClient client, int requests) {
+        return Flowable.range(0, requests)
+                .flatMapSingle(i -> Single.defer(() -> {
+                    long startedAt = System.nanoTime();
+                    return client.get("/")
+                            .putHeader("Accept-Encoding", "gzip, deflate")
+                            .rxSend()
+                            .map(resp -> new long[]{System.nanoTime() - startedAt, resp.body().length()});
+                }), false, CONCURRENCY)
+                .collect(Stats::new, (stats, sample) -> {
+                    stats.latency.record(sample[0]);
+                    stats.bodyBytes += sample[1];
+                });
+    }
+
+    /*
+     * About what GET /api/v1/:username/dashboard returns, with the daily counts of the current month.
+     */
+    private static JsonObject dashboard() {
+        LocalDate today = LocalDate.now();
+        JsonArray days = new JsonArray();
+        for (int day = 1; day <= today.lengthOfMonth(); day++) {
+            days.add(new JsonObject()
+                    .put("date", today.withDayOfMonth(day).toString())
+                    .put("count", 4_000 + (day * 7_919) % 9_000));
+        }
+        return new JsonObject()
+                .put("username", "foo")
+                .put("date", today.toString())
+                .put("profile", new JsonObject()
+                        .put("username", "foo")
+                        .put("email", "foo@example.com")
+                        .put("city", "Lyon")
+                        .put("deviceId", "a1b2c3")
+                        .put("makePublic", true))
+                .put("total", new JsonObject().put("count", 1_234_567))
+                .put("month", new JsonObject().put("count", 187_654).put("days", days))
+                .put("today", new JsonObject().put("count", 7_421))
+                .put("partial", false);
+    }
+
+    private static class Stats {
+
+        final LatencyHistogram latency = new LatencyHistogram();
+        long bodyBytes;
+    }
+}
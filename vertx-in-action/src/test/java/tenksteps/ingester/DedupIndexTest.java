@@ -0,0 +1,110 @@
+package tenksteps.ingester;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class DedupIndexTest {
+
+    private final AtomicLong clock = new AtomicLong(1_000L);
+
+    @Test
+    void remembersIngestedPairs() {
+        DedupIndex index = new DedupIndex(16, 60_000L, clock::get);
+        index.add("a1b2c3", 1L);
+
+        assertThat(index.contains("a1b2c3", 1L)).isTrue();
+        assertThat(index.contains("a1b2c3", 2L)).isFalse();
+        assertThat(index.contains("d4e5f6", 1L)).isFalse();
+        assertThat(index.metrics().getDouble("hitRate")).isEqualTo(1.0d / 3.0d);
+    }
+
+    @Test
+    void tracksPairsBeingIngested() {
+        DedupIndex index = new DedupIndex(16, 60_000L, clock::get);
+
+        assertThat(index.start("a1b2c3", 1L)).isEqualTo(DedupIndex.Status.NEW);
+        assertThat(index.start("a1b2c3", 1L)).isEqualTo(DedupIndex.Status.IN_PROGRESS);
+        index.finish("a1b2c3", 1L, false);
+        assertThat(index.start("a1b2c3", 1L)).isEqualTo(DedupIndex.Status.NEW);
+        index.finish("a1b2c3", 1L, true);
+        assertThat(index.start("a1b2c3", 1L)).isEqualTo(DedupIndex.Status.INGESTED);
+        assertThat(index.metrics().getLong("concurrentDuplicates")).isEqualTo(1L);
+        assertThat(index.metrics().getInteger("inProgress")).isEqualTo(0);
+    }
+
+    @Test
+    void rejectsNonPositiveCapacity() {
+        assertThatThrownBy(() -> new DedupIndex(0, 60_000L, clock::get)).isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    void expiresEntries() {
+        DedupIndex index = new DedupIndex(16, 60_000L, clock::get);
+        index.add("a1b2c3", 1L);
+        clock.addAndGet(60_000L);
+
+        assertThat(index.contains("a1b2c3", 1L)).isFalse();
+        index.add("d4e5f6", 1L);
+        assertThat(index.size()).isEqualTo(1);
+    }
+
+    @Test
+    void evictsOldestWhenFull() {
+        DedupIndex index = new DedupIndex(3, 60_000L, clock::get);
+        for (long sync = 1; sync <= 4; sync++) {
+            index.add("a1b2c3", sync);
+            clock.incrementAndGet();
+        }
+
+        assertThat(index.size()).isEqualTo(3);
+        assertThat(index.contains("a1b2c3", 1L)).isFalse();
+        assertThat(index.contains("a1b2c3", 2L)).isTrue();
+        assertThat(index.contains("a1b2c3", 4L)).isTrue();
+    }
+
+    @Test
+    void keepsReaddedPairs() {
+        DedupIndex index = new DedupIndex(2, 10L, clock::get);
+        index.add("a1b2c3", 1L);
+        clock.addAndGet(5L);
+        index.add("d4e5f6", 1L);
+        clock.addAndGet(5L);
+        // The first entry has expired, and adding the pair again must survive the eviction of its old ring entry
+        index.add("a1b2c3", 1L);
+        index.add("g7h8i9", 1L);
+
+        assertThat(index.contains("a1b2c3", 1L)).isTrue();
+    }
+
+    @Test
+    void matchesReferenceModel() {
+        int capacity = 500;
+        DedupIndex index = new DedupIndex(capacity, Long.MAX_VALUE, clock::get);
+        Map<String, Boolean> model = new LinkedHashMap<String, Boolean>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                return size() > capacity;
+            }
+        };
+        Random random = new Random(42L);
+        for (int i = 0; i < 50_000; i++) {
+            String deviceId = "device-" + random.nextInt(100);
+            long sync = random.nextInt(100);
+            boolean expected = model.containsKey(deviceId + "/" + sync);
+            assertThat(index.contains(deviceId, sync)).isEqualTo(expected);
+            if (!expected) {
+                index.add(deviceId, sync);
+                model.put(deviceId + "/" + sync, true);
+            }
+            clock.incrementAndGet();
+        }
+        assertThat(index.size()).isEqualTo(model.size());
+    }
+}
@@ -0,0 +1,84 @@
+package tenksteps.ingester;
+
+import io.reactivex.Flowable;
+import io.vertx.ext.web.client.WebClientOptions;
+import io.vertx.reactivex.core.Vertx;
+import io.vertx.reactivex.core.buffer.Buffer;
+import io.vertx.reactivex.ext.web.client.HttpResponse;
+import io.vertx.reactivex.ext.web.client.WebClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+
+/**
+ * Load generator for the ingestion service HTTP endpoint. It issues POST /ingest requests with a fixed concurrency
+ * against an already running ingester and reports the throughput and latency percentiles.
+ *
+ * To check how the ingester scales with the number of cores, start it with the infrastructure from docker-compose
+ * and an increasing number of instances (IngesterVerticle 1, 2, 4, ... up to the core count), then run this
+ * generator against each deployment, ideally from another machine: throughput should grow nearly linearly until the
+ * cores or Kafka are saturated.
+ *
+ * Arguments: [requests] [concurrency] [host] [port]
+ *
+ * @author sm@creativefusion.net
+ */
+public class IngesterLoadGenerator {
+
+    private static final Logger logger = LoggerFactory.getLogger(IngesterLoadGenerator.class);
+
+    public static void main(String[] args) {
+        int requests = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+        int concurrency = args.length > 1 ? Integer.parseInt(args[1]) : 256;
+        String host = args.length > 2 ? args[2] : "localhost";
+        int port = args.length > 3 ? Integer.parseInt(args[3]) : 3002;
+
+        Vertx vertx = Vertx.vertx();
+        WebClient webClient = WebClient.create(vertx, new WebClientOptions()
+                .setDefaultHost(host)
+                .setDefaultPort(port)
+                .setKeepAlive(true)
+                .setMaxPoolSize(concurrency));
+
+        long[] latencies = new long[requests];
+        long start = System.nanoTime();
+        Flowable.range(0, requests)
+                .flatMapSingle(i -> {
+                    long sentAt = System.nanoTime();
+                    return webClient
+                            .post("/ingest")
+                            .putHeader("Content-Type", "application/json")
+                            .rxSendBuffer(payload(i))
+                            .doOnSuccess(resp -> latencies[i] = System.nanoTime() - sentAt)
+                            .map(HttpResponse::statusCode);
+                }, false, concurrency)
+                .filter(status -> status == 200)
+                .count()
+                .subscribe(
+                        succeeded -> {
+                            report(requests, succeeded, System.nanoTime() - start, latencies);
+                            vertx.close();
+                        },
+                        err -> {
+                            logger.error("Woops", err);
+                            vertx.close();
+                        });
+    }
+
+    private static Buffer payload(int i) {
+        return Buffer.buffer("{\"deviceId\":\"load-" + (i % 10_000) + "\",\"deviceSync\":" + i
+                + ",\"stepsCount\":" + (i % 500) + "}");
+    }
+
+    private static void report(int requests, long succeeded, long elapsedNanos, long[] latencies) {
+        Arrays.sort(latencies);
+        double seconds = elapsedNanos / 1_000_000_000.0d;
+        logger.info("{} requests ({} succeeded) in {}s: {} requests/s", requests, succeeded,
+                String.format("%.2f", seconds), String.format("%.0f", requests / seconds));
+        logger.info("Latency p50 = {}ms, p99 = {}ms, max = {}ms",
+                latencies[latencies.length / 2] / 1_000_000.0d,
+                latencies[(int) (latencies.length * 0.99)] / 1_000_000.0d,
+                latencies[latencies.length - 1] / 1_000_000.0d);
+    }
+}
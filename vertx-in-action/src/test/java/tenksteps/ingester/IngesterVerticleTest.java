@@ -0,0 +1,37 @@
+package tenksteps.ingester;
+
+import io.vertx.core.json.JsonObject;
+import org.apache.kafka.clients.producer.KafkaProducer;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class IngesterVerticleTest {
+
+    @Test
+    void producerAcceptsTheSpillTimeouts() {
+        JsonObject config = new JsonObject()
+                .put("spill.dir", "target/spill")
+                .put("batch.linger.ms", 5L)
+                .put("spill.send.timeout.ms", 2000L);
+        Map<String, String> kafkaConfig = IngesterVerticle.kafkaConfig(config);
+        assertThat(Long.parseLong(kafkaConfig.get("delivery.timeout.ms")))
+                .isGreaterThanOrEqualTo(Long.parseLong(kafkaConfig.get("linger.ms"))
+                        + Long.parseLong(kafkaConfig.get("request.timeout.ms")));
+
+        // The producer validates its configuration when it is created, without connecting to a broker
+        new KafkaProducer<String, StepEvent>(new HashMap<>(kafkaConfig)).close();
+    }
+
+    @Test
+    void producerAcceptsATimeoutShorterThanTheLinger() {
+        JsonObject config = new JsonObject()
+                .put("spill.dir", "target/spill")
+                .put("batch.linger.ms", 50L)
+                .put("spill.send.timeout.ms", 10L);
+        new KafkaProducer<String, StepEvent>(new HashMap<>(IngesterVerticle.kafkaConfig(config))).close();
+    }
+}
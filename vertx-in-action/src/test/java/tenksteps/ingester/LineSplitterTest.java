@@ -0,0 +1,38 @@
+package tenksteps.ingester;
+
+import io.reactivex.Flowable;
+import io.vertx.core.buffer.Buffer;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class LineSplitterTest {
+
+    @Test
+    void splitsLinesAcrossChunks() {
+        assertThat(lines(100, "a\nb", "c\n", "d\n").blockingIterable())
+                .containsExactly("a", "bc", "d");
+    }
+
+    @Test
+    void emitsTheLastLineWithoutNewline() {
+        assertThat(lines(100, "{\"deviceId\":\"a1b2\"}\n", "{\"deviceId\":", "\"c3d4\"}").blockingIterable())
+                .containsExactly("{\"deviceId\":\"a1b2\"}", "{\"deviceId\":\"c3d4\"}");
+        assertThat(lines(100, "a\n\nb").blockingIterable())
+                .containsExactly("a", "", "b");
+    }
+
+    @Test
+    void failsOnLinesThatAreTooLong() {
+        lines(3, "ab", "cd\n").test()
+                .assertError(IllegalStateException.class);
+        lines(3, "abc").test()
+                .assertValue("abc")
+                .assertComplete();
+    }
+
+    private static Flowable<String> lines(int maxLineSize, String... chunks) {
+        return LineSplitter.lines(Flowable.fromArray(chunks).map(Buffer::buffer), maxLineSize)
+                .map(Buffer::toString);
+    }
+}
@@ -0,0 +1,139 @@
+package tenksteps.ingester;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class SpillLogTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void readsRecordsInOrderAcrossSegments() throws IOException {
+        SpillLog log = new SpillLog(dir, 64, 64 * 100);
+        for (int i = 0; i < 20; i++) {
+            assertThat(log.append(record(i))).isTrue();
+        }
+
+        assertThat(readAll(log)).containsExactlyElementsOf(records(0, 20));
+        assertThat(log.next()).isNull();
+    }
+
+    @Test
+    void rewindsToTheLastCommit() throws IOException {
+        SpillLog log = new SpillLog(dir, 64, 64 * 100);
+        for (int i = 0; i < 6; i++) {
+            log.append(record(i));
+        }
+        log.next();
+        log.next();
+        log.commit();
+        log.next();
+        log.rewind();
+
+        assertThat(readAll(log)).containsExactlyElementsOf(records(2, 6));
+    }
+
+    @Test
+    void refusesAppendsWhenFull() throws IOException {
+        SpillLog log = new SpillLog(dir, 64, 64 * 2);
+        int appended = 0;
+        while (log.append(record(appended))) {
+            appended++;
+        }
+
+        assertThat(appended).isGreaterThan(0);
+        assertThat(log.sizeOnDisk()).isEqualTo(64 * 2);
+        readAll(log);
+        log.commit();
+        assertThat(log.append(record(appended))).isTrue();
+    }
+
+    @Test
+    void recoversCommittedPositionAfterRestart() throws IOException {
+        SpillLog log = new SpillLog(dir, 64, 64 * 100);
+        for (int i = 0; i < 10; i++) {
+            log.append(record(i));
+        }
+        for (int i = 0; i < 4; i++) {
+            log.next();
+        }
+        log.commit();
+        log.close();
+
+        SpillLog reopened = new SpillLog(dir, 64, 64 * 100);
+        assertThat(readAll(reopened)).containsExactlyElementsOf(records(4, 10));
+    }
+
+    @Test
+    void readsAgainFromTheStartWithATornCheckpoint() throws IOException {
+        SpillLog log = new SpillLog(dir, 64, 64 * 100);
+        for (int i = 0; i < 4; i++) {
+            log.append(record(i));
+        }
+        log.next();
+        log.commit();
+        log.close();
+        Files.write(dir.resolve("checkpoint"), new byte[0]);
+
+        SpillLog reopened = new SpillLog(dir, 64, 64 * 100);
+        assertThat(readAll(reopened)).containsExactlyElementsOf(records(0, 4));
+    }
+
+    @Test
+    void dropsTornRecordAtTheTail() throws IOException {
+        SpillLog log = new SpillLog(dir, 256, 256 * 10);
+        for (int i = 0; i < 3; i++) {
+            log.append(record(i));
+        }
+        log.close();
+
+        // Corrupt the payload of the last record, as if the process died while writing it
+        Path segment;
+        try (Stream<Path> files = Files.list(dir)) {
+            segment = files.filter(file -> file.toString().endsWith(".spill")).findFirst().get();
+        }
+        int lastRecordPayload = 2 * (8 + record(0).length) + 8;
+        try (RandomAccessFile file = new RandomAccessFile(segment.toFile(), "rw")) {
+            file.seek(lastRecordPayload);
+            file.write('#');
+        }
+
+        SpillLog reopened = new SpillLog(dir, 256, 256 * 10);
+        assertThat(readAll(reopened)).containsExactlyElementsOf(records(0, 2));
+        reopened.append(record(3));
+        assertThat(reopened.next()).isEqualTo(record(3));
+    }
+
+    private static List<byte[]> readAll(SpillLog log) throws IOException {
+        List<byte[]> records = new ArrayList<>();
+        byte[] record;
+        while ((record = log.next()) != null) {
+            records.add(record);
+        }
+        return records;
+    }
+
+    private static List<byte[]> records(int from, int to) {
+        List<byte[]> records = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            records.add(record(i));
+        }
+        return records;
+    }
+
+    private static byte[] record(int i) {
+        return String.format("record-%04d", i).getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,127 @@
+package tenksteps.ingester;
+
+import io.reactivex.Completable;
+import io.vertx.junit5.VertxExtension;
+import io.vertx.junit5.VertxTestContext;
+import io.vertx.reactivex.core.Vertx;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@ExtendWith(VertxExtension.class)
+class SpillQueueTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void drainsSpilledEventsInOrder(Vertx vertx, VertxTestContext ctx) {
+        List<StepEvent> produced = new ArrayList<>();
+        // In-process fake producer that acknowledges every event
+        SpillQueue.open(vertx, dir, 1024, 1024 * 16, 1000, event -> {
+            produced.add(event);
+            return Completable.complete();
+        }).subscribe(queue -> {
+            List<Completable> appends = new ArrayList<>();
+            for (int i = 0; i < 50; i++) {
+                appends.add(queue.append(new StepEvent("a1b2c3", i, 100 + i)));
+            }
+            ctx.verify(() -> assertThat(queue.hasBacklog()).isTrue());
+            Completable.merge(appends).subscribe(() -> vertx.setPeriodic(50, id -> {
+                if (!queue.hasBacklog()) {
+                    vertx.cancelTimer(id);
+                    ctx.verify(() -> {
+                        assertThat(produced).hasSize(50);
+                        for (int i = 0; i < 50; i++) {
+                            assertThat(produced.get(i).deviceSync()).isEqualTo(i);
+                        }
+                        assertThat(queue.metrics().getLong("drained")).isEqualTo(50L);
+                        ctx.completeNow();
+                    });
+                }
+            }), ctx::failNow);
+        }, ctx::failNow);
+    }
+
+    @Test
+    void keepsEventsWhileTheSinkFails(Vertx vertx, VertxTestContext ctx) {
+        List<StepEvent> produced = new ArrayList<>();
+        boolean[] kafkaDown = {true};
+        SpillQueue.open(vertx, dir, 1024, 1024 * 16, 1000, event -> {
+            if (kafkaDown[0]) {
+                return Completable.error(new IllegalStateException("Kafka is down"));
+            }
+            produced.add(event);
+            return Completable.complete();
+        }).subscribe(queue -> queue.append(new StepEvent("a1b2c3", 1L, 100))
+                .andThen(queue.append(new StepEvent("a1b2c3", 2L, 200)))
+                .subscribe(() -> vertx.setTimer(500, id -> {
+                    ctx.verify(() -> {
+                        assertThat(produced).isEmpty();
+                        assertThat(queue.hasBacklog()).isTrue();
+                        assertThat(queue.metrics().getLong("drainFailures")).isGreaterThan(0L);
+                    });
+                    ctx.completeNow();
+                }), ctx::failNow), ctx::failNow);
+    }
+
+    @Test
+    void drainsTheLogsOfInstancesThatAreGone(Vertx vertx, VertxTestContext ctx) throws IOException {
+        // Left behind by an instance that a restart did not bring back
+        StepEventSerializer serializer = new StepEventSerializer();
+        SpillLog orphan = new SpillLog(dir.resolve("instance-3"), 1024, 1024 * 16);
+        for (int i = 0; i < 10; i++) {
+            orphan.append(serializer.serialize(null, new StepEvent("d4e5f6", i, 100 + i)));
+        }
+        orphan.close();
+
+        List<StepEvent> produced = new ArrayList<>();
+        SpillQueue.open(vertx, dir, 1024, 1024 * 16, 1000, event -> {
+            produced.add(event);
+            return Completable.complete();
+        }).subscribe(queue -> {
+            ctx.verify(() -> {
+                assertThat(queue.metrics().getInteger("adoptedLogs")).isEqualTo(1);
+                assertThat(queue.hasBacklog()).isFalse();
+            });
+            vertx.setPeriodic(50, id -> {
+                if (queue.metrics().getInteger("adoptedLogs") == 0) {
+                    vertx.cancelTimer(id);
+                    ctx.verify(() -> {
+                        assertThat(produced).hasSize(10);
+                        for (int i = 0; i < 10; i++) {
+                            assertThat(produced.get(i).deviceSync()).isEqualTo(i);
+                        }
+                        assertThat(dir.resolve("instance-0")).isDirectory();
+                    });
+                    queue.close().subscribe(ctx::completeNow, ctx::failNow);
+                }
+            });
+        }, ctx::failNow);
+    }
+
+    @Test
+    void closesOnceThePendingAppendsAreWritten(Vertx vertx, VertxTestContext ctx) {
+        SpillQueue.open(vertx, dir, 1024, 1024 * 16, 1000, event -> Completable.complete()).subscribe(queue -> {
+            Completable first = queue.append(new StepEvent("a1b2c3", 1L, 100));
+            Completable second = queue.append(new StepEvent("a1b2c3", 2L, 200));
+            queue.close()
+                    .andThen(first)
+                    .andThen(second)
+                    .andThen(queue.append(new StepEvent("a1b2c3", 3L, 300)))
+                    .subscribe(() -> ctx.failNow(new AssertionError("Appended to a closed queue")),
+                            err -> ctx.verify(() -> {
+                                assertThat(err).hasMessage("The spill queue is closed");
+                                assertThat(queue.metrics().getLong("spilled")).isEqualTo(2L);
+                                ctx.completeNow();
+                            }));
+        }, ctx::failNow);
+    }
+}
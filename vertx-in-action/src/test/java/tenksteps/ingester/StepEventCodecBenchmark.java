@@ -0,0 +1,67 @@
+package tenksteps.ingester;
+
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.JsonObject;
+import io.vertx.kafka.client.serialization.JsonObjectSerializer;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the ingestion hot path before and after the StepEventCodec: decoding a payload to a JsonObject, checking
+ * the fields, copying them to a new JsonObject and serializing it with the JsonObjectSerializer, versus a single
+ * codec pass and the StepEventSerializer.
+ *
+ * Run the main method (e.g., from the IDE) once the test classes have been compiled.
+ *
+ * @author sm@creativefusion.net
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StepEventCodecBenchmark {
+
+    private final JsonObjectSerializer jsonObjectSerializer = new JsonObjectSerializer();
+    private final StepEventSerializer stepEventSerializer = new StepEventSerializer();
+    private Buffer payload;
+
+    @Setup
+    public void prepare() {
+        payload = Buffer.buffer("{\"deviceId\":\"a1b2c3d4-e5f6\",\"deviceSync\":1234567,\"stepsCount\":2500}");
+    }
+
+    @Benchmark
+    public byte[] jsonObjectPath() {
+        JsonObject json = payload.toJsonObject();
+        if (!json.containsKey("deviceId") || !json.containsKey("deviceSync") || !json.containsKey("stepsCount")) {
+            throw new IllegalStateException();
+        }
+        JsonObject recordData = new JsonObject()
+                .put("deviceId", json.getString("deviceId"))
+                .put("deviceSync", json.getLong("deviceSync"))
+                .put("stepsCount", json.getInteger("stepsCount"));
+        return jsonObjectSerializer.serialize("incoming.steps", recordData);
+    }
+
+    @Benchmark
+    public byte[] stepEventCodecPath() {
+        StepEvent event = StepEventCodec.decode(payload);
+        if (event == null) {
+            throw new IllegalStateException();
+        }
+        return stepEventSerializer.serialize("incoming.steps", event);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(StepEventCodecBenchmark.class.getSimpleName())
+                .build())
+                .run();
+    }
+}
@@ -0,0 +1,65 @@
+package tenksteps.ingester;
+
+import io.vertx.core.buffer.Buffer;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class StepEventCodecTest {
+
+    private final StepEventSerializer serializer = new StepEventSerializer();
+
+    @Test
+    void decodeValidEvent() {
+        StepEvent event = decode("{\"deviceId\": \"a1b2c3\", \"deviceSync\": 42, \"stepsCount\": 1200}");
+        assertThat(event).isEqualTo(new StepEvent("a1b2c3", 42L, 1200));
+    }
+
+    @Test
+    void skipUnknownFields() {
+        StepEvent event = decode("{\"meta\": {\"tags\": [\"a\", {\"b\": \"}\"}], \"ok\": true}, \"deviceSync\": -3, "
+                + "\"extra\": 1.5e3, \"stepsCount\": 0, \"none\": null, \"deviceId\": \"x\"}\n");
+        assertThat(event).isEqualTo(new StepEvent("x", -3L, 0));
+    }
+
+    @Test
+    void decodeEscapedStrings() {
+        StepEvent event = decode("{\"device\\u0049d\": \"a\\\"b\\\\c\\u00e9\", \"deviceSync\": 1, \"stepsCount\": 2}");
+        assertThat(event).isEqualTo(new StepEvent("a\"b\\cé", 1L, 2));
+        assertThat(decode("{\"deviceId\": \"été\", \"deviceSync\": 1, \"stepsCount\": 2}").deviceId())
+                .isEqualTo("été");
+    }
+
+    @Test
+    void rejectInvalidEvents() {
+        assertThat(decode("")).isNull();
+        assertThat(decode("[]")).isNull();
+        assertThat(decode("{}")).isNull();
+        assertThat(decode("{\"deviceId\": \"a\", \"deviceSync\": 1}")).isNull();
+        assertThat(decode("{\"deviceId\": 123, \"deviceSync\": 1, \"stepsCount\": 2}")).isNull();
+        assertThat(decode("{\"deviceId\": \"a\", \"deviceSync\": \"1\", \"stepsCount\": 2}")).isNull();
+        assertThat(decode("{\"deviceId\": \"a\", \"deviceSync\": 1, \"stepsCount\": 2.5}")).isNull();
+        assertThat(decode("{\"deviceId\": \"a\", \"deviceSync\": 1, \"stepsCount\": 3000000000}")).isNull();
+        assertThat(decode("{\"deviceId\": \"a\", \"deviceSync\": 1, \"stepsCount\": 2} {}")).isNull();
+        assertThat(decode("{\"deviceId\": \"a\", \"deviceSync\": 1, \"stepsCount\": 2")).isNull();
+        assertThat(decode("{\"deviceId\": \"a\", \"x\": [}, \"deviceSync\": 1, \"stepsCount\": 2}")).isNull();
+        assertThat(decode("{\"deviceId\": \"a\", \"x\": tru, \"deviceSync\": 1, \"stepsCount\": 2}")).isNull();
+    }
+
+    @Test
+    void serializeAsJson() {
+        byte[] plain = serializer.serialize("incoming.steps", new StepEvent("a1b2c3", 42L, 1200));
+        assertThat(new String(plain, StandardCharsets.UTF_8))
+                .isEqualTo("{\"deviceId\":\"a1b2c3\",\"deviceSync\":42,\"stepsCount\":1200}");
+
+        StepEvent escaped = new StepEvent("a\"b\né", -1L, 7);
+        byte[] bytes = serializer.serialize("incoming.steps", escaped);
+        assertThat(StepEventCodec.decode(bytes)).isEqualTo(escaped);
+    }
+
+    private StepEvent decode(String json) {
+        return StepEventCodec.decode(Buffer.buffer(json));
+    }
+}
@@ -286,4 +286,25 @@ class IntegrationTest {
                 .assertThat()
                 .statusCode(403);
     }
-}
\ No newline at end of file
+
+    @Test
+    @Order(8)
+    @DisplayName("Fetch a dashboard in one request")
+    void fetchDashboard() {
+        JsonPath jsonPath = given(requestSpecification)
+                .headers("Authorization", "Bearer " + tokens.get("Foo"))
+                .get("/Foo/dashboard")
+                .then()
+                .assertThat()
+                .statusCode(200)
+                .contentType(ContentType.JSON)
+                .extract()
+                .jsonPath();
+
+        assertThat(jsonPath.getString("username")).isEqualTo("Foo");
+        assertThat(jsonPath.getString("profile.city")).isEqualTo(registrations.get("Foo").getString("city"));
+        assertThat(jsonPath.getInt("total.count")).isEqualTo(6255);
+        assertThat(jsonPath.getMap("month")).isNotNull();
+        assertThat(jsonPath.getMap("today")).isNotNull();
+    }
+}
@@ -0,0 +1,84 @@
+package tenksteps.publicapi;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.auth.JWTOptions;
+import io.vertx.ext.auth.PubSecKeyOptions;
+import io.vertx.ext.auth.User;
+import io.vertx.ext.auth.jwt.JWTAuth;
+import io.vertx.ext.auth.jwt.JWTAuthOptions;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the cost of authenticating a bearer token in the public API: a cold verification (RS256 signature check
+ * and claims validation by JWTAuth, what every request paid before the TokenCache), versus a warm lookup of an
+ * already verified token in the TokenCache (SHA-256 of the token and a map lookup).
+ *
+ * Run the main method (e.g., from the IDE) from the repository root, so that the PEM files are found.
+ *
+ * @author sm@creativefusion.net
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class JwtVerificationBenchmark {
+
+    private Vertx vertx;
+    private JWTAuth jwtAuth;
+    private TokenCache tokenCache;
+    private JsonObject credentials;
+    private String token;
+
+    @Setup
+    public void prepare() throws IOException {
+        vertx = Vertx.vertx();
+        jwtAuth = JWTAuth.create(vertx, new JWTAuthOptions()
+                .addPubSecKey(new PubSecKeyOptions()
+                        .setAlgorithm("RS256")
+                        .setBuffer(CryptoHelper.publicKey()))
+                .addPubSecKey(new PubSecKeyOptions()
+                        .setAlgorithm("RS256")
+                        .setBuffer(CryptoHelper.privateKey())));
+        token = jwtAuth.generateToken(new JsonObject().put("deviceId", "a1b2c3"), new JWTOptions()
+                .setAlgorithm("RS256")
+                .setExpiresInMinutes(10_080)
+                .setIssuer("10k-steps-api")
+                .setSubject("foo"));
+        credentials = new JsonObject().put("token", token);
+
+        tokenCache = new TokenCache(10_000, TimeUnit.HOURS.toMillis(1));
+        tokenCache.put(token, coldVerification());
+    }
+
+    @TearDown
+    public void close() {
+        vertx.close();
+    }
+
+    @Benchmark
+    public User coldVerification() {
+        // The JWT provider verifies synchronously, so the future is already completed
+        return jwtAuth.authenticate(credentials).result();
+    }
+
+    @Benchmark
+    public String warmVerification() {
+        return tokenCache.get(token).subject;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(JwtVerificationBenchmark.class.getSimpleName())
+                .build())
+                .run();
+    }
+}
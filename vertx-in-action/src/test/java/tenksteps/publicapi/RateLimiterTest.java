@@ -0,0 +1,75 @@
+package tenksteps.publicapi;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class RateLimiterTest {
+
+    private final AtomicLong clock = new AtomicLong(TimeUnit.SECONDS.toNanos(1_000));
+
+    @Test
+    void admitsBurstsThenTheRate() {
+        RateLimiter limiter = new RateLimiter(10.0d, 5, 100, 60_000L, clock::get);
+
+        for (int i = 0; i < 5; i++) {
+            assertThat(limiter.acquire("foo")).isZero();
+        }
+        long wait = limiter.acquire("foo");
+        assertThat(wait).isEqualTo(TimeUnit.MILLISECONDS.toNanos(100));
+        assertThat(limiter.acquire("bar")).isZero();
+
+        clock.addAndGet(wait);
+        assertThat(limiter.acquire("foo")).isZero();
+        assertThat(limiter.acquire("foo")).isPositive();
+        assertThat(limiter.metrics().getLong("rejected")).isEqualTo(2L);
+    }
+
+    @Test
+    void evictsIdleKeysAndBoundsMemory() {
+        RateLimiter limiter = new RateLimiter(10.0d, 1, 2, 1_000L, clock::get);
+        limiter.acquire("foo");
+        clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(10));
+        limiter.acquire("bar");
+
+        // Both keys are tracked, so a new one displaces the fullest bucket (foo), and is not throttled
+        assertThat(limiter.acquire("baz")).isZero();
+        assertThat(limiter.size()).isEqualTo(2);
+        assertThat(limiter.metrics().getLong("displaced")).isEqualTo(1L);
+        assertThat(limiter.acquire("bar")).isPositive();
+
+        clock.addAndGet(TimeUnit.SECONDS.toNanos(2));
+        limiter.evictIdle();
+        assertThat(limiter.size()).isZero();
+        assertThat(limiter.acquire("bar")).isZero();
+    }
+
+    @Test
+    void neverAdmitsMoreThanTheBurstConcurrently() throws InterruptedException {
+        RateLimiter limiter = new RateLimiter(1.0d, 50, 100, 60_000L, clock::get);
+        AtomicInteger admitted = new AtomicInteger();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            Thread thread = new Thread(() -> {
+                for (int j = 0; j < 1_000; j++) {
+                    if (limiter.acquire("foo") == 0L) {
+                        admitted.incrementAndGet();
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertThat(admitted.get()).isEqualTo(50);
+    }
+}
@@ -0,0 +1,64 @@
+package tenksteps.publicapi;
+
+import io.vertx.core.buffer.Buffer;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ResponseCacheTest {
+
+    private final AtomicLong clock = new AtomicLong(1_000L);
+
+    @Test
+    void keepsClosedPeriodsLonger() {
+        ResponseCache cache = new ResponseCache(100, 5_000L, 3_600_000L, clock::get);
+        cache.put("a1b2c3", "/a1b2c3/total", Buffer.buffer("{\"count\":1200}"), false);
+        cache.put("a1b2c3", "/a1b2c3/2019/6", Buffer.buffer("{\"count\":6255}"), true);
+        clock.addAndGet(5_000L);
+
+        assertThat(cache.get("a1b2c3", "/a1b2c3/total")).isNull();
+        assertThat(cache.get("a1b2c3", "/a1b2c3/2019/6")).isNotNull();
+        assertThat(cache.size()).isEqualTo(1);
+    }
+
+    @Test
+    void evictsLeastRecentlyUsed() {
+        ResponseCache cache = new ResponseCache(2, 5_000L, 3_600_000L, clock::get);
+        cache.put("a1b2c3", "/a1b2c3/2019/4", Buffer.buffer("{\"count\":1}"), true);
+        cache.put("a1b2c3", "/a1b2c3/2019/5", Buffer.buffer("{\"count\":2}"), true);
+        cache.get("a1b2c3", "/a1b2c3/2019/4");
+        cache.put("a1b2c3", "/a1b2c3/2019/6", Buffer.buffer("{\"count\":3}"), true);
+
+        assertThat(cache.get("a1b2c3", "/a1b2c3/2019/4")).isNotNull();
+        assertThat(cache.get("a1b2c3", "/a1b2c3/2019/5")).isNull();
+        assertThat(cache.metrics().getLong("evictions")).isEqualTo(1L);
+    }
+
+    @Test
+    void invalidatesAllEntriesOfADevice() {
+        ResponseCache cache = new ResponseCache(100, 5_000L, 3_600_000L, clock::get);
+        cache.put("a1b2c3", "/a1b2c3/total", Buffer.buffer("{\"count\":1200}"), false);
+        cache.put("a1b2c3", "/a1b2c3/2019/6", Buffer.buffer("{\"count\":6255}"), true);
+        cache.put("d4e5f6", "/d4e5f6/total", Buffer.buffer("{\"count\":800}"), false);
+        cache.invalidate("a1b2c3");
+
+        assertThat(cache.get("a1b2c3", "/a1b2c3/total")).isNull();
+        assertThat(cache.get("a1b2c3", "/a1b2c3/2019/6")).isNull();
+        assertThat(cache.get("d4e5f6", "/d4e5f6/total")).isNotNull();
+    }
+
+    @Test
+    void matchesEtags() {
+        ResponseCache cache = new ResponseCache(100, 5_000L, 3_600_000L, clock::get);
+        ResponseCache.Entry entry = cache.put("a1b2c3", "/a1b2c3/total", Buffer.buffer("{\"count\":1200}"), false);
+        ResponseCache.Entry changed = cache.put("a1b2c3", "/a1b2c3/total", Buffer.buffer("{\"count\":1300}"), false);
+
+        assertThat(entry.etag).isNotEqualTo(changed.etag);
+        assertThat(entry.matches(entry.etag)).isTrue();
+        assertThat(entry.matches("\"0\", W/" + entry.etag)).isTrue();
+        assertThat(entry.matches(changed.etag)).isFalse();
+        assertThat(entry.matches(null)).isFalse();
+    }
+}
@@ -0,0 +1,83 @@
+package tenksteps.publicapi;
+
+import io.reactivex.Flowable;
+import io.reactivex.Single;
+import io.reactivex.subjects.SingleSubject;
+import io.vertx.junit5.VertxExtension;
+import io.vertx.junit5.VertxTestContext;
+import io.vertx.reactivex.core.Vertx;
+import io.vertx.reactivex.core.buffer.Buffer;
+import io.vertx.reactivex.ext.web.client.HttpResponse;
+import io.vertx.reactivex.ext.web.client.WebClient;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@ExtendWith(VertxExtension.class)
+class SingleFlightTest {
+
+    @Test
+    void sharesTheOutcomeOfPendingCalls() {
+        SingleFlight<String> singleFlight = new SingleFlight<>();
+        SingleSubject<String> upstream = SingleSubject.create();
+        AtomicInteger calls = new AtomicInteger();
+
+        Single<String> first = singleFlight.execute("/a1b2c3/total", () -> {
+            calls.incrementAndGet();
+            return upstream;
+        });
+        first.test();
+        Single<String> second = singleFlight.execute("/a1b2c3/total", () -> Single.just("not called"));
+        upstream.onSuccess("1200");
+
+        second.test().assertValue("1200");
+        assertThat(calls.get()).isEqualTo(1);
+        assertThat(singleFlight.inFlight()).isZero();
+        singleFlight.execute("/a1b2c3/total", () -> Single.just("1300")).test().assertValue("1300");
+    }
+
+    @Test
+    void forgetsFailedCalls() {
+        SingleFlight<String> singleFlight = new SingleFlight<>();
+        singleFlight.execute("/a1b2c3/total", () -> Single.error(new IllegalStateException("Boom")))
+                .test()
+                .assertError(IllegalStateException.class);
+
+        singleFlight.execute("/a1b2c3/total", () -> Single.just("1200")).test().assertValue("1200");
+        assertThat(singleFlight.metrics().getLong("upstreamCalls")).isEqualTo(2L);
+    }
+
+    @Test
+    void coalescesConcurrentRequests(Vertx vertx, VertxTestContext ctx) {
+        AtomicInteger upstreamRequests = new AtomicInteger();
+        SingleFlight<HttpResponse<Buffer>> singleFlight = new SingleFlight<>();
+        WebClient webClient = WebClient.create(vertx);
+
+        // Fake activity service that answers slowly, as it does under load
+        vertx.createHttpServer()
+                .requestHandler(req -> {
+                    upstreamRequests.incrementAndGet();
+                    vertx.setTimer(200, id -> req.response().end("{\"count\":" + req.path().length() + "}"));
+                })
+                .rxListen(0)
+                .flatMap(server -> Flowable.range(0, 1000)
+                        .flatMapSingle(i -> {
+                            String uri = "/device-" + (i % 10) + "/total";
+                            return singleFlight.execute(uri, () -> webClient
+                                    .get(server.actualPort(), "localhost", uri)
+                                    .rxSend());
+                        })
+                        .map(HttpResponse::bodyAsString)
+                        .toList())
+                .subscribe(bodies -> ctx.verify(() -> {
+                    assertThat(bodies).hasSize(1000).allMatch(body -> body.startsWith("{\"count\":"));
+                    assertThat(upstreamRequests.get()).isEqualTo(10);
+                    assertThat(singleFlight.metrics().getDouble("coalescingRatio")).isEqualTo(0.99d);
+                    assertThat(singleFlight.inFlight()).isZero();
+                    ctx.completeNow();
+                }), ctx::failNow);
+    }
+}
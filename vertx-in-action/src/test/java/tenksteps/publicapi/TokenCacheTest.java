@@ -0,0 +1,68 @@
+package tenksteps.publicapi;
+
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.auth.User;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class TokenCacheTest {
+
+    private final AtomicLong clock = new AtomicLong(1_600_000_000_000L);
+
+    @Test
+    void keepsVerifiedClaims() {
+        TokenCache cache = new TokenCache(100, 300_000L, clock::get);
+        cache.put("token-1", user("foo", "a1b2c3", clock.get() / 1000L + 3600L));
+
+        TokenCache.VerifiedToken verified = cache.get("token-1");
+        assertThat(verified).isNotNull();
+        assertThat(verified.subject).isEqualTo("foo");
+        assertThat(verified.deviceId).isEqualTo("a1b2c3");
+        assertThat(cache.get("token-2")).isNull();
+    }
+
+    @Test
+    void neverOutlivesTheToken() {
+        TokenCache cache = new TokenCache(100, 300_000L, clock::get);
+        cache.put("token-1", user("foo", "a1b2c3", clock.get() / 1000L + 60L));
+        cache.put("token-2", user("bar", "d4e5f6", clock.get() / 1000L + 3600L));
+        clock.addAndGet(60_000L);
+
+        assertThat(cache.get("token-1")).isNull();
+        assertThat(cache.get("token-2")).isNotNull();
+        clock.addAndGet(240_000L);
+        assertThat(cache.get("token-2")).isNull();
+    }
+
+    @Test
+    void ignoresExpiredTokens() {
+        TokenCache cache = new TokenCache(100, 300_000L, clock::get);
+        cache.put("token-1", user("foo", "a1b2c3", clock.get() / 1000L - 1L));
+
+        assertThat(cache.size()).isZero();
+    }
+
+    @Test
+    void evictsLeastRecentlyUsed() {
+        TokenCache cache = new TokenCache(2, 300_000L, clock::get);
+        long exp = clock.get() / 1000L + 3600L;
+        cache.put("token-1", user("foo", "a1b2c3", exp));
+        cache.put("token-2", user("bar", "d4e5f6", exp));
+        cache.get("token-1");
+        cache.put("token-3", user("baz", "g7h8i9", exp));
+
+        assertThat(cache.get("token-1")).isNotNull();
+        assertThat(cache.get("token-2")).isNull();
+        assertThat(cache.metrics().getLong("hits")).isEqualTo(2L);
+    }
+
+    private static User user(String subject, String deviceId, long exp) {
+        return User.create(new JsonObject()
+                .put("sub", subject)
+                .put("deviceId", deviceId)
+                .put("exp", exp));
+    }
+}
@@ -0,0 +1,31 @@
+package tenksteps.upstream;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+
+class LatencyHistogramTest {
+
+    @Test
+    void percentilesAreWithinTheBucketPrecision() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int ms = 1; ms <= 1000; ms++) {
+            histogram.record(ms * 1_000_000L);
+        }
+
+        assertThat(histogram.count()).isEqualTo(1000L);
+        assertThat(histogram.percentileMillis(50.0d)).isBetween(500.0d, 600.0d);
+        assertThat(histogram.percentileMillis(99.0d)).isBetween(990.0d, 1000.0d);
+        assertThat(histogram.toJson().getDouble("maxMs")).isEqualTo(1000.0d);
+        assertThat(histogram.toJson().getDouble("meanMs")).isCloseTo(500.5d, within(0.001d));
+    }
+
+    @Test
+    void isEmptyByDefault() {
+        LatencyHistogram histogram = new LatencyHistogram();
+
+        assertThat(histogram.percentileMillis(99.0d)).isZero();
+        assertThat(histogram.toJson().getLong("count")).isZero();
+    }
+}
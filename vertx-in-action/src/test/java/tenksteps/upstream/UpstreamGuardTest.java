@@ -0,0 +1,130 @@
+package tenksteps.upstream;
+
+import io.reactivex.Single;
+import io.reactivex.observers.TestObserver;
+import io.reactivex.schedulers.TestScheduler;
+import io.reactivex.subjects.SingleSubject;
+import io.vertx.core.json.JsonObject;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class UpstreamGuardTest {
+
+    private final TestScheduler scheduler = new TestScheduler();
+    private final AtomicLong now = new AtomicLong();
+
+    private UpstreamGuard guard(JsonObject definition) {
+        return new UpstreamGuard("test", definition, scheduler, now::get);
+    }
+
+    @Test
+    void bulkheadRejectsCallsBeyondTheLimit() {
+        UpstreamGuard guard = guard(new JsonObject().put("maxConcurrent", 2));
+        SingleSubject<String> pending = SingleSubject.create();
+
+        guard.call(() -> pending, result -> false).test();
+        guard.call(() -> pending, result -> false).test();
+        guard.call(() -> Single.just("ok"), result -> false).test()
+                .assertError(UpstreamRejectedException.class);
+
+        pending.onSuccess("done");
+        guard.call(() -> Single.just("ok"), result -> false).test().assertValue("ok");
+        assertThat(guard.metrics().getLong("bulkheadRejections")).isEqualTo(1L);
+        assertThat(guard.metrics().getInteger("activeCalls")).isZero();
+    }
+
+    @Test
+    void circuitOpensThenProbesThenCloses() {
+        UpstreamGuard guard = guard(new JsonObject()
+                .put("circuit.maxFailures", 3)
+                .put("circuit.resetTimeoutMs", 1_000L));
+        for (int i = 0; i < 3; i++) {
+            guard.call(() -> Single.<String>error(new RuntimeException("boom")), result -> false).test();
+        }
+        assertThat(guard.metrics().getString("state")).isEqualTo("OPEN");
+        guard.call(() -> Single.just("ok"), result -> false).test()
+                .assertError(UpstreamRejectedException.class);
+
+        now.addAndGet(1_000L);
+        SingleSubject<String> probe = SingleSubject.create();
+        guard.call(() -> probe, result -> false).test();
+        assertThat(guard.metrics().getString("state")).isEqualTo("HALF_OPEN");
+        guard.call(() -> Single.just("ok"), result -> false).test()
+                .assertError(UpstreamRejectedException.class);
+
+        probe.onSuccess("ok");
+        assertThat(guard.metrics().getString("state")).isEqualTo("CLOSED");
+        guard.call(() -> Single.just("ok"), result -> false).test().assertValue("ok");
+    }
+
+    @Test
+    void failedProbeReopensTheCircuit() {
+        UpstreamGuard guard = guard(new JsonObject()
+                .put("circuit.maxFailures", 1)
+                .put("circuit.resetTimeoutMs", 1_000L));
+        guard.call(() -> Single.just(500), status -> status >= 500).test().assertValue(500);
+        assertThat(guard.metrics().getString("state")).isEqualTo("OPEN");
+
+        now.addAndGet(1_000L);
+        guard.call(() -> Single.just(503), status -> status >= 500).test();
+        assertThat(guard.metrics().getString("state")).isEqualTo("OPEN");
+        assertThat(guard.metrics().getLong("circuitOpenings")).isEqualTo(2L);
+    }
+
+    @Test
+    void timeoutAdaptsToTheObservedLatency() {
+        UpstreamGuard guard = guard(new JsonObject()
+                .put("timeout.initialMs", 2_000L)
+                .put("timeout.minMs", 50L)
+                .put("timeout.multiplier", 2.0d));
+        assertThat(guard.timeoutMillis()).isEqualTo(2_000L);
+
+        for (int i = 0; i < 100; i++) {
+            guard.call(() -> Single.fromCallable(() -> now.addAndGet(100L)), result -> false).test();
+        }
+        assertThat(guard.timeoutMillis()).isBetween(200L, 240L);
+
+        TestObserver<Object> slow = guard.call(Single::never, result -> false).test();
+        scheduler.advanceTimeBy(guard.timeoutMillis(), TimeUnit.MILLISECONDS);
+        slow.assertError(TimeoutException.class);
+        assertThat(guard.metrics().getLong("timeouts")).isEqualTo(1L);
+        assertThat(guard.metrics().getInteger("activeCalls")).isZero();
+    }
+
+    @Test
+    void timeoutGrowsWhenCallsTimeOut() {
+        UpstreamGuard guard = guard(new JsonObject()
+                .put("timeout.minMs", 50L)
+                .put("timeout.multiplier", 2.0d)
+                .put("circuit.maxFailures", 100));
+        for (int i = 0; i < 100; i++) {
+            guard.call(() -> Single.fromCallable(() -> now.addAndGet(100L)), result -> false).test();
+        }
+        long timeout = guard.timeoutMillis();
+
+        for (int i = 0; i < 5; i++) {
+            guard.call(Single::never, result -> false).test();
+            scheduler.advanceTimeBy(guard.timeoutMillis(), TimeUnit.MILLISECONDS);
+        }
+        assertThat(guard.metrics().getLong("timeouts")).isEqualTo(5L);
+        assertThat(guard.timeoutMillis()).isGreaterThanOrEqualTo(2 * timeout);
+    }
+
+    @Test
+    void disposedCallsGiveTheirPermitBackOnce() {
+        UpstreamGuard guard = guard(new JsonObject().put("maxConcurrent", 1));
+
+        TestObserver<Object> cancelled = guard.call(Single::never, result -> false).test();
+        cancelled.dispose();
+        TestObserver<String> completed = guard.call(() -> Single.just("ok"), result -> false).test();
+        completed.dispose();
+
+        assertThat(guard.metrics().getInteger("activeCalls")).isZero();
+        guard.call(() -> Single.just("ok"), result -> false).test().assertValue("ok");
+    }
+}
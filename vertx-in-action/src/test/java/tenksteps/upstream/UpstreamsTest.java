@@ -0,0 +1,43 @@
+package tenksteps.upstream;
+
+import io.reactivex.Flowable;
+import io.vertx.core.json.JsonObject;
+import io.vertx.junit5.VertxExtension;
+import io.vertx.junit5.VertxTestContext;
+import io.vertx.reactivex.core.Vertx;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@ExtendWith(VertxExtension.class)
+class UpstreamsTest {
+
+    @Test
+    void measuresPoolUsage(Vertx vertx, VertxTestContext ctx) {
+        vertx.createHttpServer()
+                .requestHandler(req -> vertx.setTimer(20, id -> req.response().end("ok")))
+                .rxListen(0)
+                .flatMap(server -> {
+                    // A single connection, so the requests queue up for it
+                    Upstreams upstreams = new Upstreams(vertx, new JsonObject()
+                            .put("sensor", new JsonObject().put("port", server.actualPort()).put("poolSize", 1)));
+                    Upstream upstream = upstreams.get("sensor", "localhost", 1);
+                    return Flowable.range(0, 10)
+                            .flatMapSingle(i -> upstream.rxWebClient().get("/").rxSend())
+                            .toList()
+                            .map(responses -> upstreams.metrics());
+                })
+                .subscribe(metrics -> ctx.verify(() -> {
+                    JsonObject sensor = metrics.getJsonObject("sensor");
+                    assertThat(sensor.getInteger("openedConnections")).isEqualTo(1);
+                    assertThat(sensor.getInteger("inFlightRequests")).isZero();
+                    assertThat(sensor.getInteger("waitingRequests")).isZero();
+                    assertThat(sensor.getJsonObject("latency").getLong("count")).isEqualTo(10L);
+                    assertThat(sensor.getJsonObject("queueWait").getLong("count")).isEqualTo(10L);
+                    // The last request waited for the nine others to complete
+                    assertThat(sensor.getJsonObject("queueWait").getDouble("maxMs")).isGreaterThan(100.0d);
+                    ctx.completeNow();
+                }), ctx::failNow);
+    }
+}
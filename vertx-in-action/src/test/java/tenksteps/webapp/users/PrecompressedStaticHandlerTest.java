@@ -0,0 +1,136 @@
+package tenksteps.webapp.users;
+
+import io.vertx.ext.web.client.WebClientOptions;
+import io.vertx.junit5.VertxExtension;
+import io.vertx.junit5.VertxTestContext;
+import io.vertx.reactivex.core.Vertx;
+import io.vertx.reactivex.ext.web.Router;
+import io.vertx.reactivex.ext.web.client.WebClient;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@ExtendWith(VertxExtension.class)
+class PrecompressedStaticHandlerTest {
+
+    @TempDir
+    Path webRoot;
+
+    private WebClient webClient;
+
+    @BeforeEach
+    void prepare(Vertx vertx, VertxTestContext ctx) throws IOException {
+        StringBuilder script = new StringBuilder();
+        for (int i = 0; i < 500; i++) {
+            script.append("console.log('step ").append(i).append("');\n");
+        }
+        Files.write(webRoot.resolve("app.3f2a9c1b.js"), script.toString().getBytes(StandardCharsets.UTF_8));
+        String index = "<html><body>10k steps</body></html>";
+        Files.write(webRoot.resolve("index.html"), index.getBytes(StandardCharsets.UTF_8));
+        assertThat(AssetPrecompressor.precompress(webRoot, 1024)).isEqualTo(1);
+
+        PrecompressedStaticHandler assets = new PrecompressedStaticHandler(vertx, webRoot.toString(), 1024, 4096);
+        Router router = Router.router(vertx);
+        router.route().handler(assets);
+        router.get("/*").handler(assets::serveIndex);
+        vertx.createHttpServer()
+                .requestHandler(router)
+                .rxListen(0)
+                .subscribe(server -> {
+                    webClient = WebClient.create(vertx, new WebClientOptions()
+                            .setDefaultPort(server.actualPort()));
+                    ctx.completeNow();
+                }, ctx::failNow);
+    }
+
+    @Test
+    void servesThePrecompressedVariant(VertxTestContext ctx) {
+        webClient.get("/app.3f2a9c1b.js")
+                .putHeader("Accept-Encoding", "gzip, deflate")
+                .rxSend()
+                .subscribe(resp -> ctx.verify(() -> {
+                    assertThat(resp.statusCode()).isEqualTo(200);
+                    assertThat(resp.getHeader("Content-Encoding")).isEqualTo("gzip");
+                    assertThat(resp.getHeader("Vary")).isEqualTo("Accept-Encoding");
+                    assertThat(resp.getHeader("Cache-Control")).contains("immutable");
+                    assertThat(resp.body().length()).isLessThan(Files.size(webRoot.resolve("app.3f2a9c1b.js")));
+                    ctx.completeNow();
+                }), ctx::failNow);
+    }
+
+    @Test
+    void servesTheIdentityVariantWithoutAcceptEncoding(VertxTestContext ctx) {
+        webClient.get("/app.3f2a9c1b.js")
+                .putHeader("Accept-Encoding", "gzip;q=0")
+                .rxSend()
+                .subscribe(resp -> ctx.verify(() -> {
+                    assertThat(resp.statusCode()).isEqualTo(200);
+                    assertThat(resp.getHeader("Content-Encoding")).isNull();
+                    assertThat(resp.bodyAsString()).startsWith("console.log('step 0');");
+                    ctx.completeNow();
+                }), ctx::failNow);
+    }
+
+    @Test
+    void fallsBackToTheIndexAndRevalidates(VertxTestContext ctx) {
+        webClient.get("/dashboard/settings")
+                .rxSend()
+                .flatMap(resp -> {
+                    ctx.verify(() -> {
+                        assertThat(resp.statusCode()).isEqualTo(200);
+                        assertThat(resp.bodyAsString()).contains("10k steps");
+                        assertThat(resp.getHeader("Cache-Control")).isEqualTo("public, no-cache");
+                    });
+                    return webClient.get("/")
+                            .putHeader("If-None-Match", resp.getHeader("ETag"))
+                            .rxSend();
+                })
+                .subscribe(resp -> ctx.verify(() -> {
+                    assertThat(resp.statusCode()).isEqualTo(304);
+                    ctx.completeNow();
+                }), ctx::failNow);
+    }
+
+    @Test
+    void servesByteRangesOfTheIdentityVariant(VertxTestContext ctx) throws IOException {
+        long size = Files.size(webRoot.resolve("app.3f2a9c1b.js"));
+        webClient.get("/app.3f2a9c1b.js")
+                .putHeader("Accept-Encoding", "gzip")
+                .putHeader("Range", "bytes=0-10")
+                .rxSend()
+                .flatMap(resp -> {
+                    ctx.verify(() -> {
+                        assertThat(resp.statusCode()).isEqualTo(206);
+                        assertThat(resp.getHeader("Content-Range")).isEqualTo("bytes 0-10/" + size);
+                        assertThat(resp.getHeader("Content-Encoding")).isNotEqualTo("gzip");
+                        assertThat(resp.bodyAsString()).isEqualTo("console.log");
+                    });
+                    return webClient.get("/app.3f2a9c1b.js")
+                            .putHeader("Range", "bytes=" + size + "-")
+                            .rxSend();
+                })
+                .subscribe(resp -> ctx.verify(() -> {
+                    assertThat(resp.statusCode()).isEqualTo(416);
+                    assertThat(resp.getHeader("Content-Range")).isEqualTo("bytes */" + size);
+                    ctx.completeNow();
+                }), ctx::failNow);
+    }
+
+    @Test
+    void parsesSingleByteRanges() {
+        assertThat(PrecompressedStaticHandler.parseRange("bytes=5-", 100)).containsExactly(5L, 99L);
+        assertThat(PrecompressedStaticHandler.parseRange("bytes=-3", 100)).containsExactly(97L, 99L);
+        assertThat(PrecompressedStaticHandler.parseRange("bytes=0-1000", 100)).containsExactly(0L, 99L);
+        assertThat(PrecompressedStaticHandler.parseRange("bytes=100-", 100)).isEmpty();
+        assertThat(PrecompressedStaticHandler.parseRange("bytes=0-1,3-4", 100)).isNull();
+        assertThat(PrecompressedStaticHandler.parseRange("bytes=9-2", 100)).isNull();
+    }
+}
@@ -0,0 +1,156 @@
+package tenksteps.webapp.users;
+
+import io.reactivex.Flowable;
+import io.reactivex.Single;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.web.client.WebClientOptions;
+import io.vertx.reactivex.core.Vertx;
+import io.vertx.reactivex.core.http.HttpServer;
+import io.vertx.reactivex.ext.web.Router;
+import io.vertx.reactivex.ext.web.client.WebClient;
+import io.vertx.reactivex.ext.web.handler.StaticHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import tenksteps.http.ServerOptionsFactory;
+import tenksteps.upstream.LatencyHistogram;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Consumer;
+
+/**
+ * Load generator comparing the way the web application assets were served (StaticHandler, compression on the fly
+ * and a reroute to index.html for the client-side routes) with PrecompressedStaticHandler, on the same compressing
+ * HTTP server (see ServerOptionsFactory).
+ *
+ * It builds a web root in a temporary directory, with a fingerprinted JavaScript bundle, a style sheet and an index
+ * page, precompresses it with AssetPrecompressor, then issues the same mix of requests against both set-ups (as a
+ * browser would: with Accept-Encoding: gzip, mostly the bundle and the style sheet, and some client-side routes). It
+ * reports the throughput, the latency percentiles and the body bytes per response.
+ *
+ * Arguments: [requests] [concurrency]
+ *
+ * @author sm@creativefusion.net
+ */
+public class StaticAssetsLoadGenerator {
+
+    private static final Logger logger = LoggerFactory.getLogger(StaticAssetsLoadGenerator.class);
+    private static final List<String> PATHS = Arrays.asList(
+            "/js/app.3f2a9c1b.js", "/js/app.3f2a9c1b.js", "/js/app.3f2a9c1b.js", "/js/app.3f2a9c1b.js",
+            "/css/app.8d4e2f6a.css", "/css/app.8d4e2f6a.css", "/", "/", "/dashboard", "/settings");
+
+    public static void main(String[] args) throws IOException {
+        int requests = args.length > 0 ? Integer.parseInt(args[0]) : 20_000;
+        int concurrency = args.length > 1 ? Integer.parseInt(args[1]) : 32;
+
+        Path webRoot = Files.createTempDirectory("webroot");
+        createAssets(webRoot);
+        AssetPrecompressor.precompress(webRoot, 1024);
+
+        Vertx vertx = Vertx.vertx();
+        try {
+            run(vertx, "StaticHandler", requests, concurrency, router -> {
+                router.route().handler(StaticHandler.create()
+                        .setAllowRootFileSystemAccess(true)
+                        .setWebRoot(webRoot.toString()));
+                router.get("/*").handler(ctx -> ctx.reroute("/index.html"));
+            });
+            run(vertx, "Precompressed", requests, concurrency, router -> {
+                PrecompressedStaticHandler assets = new PrecompressedStaticHandler(vertx, webRoot.toString(),
+                        256 * 1024, 32L * 1024 * 1024);
+                router.route().handler(assets);
+                router.get("/*").handler(assets::serveIndex);
+            });
+        } finally {
+            vertx.rxClose().blockingAwait();
+        }
+    }
+
+    private static void run(Vertx vertx, String scenario, int requests, int concurrency, Consumer<Router> routes) {
+        Router router = Router.router(vertx);
+        routes.accept(router);
+        HttpServer server = vertx.createHttpServer(ServerOptionsFactory.create(new JsonObject()))
+                .requestHandler(router)
+                .rxListen(0)
+                .blockingGet();
+        WebClient webClient = WebClient.create(vertx, new WebClientOptions()
+                .setDefaultPort(server.actualPort())
+                .setKeepAlive(true)
+                .setMaxPoolSize(concurrency));
+        try {
+            load(webClient, requests / 4, concurrency).blockingGet();
+            long start = System.nanoTime();
+            Result result = load(webClient, requests, concurrency).blockingGet();
+            double seconds = (System.nanoTime() - start) / 1e9;
+            logger.info("{}: {} requests/s, p50 = {}ms, p99 = {}ms, {} bytes/response", scenario,
+                    String.format("%.0f", requests / seconds),
+                    String.format("%.3f", result.latency.percentileMillis(50.0d)),
+                    String.format("%.3f", result.latency.percentileMillis(99.0d)), result.bodyBytes / requests);
+        } finally {
+            webClient.close();
+            server.rxClose().blockingAwait();
+        }
+    }
+
+    /*
+     * The client does not decompress the responses, so the body sizes are the ones on the wire.
+     */
+    private static Single<Result> load(WebClient webClient, int requests, int concurrency) {
+        Random random = new Random(42L);
+        return Flowable.range(0, requests)
+                .map(i -> PATHS.get(random.nextInt(PATHS.size())))
+                .flatMapSingle(path -> Single.defer(() -> {
+                    long sentAt = System.nanoTime();
+                    return webClient.get(path)
+                            .putHeader("Accept-Encoding", "gzip, deflate")
+                            .rxSend()
+                            .map(resp -> {
+                                if (resp.statusCode() != 200) {
+                                    throw new IllegalStateException(path + " answered " + resp.statusCode());
+                                }
+                                return new long[]{System.nanoTime() - sentAt, resp.body().length()};
+                            });
+                }), false, concurrency)
+                .collect(Result::new, (result, sample) -> {
+                    result.latency.record(sample[0]);
+                    result.bodyBytes += sample[1];
+                });
+    }
+
+    /*
+     * About the sizes of a production build of a small Vue.js application.
+     */
+    private static void createAssets(Path webRoot) throws IOException {
+        Random random = new Random(42L);
+        StringBuilder script = new StringBuilder();
+        while (script.length() < 300_000) {
+            int n = random.nextInt(1000);
+            script.append("function f").append(n).append("(e,t){return e.steps+t*").append(n)
+                    .append("}var s").append(n).append("=document.getElementById(\"s").append(n).append("\");");
+        }
+        StringBuilder style = new StringBuilder();
+        while (style.length() < 40_000) {
+            int n = random.nextInt(500);
+            style.append(".c").append(n).append("{margin:").append(n % 16).append("px;color:#")
+                    .append(Integer.toHexString(0x100000 + n * 977)).append("}");
+        }
+        Files.createDirectories(webRoot.resolve("js"));
+        Files.createDirectories(webRoot.resolve("css"));
+        Files.write(webRoot.resolve("js/app.3f2a9c1b.js"), script.toString().getBytes(StandardCharsets.UTF_8));
+        Files.write(webRoot.resolve("css/app.8d4e2f6a.css"), style.toString().getBytes(StandardCharsets.UTF_8));
+        Files.write(webRoot.resolve("index.html"), ("<!DOCTYPE html><html><head><title>10k steps</title>"
+                + "<link href=\"/css/app.8d4e2f6a.css\" rel=\"stylesheet\"></head><body><div id=\"app\"></div>"
+                + "<script src=\"/js/app.3f2a9c1b.js\"></script></body></html>").getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static class Result {
+
+        final LatencyHistogram latency = new LatencyHistogram();
+        long bodyBytes;
+    }
+}